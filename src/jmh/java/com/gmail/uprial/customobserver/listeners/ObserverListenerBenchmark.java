@@ -0,0 +1,227 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import com.gmail.uprial.customobserver.CustomObserver;
+import com.gmail.uprial.customobserver.CustomObserverConfig;
+import com.gmail.uprial.customobserver.common.BlockKey;
+import com.gmail.uprial.customobserver.common.CustomLogger;
+import com.gmail.uprial.customobserver.config.InvalidConfigException;
+import com.gmail.uprial.customobserver.metrics.Metrics;
+import com.gmail.uprial.customobserver.storage.RegistryStorage;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Entity;
+import org.bukkit.event.block.BlockPhysicsEvent;
+import org.bukkit.event.block.BlockRedstoneEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/*
+    The event handlers, which run on every tick, over stubbed Bukkit objects.
+
+    The registrations are in one region around the origin.
+    The pulse engine task isn't run, so triggers of a target are merged.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObserverListenerBenchmark {
+    private static final int EXPLOSION_SIZE = 100;
+
+    @Param({"10", "1000", "100000"})
+    public int registrations;
+
+    private File dataFolder;
+    private ObserverRegistry registry;
+    private ObserverListener listener;
+    private BlockUpdateListener blockUpdates;
+
+    private BlockPhysicsEvent missPhysicsEvent;
+    // Two states of the target, so each event changes it
+    private final BlockPhysicsEvent[] targetPhysicsEvents = new BlockPhysicsEvent[2];
+    private int nextTargetPhysicsEvent = 0;
+    private BlockRedstoneEvent redstoneEvent;
+    private EntityExplodeEvent missExplodeEvent;
+    private EntityExplodeEvent nearExplodeEvent;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InvalidConfigException {
+        dataFolder = Files.createTempDirectory("customobserver").toFile();
+
+        final CustomLogger customLogger = new CustomLogger(Logger.getLogger("benchmark"));
+        customLogger.setDebugMode(false);
+
+        final RegistryStorage registryStorage = new RegistryStorage(dataFolder, customLogger, null);
+        registryStorage.open();
+        for (int i = 0; i < registrations; i++) {
+            registryStorage.put("world", getObserverKey(i), getSignKey(i), getTargetKey(i));
+        }
+        registryStorage.flush();
+
+        final World world = mock(World.class, withSettings().stubOnly());
+        when(world.getName()).thenReturn("world");
+        final Chunk chunk = mock(Chunk.class, withSettings().stubOnly());
+        when(chunk.getX()).thenReturn(0);
+        when(chunk.getZ()).thenReturn(0);
+        when(world.getLoadedChunks()).thenReturn(new Chunk[]{chunk});
+
+        final Answer<Object> runNow = (invocation) -> {
+            invocation.<Runnable>getArgument(1).run();
+            return null;
+        };
+        final BukkitScheduler scheduler = mock(BukkitScheduler.class, withSettings().stubOnly());
+        final BukkitTask task = mock(BukkitTask.class, withSettings().stubOnly());
+        when(scheduler.runTaskAsynchronously(any(Plugin.class), any(Runnable.class))).thenAnswer(runNow);
+        when(scheduler.runTask(any(Plugin.class), any(Runnable.class))).thenAnswer(runNow);
+        when(scheduler.runTaskTimer(any(Plugin.class), any(Runnable.class), anyLong(), anyLong()))
+                .thenReturn(task);
+        when(scheduler.runTaskTimerAsynchronously(any(Plugin.class), any(Runnable.class), anyLong(), anyLong()))
+                .thenReturn(task);
+
+        final Server server = mock(Server.class, withSettings().stubOnly());
+        when(server.getScheduler()).thenReturn(scheduler);
+        when(server.getWorlds()).thenReturn(Collections.singletonList(world));
+        when(server.getWorld("world")).thenReturn(world);
+
+        final CustomObserver plugin = mock(CustomObserver.class, withSettings().stubOnly());
+        when(plugin.getServer()).thenReturn(server);
+        when(plugin.getDataFolder()).thenReturn(dataFolder);
+        when(plugin.isEnabled()).thenReturn(true);
+
+        final CustomObserverConfig config = CustomObserverConfig.getFromConfig(new YamlConfiguration(), customLogger);
+        final Metrics metrics = new Metrics("benchmark_");
+        registry = new ObserverRegistry(plugin, customLogger, config, metrics);
+        listener = new ObserverListener(plugin, customLogger, registry, config, metrics);
+        blockUpdates = new BlockUpdateListener(plugin, customLogger, registry, config, metrics);
+
+        final BlockData blockData = mock(BlockData.class, withSettings().stubOnly());
+
+        final Block missBlock = mockBlock(world, 10_000, 64, 10_000, Material.STONE);
+        missPhysicsEvent = new BlockPhysicsEvent(missBlock, blockData, missBlock);
+
+        final long target = getTargetKey(0);
+        final Block targetBlock = mockBlock(world,
+                BlockKey.getX(target), BlockKey.getY(target), BlockKey.getZ(target), Material.STONE);
+        targetPhysicsEvents[0] = new BlockPhysicsEvent(targetBlock, blockData, targetBlock);
+        targetPhysicsEvents[1] = new BlockPhysicsEvent(targetBlock,
+                mock(BlockData.class, withSettings().stubOnly()), targetBlock);
+
+        final long observer = getObserverKey(0);
+        final Block observerBlock = mockBlock(world,
+                BlockKey.getX(observer), BlockKey.getY(observer), BlockKey.getZ(observer), Material.OBSERVER);
+        redstoneEvent = new BlockRedstoneEvent(observerBlock, 0, 15);
+
+        final Entity entity = mock(Entity.class, withSettings().stubOnly());
+        missExplodeEvent = new EntityExplodeEvent(entity, missBlock.getLocation(),
+                getExplosion(world, 10_000, 10_000), 1.0F);
+        // Blocks between the observers and the targets, which aren't registered
+        nearExplodeEvent = new EntityExplodeEvent(entity, targetBlock.getLocation(),
+                getExplosion(world, 0, 0), 1.0F);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        registry.close();
+        delete(dataFolder);
+    }
+
+    @Benchmark
+    public void onBlockPhysicsMiss() {
+        blockUpdates.onBlockPhysics(missPhysicsEvent);
+    }
+
+    @Benchmark
+    public void onBlockPhysicsTarget() {
+        blockUpdates.onBlockPhysics(targetPhysicsEvents[nextTargetPhysicsEvent]);
+        nextTargetPhysicsEvent ^= 1;
+    }
+
+    @Benchmark
+    public void onBlockPhysicsTargetUnchanged() {
+        blockUpdates.onBlockPhysics(targetPhysicsEvents[0]);
+    }
+
+    @Benchmark
+    public void onBlockRedstone(final Blackhole blackhole) {
+        blockUpdates.onBlockRedstone(redstoneEvent);
+        blackhole.consume(redstoneEvent.getNewCurrent());
+    }
+
+    @Benchmark
+    public void onEntityExplodeMiss() {
+        listener.onEntityExplode(missExplodeEvent);
+    }
+
+    @Benchmark
+    public void onEntityExplodeNear() {
+        listener.onEntityExplode(nearExplodeEvent);
+    }
+
+    private static long getObserverKey(final int i) {
+        return BlockKey.pack(i % 512, 10, (i / 512) % 512);
+    }
+
+    private static long getSignKey(final int i) {
+        return BlockKey.pack(i % 512, 11, (i / 512) % 512);
+    }
+
+    private static long getTargetKey(final int i) {
+        return BlockKey.pack(i % 512, 20, (i / 512) % 512);
+    }
+
+    private static List<Block> getExplosion(final World world, final int x, final int z) {
+        final List<Block> blocks = new ArrayList<>(EXPLOSION_SIZE);
+        for (int i = 0; i < EXPLOSION_SIZE; i++) {
+            blocks.add(mockBlock(world, x + i % 5, 15 + (i / 25), z + (i / 5) % 5, Material.STONE));
+        }
+        return blocks;
+    }
+
+    private static Block mockBlock(final World world, final int x, final int y, final int z,
+                                   final Material type) {
+        final Block block = mock(Block.class, withSettings().stubOnly());
+        when(block.getWorld()).thenReturn(world);
+        when(block.getX()).thenReturn(x);
+        when(block.getY()).thenReturn(y);
+        when(block.getZ()).thenReturn(z);
+        when(block.getType()).thenReturn(type);
+        when(block.getLocation()).thenReturn(new Location(world, x, y, z));
+        return block;
+    }
+
+    private static void delete(final File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (final File child : files) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,110 @@
+package com.gmail.uprial.customobserver.storage;
+
+import com.gmail.uprial.customobserver.common.BlockKey;
+import com.gmail.uprial.customobserver.common.CustomLogger;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/*
+    Loads and saves registries, spread over 8x8 regions of one world.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryStorageBenchmark {
+    private static final int REGIONS = 8;
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int registrations;
+
+    private CustomLogger customLogger;
+    private File loadFolder;
+    private File saveFolder;
+
+    private long[] observers;
+    private long[] signs;
+    private long[] targets;
+
+    private String[] worldNames;
+    private long[] regionKeys;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        customLogger = new CustomLogger(Logger.getLogger("benchmark"));
+        customLogger.setDebugMode(false);
+
+        loadFolder = Files.createTempDirectory("customobserver").toFile();
+        saveFolder = Files.createTempDirectory("customobserver").toFile();
+
+        observers = new long[registrations];
+        signs = new long[registrations];
+        targets = new long[registrations];
+        for (int i = 0; i < registrations; i++) {
+            final int region = i % (REGIONS * REGIONS);
+            final int j = i / (REGIONS * REGIONS);
+            final int x = (region % REGIONS) * 512 + j % 512;
+            final int z = (region / REGIONS) * 512 + (j / 512) % 512;
+            final int y = j / (512 * 512) * 3;
+
+            observers[i] = BlockKey.pack(x, y, z);
+            signs[i] = BlockKey.pack(x, y + 1, z);
+            targets[i] = BlockKey.pack(x, y + 2, z);
+        }
+
+        regionKeys = new long[REGIONS * REGIONS];
+        for (int region = 0; region < regionKeys.length; region++) {
+            regionKeys[region] = BlockKey.packChunk(region % REGIONS, region / REGIONS);
+        }
+        worldNames = new String[regionKeys.length];
+        Arrays.fill(worldNames, "world");
+
+        save(loadFolder);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        delete(loadFolder);
+        delete(saveFolder);
+    }
+
+    @Benchmark
+    public RegistryData[] load() {
+        final RegistryStorage storage = new RegistryStorage(loadFolder, customLogger, null);
+        storage.open();
+        return storage.loadRegions(worldNames, regionKeys);
+    }
+
+    @Benchmark
+    public void save() {
+        save(saveFolder);
+    }
+
+    private void save(final File dataFolder) {
+        final RegistryStorage storage = new RegistryStorage(dataFolder, customLogger, null);
+        storage.open();
+        for (int i = 0; i < observers.length; i++) {
+            storage.put("world", observers[i], signs[i], targets[i]);
+        }
+        storage.flush();
+    }
+
+    private static void delete(final File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (final File child : files) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
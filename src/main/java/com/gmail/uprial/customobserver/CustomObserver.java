@@ -1,12 +1,18 @@
 package com.gmail.uprial.customobserver;
 
 import com.gmail.uprial.customobserver.common.CustomLogger;
+import com.gmail.uprial.customobserver.common.LogSink;
 import com.gmail.uprial.customobserver.config.InvalidConfigException;
+import com.gmail.uprial.customobserver.listeners.BlockUpdateListener;
 import com.gmail.uprial.customobserver.listeners.ObserverListener;
+import com.gmail.uprial.customobserver.listeners.ObserverRegistry;
+import com.gmail.uprial.customobserver.metrics.Metrics;
+import com.gmail.uprial.customobserver.metrics.MetricsExporter;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.event.HandlerList;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
 
 import java.io.File;
 
@@ -16,7 +22,19 @@ public final class CustomObserver extends JavaPlugin {
     private final String CONFIG_FILE_NAME = "config.yml";
     private final File configFile = new File(getDataFolder(), CONFIG_FILE_NAME);
 
+    private final String METRICS_FILE_NAME = "metrics.txt";
+
     private CustomLogger consoleLogger = null;
+    private LogSink logSink = null;
+    // Outlives reloads, so the registrations and pulses in flight are kept
+    private ObserverRegistry observerRegistry = null;
+    private ObserverListener observerListener = null;
+    // Registers itself only while there are registrations
+    private BlockUpdateListener blockUpdateListener = null;
+
+    // Outlives reloads, so the counters aren't reset
+    private final Metrics metrics = new Metrics("customobserver_");
+    private BukkitTask metricsExportTask = null;
 
     @Override
     public void onEnable() {
@@ -31,13 +49,71 @@ public final class CustomObserver extends JavaPlugin {
     }
 
     private void register(final CustomObserverConfig customObserverConfig) {
+        if(customObserverConfig.isAsyncLog()) {
+            if(logSink == null) {
+                logSink = new LogSink(getLogger(), "CustomObserver log");
+                consoleLogger.setSink(logSink);
+            }
+        } else {
+            closeLogSink();
+        }
+
         if(customObserverConfig.isEnabled()) {
-            getServer().getPluginManager().registerEvents(new ObserverListener(this, consoleLogger), this);
+            if(observerRegistry == null) {
+                observerRegistry = new ObserverRegistry(this, consoleLogger, customObserverConfig, metrics);
+            } else {
+                observerRegistry.applyConfig(customObserverConfig);
+            }
+            observerListener = new ObserverListener(this, consoleLogger, observerRegistry,
+                    customObserverConfig, metrics);
+            getServer().getPluginManager().registerEvents(observerListener, this);
+            blockUpdateListener = new BlockUpdateListener(this, consoleLogger, observerRegistry,
+                    customObserverConfig, metrics);
+            blockUpdateListener.register();
+
+            if(customObserverConfig.isMetricsExport()) {
+                final MetricsExporter exporter = new MetricsExporter(getDataFolder(), METRICS_FILE_NAME,
+                        metrics, consoleLogger);
+                final long interval = customObserverConfig.getMetricsExportInterval() * 20L;
+                metricsExportTask = getServer().getScheduler().runTaskTimerAsynchronously(this,
+                        exporter::export, interval, interval);
+            }
+        } else {
+            closeRegistry();
         }
     }
 
+    Metrics getMetrics() {
+        return metrics;
+    }
+
     private void unregister() {
+        if(blockUpdateListener != null) {
+            blockUpdateListener.close();
+            blockUpdateListener = null;
+        }
         HandlerList.unregisterAll(this);
+        if(metricsExportTask != null) {
+            metricsExportTask.cancel();
+            metricsExportTask = null;
+        }
+        observerListener = null;
+    }
+
+    private void closeRegistry() {
+        if(observerRegistry != null) {
+            // Flush pending changes before they can be loaded again
+            observerRegistry.close();
+            observerRegistry = null;
+        }
+    }
+
+    private void closeLogSink() {
+        if(logSink != null) {
+            consoleLogger.setSink(null);
+            logSink.close();
+            logSink = null;
+        }
     }
 
     boolean reloadConfig(CustomLogger userLogger) {
@@ -57,6 +133,8 @@ public final class CustomObserver extends JavaPlugin {
     @Override
     public void onDisable() {
         unregister();
+        closeRegistry();
+        closeLogSink();
         consoleLogger.info("Plugin disabled");
     }
 
@@ -28,12 +28,27 @@ class CustomObserverCommandExecutor implements CommandExecutor {
                     return true;
                 }
             }
+            else if((args.length >= 1) && (args[0].equalsIgnoreCase("stats"))) {
+                if (sender.hasPermission(COMMAND_NS + ".stats")) {
+                    String statsString = "==== CustomObserver stats ====\n";
+
+                    for (final String line : plugin.getMetrics().getSummary()) {
+                        statsString += line + '\n';
+                    }
+
+                    customLogger.info(statsString);
+                    return true;
+                }
+            }
             else if((args.length == 0) || (args[0].equalsIgnoreCase("help"))) {
                 String helpString = "==== CustomObserver help ====\n";
 
                 if (sender.hasPermission(COMMAND_NS + ".reload")) {
                     helpString += '/' + COMMAND_NS + " reload - reload config from disk\n";
                 }
+                if (sender.hasPermission(COMMAND_NS + ".stats")) {
+                    helpString += '/' + COMMAND_NS + " stats - show performance metrics\n";
+                }
 
                 customLogger.info(helpString);
                 return true;
@@ -7,9 +7,54 @@ import org.bukkit.configuration.file.FileConfiguration;
 
 public final class CustomObserverConfig {
     private final boolean enabled;
+    private final boolean writeBehind;
+    private final int flushInterval;
+    private final boolean journal;
+    private final int compactionSize;
+    private final int compactionInterval;
+    private final boolean metricsTiming;
+    private final boolean metricsExport;
+    private final int metricsExportInterval;
+    private final boolean sweep;
+    private final int sweepInterval;
+    private final int sweepChunksPerTick;
+    private final int pulsesPerSecond;
+    private final int pulsesPerTick;
+    private final int maxTickTime;
+    private final boolean asyncLog;
 
-    private CustomObserverConfig(final boolean enabled) {
+    private CustomObserverConfig(final boolean enabled,
+                                 final boolean writeBehind,
+                                 final int flushInterval,
+                                 final boolean journal,
+                                 final int compactionSize,
+                                 final int compactionInterval,
+                                 final boolean metricsTiming,
+                                 final boolean metricsExport,
+                                 final int metricsExportInterval,
+                                 final boolean sweep,
+                                 final int sweepInterval,
+                                 final int sweepChunksPerTick,
+                                 final int pulsesPerSecond,
+                                 final int pulsesPerTick,
+                                 final int maxTickTime,
+                                 final boolean asyncLog) {
         this.enabled = enabled;
+        this.writeBehind = writeBehind;
+        this.flushInterval = flushInterval;
+        this.journal = journal;
+        this.compactionSize = compactionSize;
+        this.compactionInterval = compactionInterval;
+        this.metricsTiming = metricsTiming;
+        this.metricsExport = metricsExport;
+        this.metricsExportInterval = metricsExportInterval;
+        this.sweep = sweep;
+        this.sweepInterval = sweepInterval;
+        this.sweepChunksPerTick = sweepChunksPerTick;
+        this.pulsesPerSecond = pulsesPerSecond;
+        this.pulsesPerTick = pulsesPerTick;
+        this.maxTickTime = maxTickTime;
+        this.asyncLog = asyncLog;
     }
 
     static boolean isDebugMode(FileConfiguration config, CustomLogger customLogger) throws InvalidConfigException {
@@ -20,13 +65,124 @@ public final class CustomObserverConfig {
         return enabled;
     }
 
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    public int getFlushInterval() {
+        return flushInterval;
+    }
+
+    public boolean isJournal() {
+        return journal;
+    }
+
+    public int getCompactionSize() {
+        return compactionSize;
+    }
+
+    public int getCompactionInterval() {
+        return compactionInterval;
+    }
+
+    public boolean isMetricsTiming() {
+        return metricsTiming;
+    }
+
+    public boolean isMetricsExport() {
+        return metricsExport;
+    }
+
+    public int getMetricsExportInterval() {
+        return metricsExportInterval;
+    }
+
+    public boolean isSweep() {
+        return sweep;
+    }
+
+    public int getSweepInterval() {
+        return sweepInterval;
+    }
+
+    public int getSweepChunksPerTick() {
+        return sweepChunksPerTick;
+    }
+
+    public int getPulsesPerSecond() {
+        return pulsesPerSecond;
+    }
+
+    public int getPulsesPerTick() {
+        return pulsesPerTick;
+    }
+
+    public int getMaxTickTime() {
+        return maxTickTime;
+    }
+
+    public boolean isAsyncLog() {
+        return asyncLog;
+    }
+
     public static CustomObserverConfig getFromConfig(FileConfiguration config, CustomLogger customLogger) throws InvalidConfigException {
         final boolean enabled = ConfigReaderSimple.getBoolean(config, customLogger, "enabled", "'enabled' flag", true);
 
-        return new CustomObserverConfig(enabled);
+        final boolean writeBehind = ConfigReaderSimple.getBoolean(config, customLogger,
+                "storage.write-behind", "'storage.write-behind' flag", false);
+        final int flushInterval = ConfigReaderSimple.getInt(config, customLogger,
+                "storage.flush-interval", "'storage.flush-interval' value", 1, 72_000, 100);
+        final boolean journal = ConfigReaderSimple.getBoolean(config, customLogger,
+                "storage.journal", "'storage.journal' flag", false);
+        final int compactionSize = ConfigReaderSimple.getInt(config, customLogger,
+                "storage.compaction-size", "'storage.compaction-size' value", 1, 1_048_576, 1_024);
+        final int compactionInterval = ConfigReaderSimple.getInt(config, customLogger,
+                "storage.compaction-interval", "'storage.compaction-interval' value", 1, 604_800, 3_600);
+
+        final boolean metricsTiming = ConfigReaderSimple.getBoolean(config, customLogger,
+                "metrics.timing", "'metrics.timing' flag", true);
+        final boolean metricsExport = ConfigReaderSimple.getBoolean(config, customLogger,
+                "metrics.export", "'metrics.export' flag", false);
+        final int metricsExportInterval = ConfigReaderSimple.getInt(config, customLogger,
+                "metrics.export-interval", "'metrics.export-interval' value", 1, 3_600, 60);
+
+        final boolean sweep = ConfigReaderSimple.getBoolean(config, customLogger,
+                "sweep.enabled", "'sweep.enabled' flag", false);
+        final int sweepInterval = ConfigReaderSimple.getInt(config, customLogger,
+                "sweep.interval", "'sweep.interval' value", 1, 86_400, 600);
+        final int sweepChunksPerTick = ConfigReaderSimple.getInt(config, customLogger,
+                "sweep.chunks-per-tick", "'sweep.chunks-per-tick' value", 1, 1_024, 4);
+
+        final int pulsesPerSecond = ConfigReaderSimple.getInt(config, customLogger,
+                "limits.pulses-per-second", "'limits.pulses-per-second' value", 1, 5, 4);
+        final int pulsesPerTick = ConfigReaderSimple.getInt(config, customLogger,
+                "limits.pulses-per-tick", "'limits.pulses-per-tick' value", 1, 1_000_000, 1_000);
+        final int maxTickTime = ConfigReaderSimple.getInt(config, customLogger,
+                "limits.max-tick-time", "'limits.max-tick-time' value", 1, 1_000, 10);
+
+        final boolean asyncLog = ConfigReaderSimple.getBoolean(config, customLogger,
+                "log.async", "'log.async' flag", true);
+
+        return new CustomObserverConfig(enabled, writeBehind, flushInterval,
+                journal, compactionSize, compactionInterval,
+                metricsTiming, metricsExport, metricsExportInterval,
+                sweep, sweepInterval, sweepChunksPerTick,
+                pulsesPerSecond, pulsesPerTick, maxTickTime,
+                asyncLog);
     }
 
     public String toString() {
-        return String.format("enabled: %b", enabled);
+        return String.format("enabled: %b, storage.write-behind: %b, storage.flush-interval: %d, " +
+                        "storage.journal: %b, storage.compaction-size: %d, storage.compaction-interval: %d, " +
+                        "metrics.timing: %b, metrics.export: %b, metrics.export-interval: %d, " +
+                        "sweep.enabled: %b, sweep.interval: %d, sweep.chunks-per-tick: %d, " +
+                        "limits.pulses-per-second: %d, limits.pulses-per-tick: %d, limits.max-tick-time: %d, " +
+                        "log.async: %b",
+                enabled, writeBehind, flushInterval,
+                journal, compactionSize, compactionInterval,
+                metricsTiming, metricsExport, metricsExportInterval,
+                sweep, sweepInterval, sweepChunksPerTick,
+                pulsesPerSecond, pulsesPerTick, maxTickTime,
+                asyncLog);
     }
 }
@@ -0,0 +1,71 @@
+package com.gmail.uprial.customobserver.common;
+
+import org.bukkit.Location;
+import org.bukkit.block.Block;
+
+/*
+    Packs block coordinates of one world into a single long:
+    26 bits of X, 26 bits of Z and 12 bits of Y.
+
+    That covers the whole world border (+/-30,000,000) and any datapack
+    height (-2048..2047), so all 64 bits are taken, and a world is
+    identified by a separate world slot. A key never equals Long.MIN_VALUE,
+    because X = -2^25 is outside the world border.
+
+    Chunk keys pack chunk X and Z into the high and low halves of a long,
+    and region keys pack region (32x32 chunks) X and Z the same way.
+ */
+public final class BlockKey {
+    private static final int XZ_BITS = 26;
+    private static final int Y_BITS = 12;
+
+    private static final long XZ_MASK = (1L << XZ_BITS) - 1;
+    private static final long Y_MASK = (1L << Y_BITS) - 1;
+
+    private static final int X_SHIFT = XZ_BITS + Y_BITS;
+    private static final int Z_SHIFT = Y_BITS;
+
+    public static long pack(final int x, final int y, final int z) {
+        return ((x & XZ_MASK) << X_SHIFT) | ((z & XZ_MASK) << Z_SHIFT) | (y & Y_MASK);
+    }
+
+    public static long pack(final Block block) {
+        return pack(block.getX(), block.getY(), block.getZ());
+    }
+
+    public static long pack(final Location location) {
+        return pack(location.getBlockX(), location.getBlockY(), location.getBlockZ());
+    }
+
+    public static long packChunk(final int chunkX, final int chunkZ) {
+        return ((long) chunkX << Integer.SIZE) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    public static long getChunkKey(final long key) {
+        return packChunk(getX(key) >> 4, getZ(key) >> 4);
+    }
+
+    public static long getRegionKey(final long key) {
+        return packChunk(getRegionX(key), getRegionZ(key));
+    }
+
+    public static int getRegionX(final long key) {
+        return getX(key) >> 9;
+    }
+
+    public static int getRegionZ(final long key) {
+        return getZ(key) >> 9;
+    }
+
+    public static int getX(final long key) {
+        return (int) (key >> X_SHIFT);
+    }
+
+    public static int getY(final long key) {
+        return (int) ((key << (Long.SIZE - Y_BITS)) >> (Long.SIZE - Y_BITS));
+    }
+
+    public static int getZ(final long key) {
+        return (int) ((key << (Long.SIZE - X_SHIFT)) >> (Long.SIZE - XZ_BITS));
+    }
+}
@@ -6,8 +6,14 @@ import org.bukkit.command.CommandSender;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static com.gmail.uprial.customobserver.common.Formatter.formatMessage;
+import static com.gmail.uprial.customobserver.common.Formatter.freeze;
+
 public class CustomLogger {
     private boolean debugMode = true;
+    // Writes info messages of the console off the calling thread, if set,
+    // and it's set on reloads while other threads log
+    private volatile LogSink sink = null;
 
     private final Logger logger;
     private final CommandSender sender;
@@ -29,6 +35,10 @@ public class CustomLogger {
         return debugMode;
     }
 
+    public void setSink(LogSink sink) {
+        this.sink = sink;
+    }
+
     public void debug(String message) {
         if (debugMode) {
             //Never ever show debug messages to user
@@ -36,10 +46,48 @@ public class CustomLogger {
         }
     }
 
+    /*
+        The parameterized variants build the message only if it's logged,
+        so a disabled debug message costs nothing. See Formatter.formatMessage().
+     */
+    public void debug(String pattern, Object arg1) {
+        if (debugMode) {
+            debug(formatMessage(pattern, arg1));
+        }
+    }
+
+    public void debug(String pattern, Object arg1, Object arg2) {
+        if (debugMode) {
+            debug(formatMessage(pattern, arg1, arg2));
+        }
+    }
+
+    public void debug(String pattern, Object arg1, Object arg2, Object arg3) {
+        if (debugMode) {
+            debug(formatMessage(pattern, arg1, arg2, arg3));
+        }
+    }
+
     public void info(String message) {
         log(Level.INFO, "", null, message);
     }
 
+    public void info(String pattern, Object arg1) {
+        info(pattern, arg1, null, null);
+    }
+
+    public void info(String pattern, Object arg1, Object arg2) {
+        info(pattern, arg1, arg2, null);
+    }
+
+    public void info(String pattern, Object arg1, Object arg2, Object arg3) {
+        final LogSink sink = this.sink;
+        if ((sink == null) || (sender != null)
+                || (!sink.offer(Level.INFO, pattern, freeze(arg1), freeze(arg2), freeze(arg3)))) {
+            info(formatMessage(pattern, arg1, arg2, arg3));
+        }
+    }
+
     public void warning(String message) {
         log(Level.WARNING, "WARNING", ChatColor.YELLOW, message);
     }
@@ -4,22 +4,150 @@ import org.bukkit.Location;
 import org.bukkit.block.Block;
 import org.bukkit.entity.Player;
 
+/*
+    Formats blocks, players and locations for logs
+    with a StringBuilder, without String.format and boxed coordinates.
+
+    Messages use the %s-like conversions of String.format without flags,
+    e.g. "%s power set to %b", and each conversion takes the next argument.
+ */
 public class Formatter {
     public static String format(final Block block) {
-        return String.format("%s[%s]",
-                block.getType(),
-                format(block.getLocation()));
+        return appendBlock(new StringBuilder(), block).toString();
     }
 
     public static String format(final Player player) {
-        return String.format("%s[%s]",
-                player.getName(),
-                format(player.getLocation()));
+        return appendPlayer(new StringBuilder(), player).toString();
     }
 
     public static String format(final Location location) {
-        return String.format("%s:%.0f:%.0f:%.0f",
-                location.getWorld().getName(),
+        return appendLocation(new StringBuilder(), location).toString();
+    }
+
+    public static String formatMessage(final String pattern, final Object arg1) {
+        return formatMessage(pattern, arg1, null, null);
+    }
+
+    public static String formatMessage(final String pattern, final Object arg1, final Object arg2) {
+        return formatMessage(pattern, arg1, arg2, null);
+    }
+
+    public static String formatMessage(final String pattern,
+                                       final Object arg1, final Object arg2, final Object arg3) {
+        final StringBuilder sb = new StringBuilder(pattern.length() + 32);
+        int arg = 0;
+        final int length = pattern.length();
+        for (int i = 0; i < length; i++) {
+            final char c = pattern.charAt(i);
+            if ((c != '%') || (i + 1 == length)) {
+                sb.append(c);
+            } else if (pattern.charAt(++i) == '%') {
+                sb.append('%');
+            } else {
+                appendValue(sb, (arg == 0) ? arg1 : ((arg == 1) ? arg2 : arg3));
+                arg++;
+            }
+        }
+        return sb.toString();
+    }
+
+    /*
+        Returns an immutable copy of a block, a player or a location,
+        which can be formatted later on any thread. Other values are returned as is.
+     */
+    public static Object freeze(final Object value) {
+        if (value instanceof Block) {
+            final Block block = (Block) value;
+            return new FrozenValue(block.getType().toString(), block.getWorld().getName(),
+                    block.getX(), block.getY(), block.getZ());
+        } else if (value instanceof Player) {
+            final Player player = (Player) value;
+            final Location location = player.getLocation();
+            return new FrozenValue(player.getName(), location.getWorld().getName(),
+                    location.getX(), location.getY(), location.getZ());
+        } else if (value instanceof Location) {
+            final Location location = (Location) value;
+            return new FrozenValue(null, location.getWorld().getName(),
+                    location.getX(), location.getY(), location.getZ());
+        } else {
+            return value;
+        }
+    }
+
+    private static void appendValue(final StringBuilder sb, final Object value) {
+        if (value instanceof Block) {
+            appendBlock(sb, (Block) value);
+        } else if (value instanceof Player) {
+            appendPlayer(sb, (Player) value);
+        } else if (value instanceof Location) {
+            appendLocation(sb, (Location) value);
+        } else if (value instanceof FrozenValue) {
+            ((FrozenValue) value).appendTo(sb);
+        } else {
+            sb.append(value);
+        }
+    }
+
+    private static StringBuilder appendBlock(final StringBuilder sb, final Block block) {
+        sb.append(block.getType()).append('[');
+        return appendCoordinates(sb, block.getWorld().getName(),
+                block.getX(), block.getY(), block.getZ()).append(']');
+    }
+
+    private static StringBuilder appendPlayer(final StringBuilder sb, final Player player) {
+        sb.append(player.getName()).append('[');
+        return appendLocation(sb, player.getLocation()).append(']');
+    }
+
+    private static StringBuilder appendLocation(final StringBuilder sb, final Location location) {
+        return appendCoordinates(sb, location.getWorld().getName(),
                 location.getX(), location.getY(), location.getZ());
     }
+
+    private static StringBuilder appendCoordinates(final StringBuilder sb, final String worldName,
+                                                   final double x, final double y, final double z) {
+        return sb.append(worldName)
+                .append(':').append(round(x))
+                .append(':').append(round(y))
+                .append(':').append(round(z));
+    }
+
+    // Rounds half away from zero, like "%.0f"
+    private static long round(final double value) {
+        return (value < 0) ? -(long) (0.5 - value) : (long) (value + 0.5);
+    }
+
+    private static class FrozenValue {
+        // null for a location
+        private final String name;
+        private final String worldName;
+        private final double x;
+        private final double y;
+        private final double z;
+
+        private FrozenValue(final String name, final String worldName,
+                            final double x, final double y, final double z) {
+            this.name = name;
+            this.worldName = worldName;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        private void appendTo(final StringBuilder sb) {
+            if (name == null) {
+                appendCoordinates(sb, worldName, x, y, z);
+            } else {
+                sb.append(name).append('[');
+                appendCoordinates(sb, worldName, x, y, z).append(']');
+            }
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            appendTo(sb);
+            return sb.toString();
+        }
+    }
 }
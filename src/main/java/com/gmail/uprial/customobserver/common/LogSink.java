@@ -0,0 +1,114 @@
+package com.gmail.uprial.customobserver.common;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.gmail.uprial.customobserver.common.Formatter.formatMessage;
+
+/*
+    Writes log lines from a background thread.
+
+    Lines are kept unformatted in a ring buffer of preallocated slots,
+    so a producer only stores references under a short lock,
+    and the message is built and written by the thread of the sink.
+    The arguments must be safe to read from another thread, see Formatter.freeze().
+
+    When the buffer is full, offer() returns false, and the caller
+    writes the line by itself, so no line is lost.
+ */
+public class LogSink {
+    private static final int CAPACITY_BITS = 10;
+    private static final int CAPACITY = 1 << CAPACITY_BITS;
+    private static final int MASK = CAPACITY - 1;
+    private static final long CLOSE_TIMEOUT = 5_000L;
+
+    private final Logger logger;
+    private final Thread thread;
+
+    // Owned by the lock of the sink
+    private final Level[] levels = new Level[CAPACITY];
+    private final String[] patterns = new String[CAPACITY];
+    private final Object[] args1 = new Object[CAPACITY];
+    private final Object[] args2 = new Object[CAPACITY];
+    private final Object[] args3 = new Object[CAPACITY];
+    // The next slot to write and to read
+    private long head = 0;
+    private long tail = 0;
+    private boolean closed = false;
+
+    public LogSink(final Logger logger, final String threadName) {
+        this.logger = logger;
+
+        thread = new Thread(this::run, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Returns false if the line should be written by the caller
+    public synchronized boolean offer(final Level level, final String pattern,
+                                      final Object arg1, final Object arg2, final Object arg3) {
+        if (closed || (head - tail == CAPACITY)) {
+            return false;
+        }
+
+        final int slot = (int) (head & MASK);
+        levels[slot] = level;
+        patterns[slot] = pattern;
+        args1[slot] = arg1;
+        args2[slot] = arg2;
+        args3[slot] = arg3;
+        if (head++ == tail) {
+            notify();
+        }
+        return true;
+    }
+
+    // Writes the queued lines
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notify();
+        }
+        try {
+            thread.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            final Level level;
+            final String pattern;
+            final Object arg1;
+            final Object arg2;
+            final Object arg3;
+            synchronized (this) {
+                while ((head == tail) && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (head == tail) {
+                    return;
+                }
+
+                final int slot = (int) (tail & MASK);
+                level = levels[slot];
+                pattern = patterns[slot];
+                arg1 = args1[slot];
+                arg2 = args2[slot];
+                arg3 = args3[slot];
+                // Don't hold the arguments until the slot is reused
+                args1[slot] = null;
+                args2[slot] = null;
+                args3[slot] = null;
+                tail++;
+            }
+
+            logger.log(level, formatMessage(pattern, arg1, arg2, arg3));
+        }
+    }
+}
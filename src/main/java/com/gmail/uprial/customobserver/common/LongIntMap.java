@@ -0,0 +1,193 @@
+package com.gmail.uprial.customobserver.common;
+
+import java.util.Arrays;
+
+/*
+    An open-addressing hash map from primitive long keys to primitive int values.
+
+    Linear probing with backward-shift deletion, so lookups never box,
+    never allocate and never meet tombstones. Long.MIN_VALUE is reserved
+    as the empty-cell marker and can't be used as a key,
+    NO_VALUE is reserved as the missing-value marker and can't be stored.
+ */
+public class LongIntMap {
+    public static final int NO_VALUE = -1;
+
+    public interface Consumer {
+        void accept(long key, int value);
+    }
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int MIN_CAPACITY = 16;
+    // Keep at most 1/2 of cells occupied: probe sequences stay short.
+    private static final int LOAD_FACTOR_SHIFT = 1;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+
+    public LongIntMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongIntMap(final int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // The number of entries allocated, for memory estimates
+    public int capacity() {
+        return keys.length;
+    }
+
+    public int get(final long key) {
+        int i = index(key);
+        while (true) {
+            final long k = keys[i];
+            if (k == EMPTY) {
+                return NO_VALUE;
+            } else if (k == key) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public boolean containsKey(final long key) {
+        return get(key) != NO_VALUE;
+    }
+
+    public int put(final long key, final int value) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException(String.format("Reserved key: %d", key));
+        }
+        if (value == NO_VALUE) {
+            throw new IllegalArgumentException(String.format("Reserved value: %d", value));
+        }
+
+        int i = index(key);
+        while (true) {
+            final long k = keys[i];
+            if (k == key) {
+                final int previous = values[i];
+                values[i] = value;
+                return previous;
+            } else if (k == EMPTY) {
+                keys[i] = key;
+                values[i] = value;
+                size++;
+                if ((size << LOAD_FACTOR_SHIFT) > keys.length) {
+                    rehash(keys.length << 1);
+                }
+                return NO_VALUE;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public int remove(final long key) {
+        int i = index(key);
+        while (true) {
+            final long k = keys[i];
+            if (k == EMPTY) {
+                return NO_VALUE;
+            } else if (k == key) {
+                final int previous = values[i];
+                shiftBack(i);
+                size--;
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public void clear() {
+        if (size > 0) {
+            allocate(MIN_CAPACITY);
+            size = 0;
+        }
+    }
+
+    public void forEach(final Consumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                consumer.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    /*
+        Close the gap at the removed cell by moving back each following
+        entry of the cluster that would otherwise become unreachable.
+     */
+    private void shiftBack(int gap) {
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mask;
+            final long k = keys[i];
+            if (k == EMPTY) {
+                break;
+            }
+            final int home = index(k);
+            // Move the entry if its home cell isn't cyclically within (gap, i].
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = k;
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        keys[gap] = EMPTY;
+    }
+
+    private void rehash(final int capacity) {
+        final long[] oldKeys = keys;
+        final int[] oldValues = values;
+
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            final long k = oldKeys[i];
+            if (k != EMPTY) {
+                int j = index(k);
+                while (keys[j] != EMPTY) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = k;
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(final int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+    }
+
+    private int index(final long key) {
+        // The MurmurHash3 finalizer: neighbour blocks must not share a cluster.
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    private static int capacityFor(final int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < ((long) expectedSize << LOAD_FACTOR_SHIFT)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
@@ -0,0 +1,94 @@
+package com.gmail.uprial.customobserver.common;
+
+import org.bukkit.Material;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    A sign line which limits the materials of the target that trigger the observer:
+
+        !WATER,LAVA     any material except the listed ones
+        only:HOPPER     only the listed materials
+
+    A filter is compiled once into a bitmask indexed by Material.ordinal(),
+    so a check costs one bit test. Ordinals change between server versions,
+    so filters are persisted by their texts and compiled again on load.
+    Equal filters of many signs share one compiled instance.
+ */
+public final class MaterialFilter {
+    private static final String EXCLUDE_PREFIX = "!";
+    private static final String INCLUDE_PREFIX = "only:";
+    private static final String DELIMITER = ",";
+
+    private static final int MATERIALS = Material.values().length;
+
+    private static final Map<String, MaterialFilter> compiled = new ConcurrentHashMap<>();
+
+    private final String text;
+    // Materials which trigger
+    private final long[] bits;
+
+    private MaterialFilter(final String text, final long[] bits) {
+        this.text = text;
+        this.bits = bits;
+    }
+
+    public static boolean isFilter(final String line) {
+        final String trimmed = line.trim();
+        return trimmed.startsWith(EXCLUDE_PREFIX) || trimmed.regionMatches(true, 0, INCLUDE_PREFIX,
+                0, INCLUDE_PREFIX.length());
+    }
+
+    // Returns null if the line isn't a filter or has unknown materials
+    public static MaterialFilter parse(final String line) {
+        if (!isFilter(line)) {
+            return null;
+        }
+
+        final String trimmed = line.trim();
+        final boolean exclude = trimmed.startsWith(EXCLUDE_PREFIX);
+        final String list = trimmed.substring(exclude ? EXCLUDE_PREFIX.length() : INCLUDE_PREFIX.length());
+
+        final long[] bits = new long[(MATERIALS + Long.SIZE - 1) / Long.SIZE];
+        final StringBuilder text = new StringBuilder(exclude ? EXCLUDE_PREFIX : INCLUDE_PREFIX);
+        final String[] names = list.split(DELIMITER);
+        for (int i = 0; i < names.length; i++) {
+            final Material material = Material.matchMaterial(names[i].trim());
+            if ((material == null) || material.isLegacy()) {
+                return null;
+            }
+            if (i > 0) {
+                text.append(DELIMITER);
+            }
+            text.append(material.name());
+            setBit(bits, material.ordinal());
+        }
+        if (exclude) {
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = ~bits[i];
+            }
+        }
+
+        return compiled.computeIfAbsent(text.toString(), (key) -> new MaterialFilter(key, bits));
+    }
+
+    public boolean matches(final Material material) {
+        final int ordinal = material.ordinal();
+        return (bits[ordinal >>> 6] & (1L << ordinal)) != 0L;
+    }
+
+    // The canonical text, which is parsed to an equal filter
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    private static void setBit(final long[] bits, final int ordinal) {
+        bits[ordinal >>> 6] |= 1L << ordinal;
+    }
+}
@@ -30,4 +30,40 @@ public final class ConfigReaderSimple {
             throw new InvalidConfigException(String.format("Invalid %s", title));
         }
     }
+
+    public static int getInt(FileConfiguration config, CustomLogger customLogger, String key, String title, int min, int max, int defaultValue) throws InvalidConfigException {
+        return getIntInternal(config, customLogger, key, title, min, max, defaultValue);
+    }
+
+    public static int getInt(FileConfiguration config, CustomLogger customLogger, String key, String title, int min, int max) throws InvalidConfigException {
+        return getIntInternal(config, customLogger, key, title, min, max, null);
+    }
+
+    private static int getIntInternal(FileConfiguration config, CustomLogger customLogger, String key, String title, int min, int max, Integer defaultValue) throws InvalidConfigException {
+        String strValue = config.getString(key);
+
+        int value;
+        if(strValue == null) {
+            if (defaultValue == null) {
+                throw new InvalidConfigException(String.format("Empty %s", title));
+            } else {
+                customLogger.debug(String.format("Empty %s. Use default value %d", title, defaultValue));
+                return defaultValue;
+            }
+        } else {
+            try {
+                value = Integer.parseInt(strValue);
+            } catch (NumberFormatException ignored) {
+                throw new InvalidConfigException(String.format("Invalid %s", title));
+            }
+        }
+
+        if(value < min) {
+            throw new InvalidConfigException(String.format("A %s should be at least %d", title, min));
+        } else if(value > max) {
+            throw new InvalidConfigException(String.format("A %s should be at most %d", title, max));
+        }
+
+        return value;
+    }
 }
@@ -0,0 +1,161 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import com.gmail.uprial.customobserver.common.BlockKey;
+import com.gmail.uprial.customobserver.common.LongIntMap;
+
+import java.util.Arrays;
+
+/*
+    Cuboid target areas of one world, indexed by chunks.
+
+    Each chunk overlapped by areas has a bucket: a list of the area slots
+    with their bounds unpacked into a flat int array, so a block lookup
+    scans only the areas of its chunk, in one array, without unpacking keys.
+
+    Areas are limited in size, so an area is in a few buckets at most,
+    and overlapping areas don't make each other's lookups slower
+    outside of the chunks they share.
+ */
+class AreaIndex {
+    private static final int NO_BUCKET = LongIntMap.NO_VALUE;
+    private static final int INITIAL_BUCKETS = 16;
+    private static final int INITIAL_AREAS = 4;
+    // minX, minY, minZ, maxX, maxY, maxZ
+    private static final int BOUNDS = 6;
+
+    // Chunk keys to buckets
+    private final LongIntMap chunks = new LongIntMap();
+
+    private int[][] bucketSlots = new int[INITIAL_BUCKETS][];
+    private int[][] bucketBounds = new int[INITIAL_BUCKETS][];
+    private int[] bucketSizes = new int[INITIAL_BUCKETS];
+    // All the buckets above the limit are free
+    private int bucketLimit = 0;
+
+    private int[] freeBuckets = new int[INITIAL_BUCKETS];
+    private int freeBucketsCount = 0;
+
+    boolean isEmpty() {
+        return chunks.isEmpty();
+    }
+
+    void add(final int slot, final long min, final long max) {
+        final int minX = BlockKey.getX(min);
+        final int minY = BlockKey.getY(min);
+        final int minZ = BlockKey.getZ(min);
+        final int maxX = BlockKey.getX(max);
+        final int maxY = BlockKey.getY(max);
+        final int maxZ = BlockKey.getZ(max);
+
+        for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++) {
+            for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++) {
+                final long chunkKey = BlockKey.packChunk(chunkX, chunkZ);
+                int bucket = chunks.get(chunkKey);
+                if (bucket == NO_BUCKET) {
+                    bucket = allocateBucket();
+                    chunks.put(chunkKey, bucket);
+                }
+
+                final int i = bucketSizes[bucket]++;
+                if (i == bucketSlots[bucket].length) {
+                    bucketSlots[bucket] = Arrays.copyOf(bucketSlots[bucket], i << 1);
+                    bucketBounds[bucket] = Arrays.copyOf(bucketBounds[bucket], (i << 1) * BOUNDS);
+                }
+                bucketSlots[bucket][i] = slot;
+
+                final int[] bounds = bucketBounds[bucket];
+                final int offset = i * BOUNDS;
+                bounds[offset] = minX;
+                bounds[offset + 1] = minY;
+                bounds[offset + 2] = minZ;
+                bounds[offset + 3] = maxX;
+                bounds[offset + 4] = maxY;
+                bounds[offset + 5] = maxZ;
+            }
+        }
+    }
+
+    void remove(final int slot, final long min, final long max) {
+        for (int chunkX = BlockKey.getX(min) >> 4; chunkX <= BlockKey.getX(max) >> 4; chunkX++) {
+            for (int chunkZ = BlockKey.getZ(min) >> 4; chunkZ <= BlockKey.getZ(max) >> 4; chunkZ++) {
+                final long chunkKey = BlockKey.packChunk(chunkX, chunkZ);
+                final int bucket = chunks.get(chunkKey);
+                if (bucket == NO_BUCKET) {
+                    continue;
+                }
+
+                final int[] slots = bucketSlots[bucket];
+                final int size = bucketSizes[bucket];
+                for (int i = 0; i < size; i++) {
+                    if (slots[i] == slot) {
+                        // Move the last area into the gap
+                        final int last = size - 1;
+                        slots[i] = slots[last];
+                        System.arraycopy(bucketBounds[bucket], last * BOUNDS,
+                                bucketBounds[bucket], i * BOUNDS, BOUNDS);
+                        bucketSizes[bucket] = last;
+                        break;
+                    }
+                }
+
+                if (bucketSizes[bucket] == 0) {
+                    chunks.remove(chunkKey);
+                    releaseBucket(bucket);
+                }
+            }
+        }
+    }
+
+    // Adds the slots of the areas with the block to the list
+    void find(final int x, final int y, final int z, final SlotList found) {
+        final int bucket = chunks.get(BlockKey.packChunk(x >> 4, z >> 4));
+        if (bucket == NO_BUCKET) {
+            return;
+        }
+
+        final int[] slots = bucketSlots[bucket];
+        final int[] bounds = bucketBounds[bucket];
+        final int size = bucketSizes[bucket];
+        for (int i = 0, offset = 0; i < size; i++, offset += BOUNDS) {
+            if ((x >= bounds[offset]) && (y >= bounds[offset + 1]) && (z >= bounds[offset + 2])
+                    && (x <= bounds[offset + 3]) && (y <= bounds[offset + 4]) && (z <= bounds[offset + 5])) {
+                found.add(slots[i]);
+            }
+        }
+    }
+
+    long getMemoryEstimate() {
+        long bytes = (long) chunks.capacity() * (Long.BYTES + Integer.BYTES)
+                + (long) (bucketSizes.length + freeBuckets.length) * Integer.BYTES;
+        for (int bucket = 0; bucket < bucketLimit; bucket++) {
+            bytes += (long) bucketSlots[bucket].length * (BOUNDS + 1) * Integer.BYTES;
+        }
+        return bytes;
+    }
+
+    private int allocateBucket() {
+        if (freeBucketsCount > 0) {
+            return freeBuckets[--freeBucketsCount];
+        }
+
+        if (bucketLimit == bucketSizes.length) {
+            final int capacity = bucketSizes.length << 1;
+            bucketSlots = Arrays.copyOf(bucketSlots, capacity);
+            bucketBounds = Arrays.copyOf(bucketBounds, capacity);
+            bucketSizes = Arrays.copyOf(bucketSizes, capacity);
+        }
+
+        final int bucket = bucketLimit++;
+        bucketSlots[bucket] = new int[INITIAL_AREAS];
+        bucketBounds[bucket] = new int[INITIAL_AREAS * BOUNDS];
+        return bucket;
+    }
+
+    private void releaseBucket(final int bucket) {
+        // The arrays are kept for the next chunk
+        if (freeBucketsCount == freeBuckets.length) {
+            freeBuckets = Arrays.copyOf(freeBuckets, freeBuckets.length << 1);
+        }
+        freeBuckets[freeBucketsCount++] = bucket;
+    }
+}
@@ -0,0 +1,195 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import com.gmail.uprial.customobserver.CustomObserver;
+import com.gmail.uprial.customobserver.CustomObserverConfig;
+import com.gmail.uprial.customobserver.common.CustomLogger;
+import com.gmail.uprial.customobserver.metrics.Histogram;
+import com.gmail.uprial.customobserver.metrics.Metrics;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockPhysicsEvent;
+import org.bukkit.event.block.BlockRedstoneEvent;
+import org.bukkit.plugin.PluginManager;
+
+import static com.gmail.uprial.customobserver.listeners.ObserverListener.isSameBlock;
+import static com.gmail.uprial.customobserver.listeners.ObserverStorage.NO_SLOT;
+
+/*
+    Handlers of block physics and redstone events, which fire for almost every block update.
+
+    They are registered only while the storage has registrations,
+    so a server without aimed observers pays nothing for their dispatch.
+    The storage reports when it becomes empty or not empty, maybe on another thread,
+    and the handlers are registered or unregistered on the main thread.
+ */
+public class BlockUpdateListener implements Listener {
+    private final CustomObserver plugin;
+    private final CustomLogger customLogger;
+
+    private final ObserverStorage storage;
+    private final PulseEngine pulses;
+
+    // Events of different regions may come from different threads
+    private final ThreadLocal<SlotList> foundSlots = ThreadLocal.withInitial(SlotList::new);
+
+    private final boolean timing;
+    private final Histogram physicsTime;
+    private final Histogram redstoneTime;
+
+    // Owned by the monitor of the listener
+    private boolean registered = false;
+    private boolean closed = false;
+
+    public BlockUpdateListener(final CustomObserver plugin,
+                               final CustomLogger customLogger,
+                               final ObserverRegistry registry,
+                               final CustomObserverConfig config,
+                               final Metrics metrics) {
+        this.plugin = plugin;
+        this.customLogger = customLogger;
+
+        storage = registry.getStorage();
+        pulses = registry.getPulses();
+
+        timing = config.isMetricsTiming();
+        physicsTime = metrics.histogram("physics_handler_seconds", "Duration of block physics handling.");
+        redstoneTime = metrics.histogram("redstone_handler_seconds", "Duration of block redstone handling.");
+    }
+
+    // Registers the handlers now, if there are registrations, and on the next changes
+    public void register() {
+        storage.setOccupancyHandler(this::onOccupancyChange);
+        update();
+    }
+
+    public void close() {
+        storage.setOccupancyHandler(null);
+        synchronized (this) {
+            closed = true;
+            unregisterHandlers();
+        }
+    }
+
+    public void onBlockPhysics(final BlockPhysicsEvent event) {
+        if (event.isCancelled()) {
+            return;
+        }
+
+        final long start = timing ? System.nanoTime() : 0L;
+        handleBlockPhysics(event);
+        if (timing) {
+            physicsTime.record(System.nanoTime() - start);
+        }
+    }
+
+    public void onBlockRedstone(final BlockRedstoneEvent event) {
+        final long start = timing ? System.nanoTime() : 0L;
+        handleBlockRedstone(event);
+        if (timing) {
+            redstoneTime.record(System.nanoTime() - start);
+        }
+    }
+
+    private void handleBlockPhysics(final BlockPhysicsEvent event) {
+        final Block block = event.getBlock();
+        // Most events are of neighbours, they are rejected without the lock
+        if (!isSameBlock(event.getSourceBlock(), block)) {
+            return;
+        }
+
+        storage.lockRead();
+        try {
+            if (!storage.isChunkOccupied(block.getWorld(), block.getX() >> 4, block.getZ() >> 4)) {
+                return;
+            }
+
+            final SlotList found = foundSlots.get();
+            found.clear();
+            storage.findSlotsByTarget(block.getWorld(), block.getX(), block.getY(), block.getZ(), found);
+            if(found.size() == 0) {
+                return;
+            }
+            // Neighbour updates which haven't changed the target don't trigger,
+            // the state is a copy, so it's taken only for found targets
+            storage.retainChangedTargets(found, event.getChangedBlockData());
+            if (storage.hasFilters() && (found.size() > 0)) {
+                storage.retainMatchingTargets(found, event.getChangedType());
+            }
+            if(found.size() == 0) {
+                return;
+            }
+            pulses.trigger(found.array(), found.size());
+        } finally {
+            storage.unlockRead();
+        }
+
+        customLogger.debug("Changed %s", event.getSourceBlock());
+    }
+
+    private void handleBlockRedstone(final BlockRedstoneEvent event) {
+        final Block block = event.getBlock();
+        final boolean isUnregisteredPower;
+        storage.lockRead();
+        try {
+            if (!storage.isChunkOccupied(block.getWorld(), block.getX() >> 4, block.getZ() >> 4)) {
+                return;
+            }
+
+            final int slot = storage.getSlotByObserver(block);
+            isUnregisteredPower = (slot != NO_SLOT) && (storage.getPulseState(slot) != PulseEngine.HIGH);
+        } finally {
+            storage.unlockRead();
+        }
+
+        if(isUnregisteredPower && block.getType().equals(Material.OBSERVER)) {
+
+            event.setNewCurrent(0);
+            customLogger.debug("Cancelled %s", block);
+        }
+    }
+
+    // Called by the storage under its write lock
+    private void onOccupancyChange() {
+        if (plugin.getServer().isPrimaryThread()) {
+            update();
+        } else {
+            plugin.getServer().getScheduler().runTask(plugin, this::update);
+        }
+    }
+
+    // The state of the storage is read again, so late updates are harmless
+    private synchronized void update() {
+        if (closed) {
+            return;
+        }
+
+        if (storage.isEmpty()) {
+            unregisterHandlers();
+        } else if (!registered) {
+            final PluginManager pluginManager = plugin.getServer().getPluginManager();
+            pluginManager.registerEvent(BlockPhysicsEvent.class, this, EventPriority.NORMAL,
+                    (listener, event) -> {
+                        if (event instanceof BlockPhysicsEvent) {
+                            onBlockPhysics((BlockPhysicsEvent) event);
+                        }
+                    }, plugin);
+            pluginManager.registerEvent(BlockRedstoneEvent.class, this, EventPriority.NORMAL,
+                    (listener, event) -> {
+                        if (event instanceof BlockRedstoneEvent) {
+                            onBlockRedstone((BlockRedstoneEvent) event);
+                        }
+                    }, plugin);
+            registered = true;
+        }
+    }
+
+    private void unregisterHandlers() {
+        if (registered) {
+            BlockPhysicsEvent.getHandlerList().unregister(this);
+            BlockRedstoneEvent.getHandlerList().unregister(this);
+            registered = false;
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import com.gmail.uprial.customobserver.CustomObserver;
+import com.gmail.uprial.customobserver.common.BlockKey;
+import com.gmail.uprial.customobserver.common.CustomLogger;
+import com.gmail.uprial.customobserver.common.LongIntMap;
+import com.gmail.uprial.customobserver.metrics.Counter;
+import com.gmail.uprial.customobserver.metrics.Metrics;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.data.type.WallSign;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.Arrays;
+
+/*
+    Finds registrations whose observer or sign is gone without a break event,
+    e.g. after world edits or rollbacks.
+
+    A sweep copies the keys of the registrations of loaded regions,
+    sorted by world and chunk, and each tick takes snapshots
+    of a few chunks on the main thread. The blocks are checked in the background,
+    and only the confirmed removals come back to the main thread,
+    in one batch per tick of snapshots.
+
+    A sweep never loads chunks: registrations of unloaded chunks are skipped.
+    One batch is in flight at a time, so its arrays are owned by the thread
+    which runs it, and they are handed over by the scheduler.
+ */
+class IntegritySweep {
+    private static final int NO_SNAPSHOT = LongIntMap.NO_VALUE;
+    private static final int INITIAL_REGISTRATIONS = 64;
+
+    private final CustomObserver plugin;
+    private final CustomLogger customLogger;
+    private final ObserverStorage storage;
+
+    private final int chunksPerTick;
+    private final int interval;
+    private final BukkitTask task;
+
+    private final Counter sweeps;
+    private final Counter sweptChunks;
+    private final Counter removedRegistrations;
+
+    // Registrations of the current sweep
+    private int[] sweepWorlds = new int[INITIAL_REGISTRATIONS];
+    private long[] sweepObservers = new long[INITIAL_REGISTRATIONS];
+    private long[] sweepSigns = new long[INITIAL_REGISTRATIONS];
+    private int sweepSize = 0;
+    private int sweepCursor = 0;
+    private int ticksToSweep;
+
+    // The batch of one world
+    private int batchWorld;
+    private final ChunkSnapshot[] snapshots;
+    private int snapshotCount = 0;
+    // Chunk keys to snapshots
+    private final LongIntMap snapshotIndexes = new LongIntMap();
+    private long[] batchObservers = new long[INITIAL_REGISTRATIONS];
+    private long[] batchSigns = new long[INITIAL_REGISTRATIONS];
+    private int[] batchObserverSnapshots = new int[INITIAL_REGISTRATIONS];
+    private int[] batchSignSnapshots = new int[INITIAL_REGISTRATIONS];
+    private int batchSize = 0;
+    // Registrations of the batch confirmed as stale
+    private long[] staleObservers = new long[INITIAL_REGISTRATIONS];
+    private long[] staleSigns = new long[INITIAL_REGISTRATIONS];
+    private int staleCount = 0;
+
+    private boolean inFlight = false;
+    private volatile boolean closed = false;
+
+    IntegritySweep(final CustomObserver plugin,
+                   final CustomLogger customLogger,
+                   final ObserverStorage storage,
+                   final int interval,
+                   final int chunksPerTick,
+                   final Metrics metrics) {
+        this.plugin = plugin;
+        this.customLogger = customLogger;
+        this.storage = storage;
+        this.interval = interval * 20;
+        this.chunksPerTick = chunksPerTick;
+
+        sweeps = metrics.counter("sweeps", "Integrity sweeps finished.");
+        sweptChunks = metrics.counter("sweep_chunks", "Chunks checked by integrity sweeps.");
+        removedRegistrations = metrics.counter("sweep_removed", "Stale registrations removed by integrity sweeps.");
+
+        // A registration may need snapshots of two chunks
+        snapshots = new ChunkSnapshot[Math.max(chunksPerTick, 2)];
+        ticksToSweep = this.interval;
+
+        task = plugin.getServer().getScheduler().runTaskTimer(plugin, this::tick, 1, 1);
+    }
+
+    void close() {
+        task.cancel();
+        // The batch in flight is dropped
+        closed = true;
+    }
+
+    private void tick() {
+        if (inFlight) {
+            return;
+        }
+
+        if (sweepCursor == sweepSize) {
+            if (ticksToSweep > 0) {
+                ticksToSweep--;
+                return;
+            }
+            startSweep();
+        }
+
+        if (takeBatch()) {
+            inFlight = true;
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, this::checkBatch);
+        }
+        if (sweepCursor == sweepSize) {
+            finishSweep();
+        }
+    }
+
+    private void startSweep() {
+        sweepSize = 0;
+        sweepCursor = 0;
+        storage.forEach(this::addRegistration);
+        sort(0, sweepSize - 1);
+    }
+
+    private void finishSweep() {
+        sweeps.inc();
+        ticksToSweep = interval;
+        // The sweep of a large registry shouldn't hold its memory until the next one
+        if (sweepWorlds.length > INITIAL_REGISTRATIONS) {
+            sweepWorlds = new int[INITIAL_REGISTRATIONS];
+            sweepObservers = new long[INITIAL_REGISTRATIONS];
+            sweepSigns = new long[INITIAL_REGISTRATIONS];
+        }
+        sweepSize = 0;
+        sweepCursor = 0;
+    }
+
+    private void addRegistration(final int worldId, final long observer, final long sign) {
+        if (sweepSize == sweepWorlds.length) {
+            final int capacity = sweepSize << 1;
+            sweepWorlds = Arrays.copyOf(sweepWorlds, capacity);
+            sweepObservers = Arrays.copyOf(sweepObservers, capacity);
+            sweepSigns = Arrays.copyOf(sweepSigns, capacity);
+        }
+        sweepWorlds[sweepSize] = worldId;
+        sweepObservers[sweepSize] = observer;
+        sweepSigns[sweepSize] = sign;
+        sweepSize++;
+    }
+
+    // Returns false if the batch is empty
+    private boolean takeBatch() {
+        snapshotIndexes.clear();
+        snapshotCount = 0;
+        batchSize = 0;
+
+        while ((batchSize == 0) && (sweepCursor < sweepSize)) {
+            batchWorld = sweepWorlds[sweepCursor];
+            final World world = storage.getWorld(batchWorld);
+
+            while ((sweepCursor < sweepSize) && (sweepWorlds[sweepCursor] == batchWorld)) {
+                final long observer = sweepObservers[sweepCursor];
+                final long sign = sweepSigns[sweepCursor];
+                if (world == null) {
+                    // The world has been unloaded with its registrations
+                    sweepCursor++;
+                    continue;
+                }
+
+                final long observerChunk = BlockKey.getChunkKey(observer);
+                final long signChunk = BlockKey.getChunkKey(sign);
+                int needed = snapshotIndexes.containsKey(observerChunk) ? 0 : 1;
+                if ((signChunk != observerChunk) && !snapshotIndexes.containsKey(signChunk)) {
+                    needed++;
+                }
+                if ((snapshotCount > 0) && (snapshotCount + needed > chunksPerTick)) {
+                    // The rest is for the next ticks
+                    return batchSize > 0;
+                }
+                sweepCursor++;
+
+                final int observerSnapshot = getSnapshot(world, observer);
+                if (observerSnapshot == NO_SNAPSHOT) {
+                    continue;
+                }
+                final int signSnapshot = getSnapshot(world, sign);
+                if (signSnapshot != NO_SNAPSHOT) {
+                    addToBatch(observer, sign, observerSnapshot, signSnapshot);
+                }
+            }
+        }
+
+        return batchSize > 0;
+    }
+
+    // NO_SNAPSHOT if the chunk of the block isn't loaded
+    private int getSnapshot(final World world, final long key) {
+        final long chunkKey = BlockKey.getChunkKey(key);
+        final int snapshot = snapshotIndexes.get(chunkKey);
+        if (snapshot != NO_SNAPSHOT) {
+            return snapshot;
+        }
+
+        final int chunkX = BlockKey.getX(key) >> 4;
+        final int chunkZ = BlockKey.getZ(key) >> 4;
+        if (!world.isChunkLoaded(chunkX, chunkZ)) {
+            return NO_SNAPSHOT;
+        }
+
+        snapshots[snapshotCount] = world.getChunkAt(chunkX, chunkZ).getChunkSnapshot(false, false, false);
+        snapshotIndexes.put(chunkKey, snapshotCount);
+        sweptChunks.inc();
+        return snapshotCount++;
+    }
+
+    private void addToBatch(final long observer, final long sign,
+                            final int observerSnapshot, final int signSnapshot) {
+        if (batchSize == batchObservers.length) {
+            final int capacity = batchSize << 1;
+            batchObservers = Arrays.copyOf(batchObservers, capacity);
+            batchSigns = Arrays.copyOf(batchSigns, capacity);
+            batchObserverSnapshots = Arrays.copyOf(batchObserverSnapshots, capacity);
+            batchSignSnapshots = Arrays.copyOf(batchSignSnapshots, capacity);
+        }
+        batchObservers[batchSize] = observer;
+        batchSigns[batchSize] = sign;
+        batchObserverSnapshots[batchSize] = observerSnapshot;
+        batchSignSnapshots[batchSize] = signSnapshot;
+        batchSize++;
+    }
+
+    // Runs in the background
+    private void checkBatch() {
+        staleCount = 0;
+        for (int i = 0; i < batchSize; i++) {
+            if (isBlock(snapshots[batchObserverSnapshots[i]], batchObservers[i], false)
+                    && isBlock(snapshots[batchSignSnapshots[i]], batchSigns[i], true)) {
+                continue;
+            }
+
+            if (staleCount == staleObservers.length) {
+                staleObservers = Arrays.copyOf(staleObservers, staleCount << 1);
+                staleSigns = Arrays.copyOf(staleSigns, staleCount << 1);
+            }
+            staleObservers[staleCount] = batchObservers[i];
+            staleSigns[staleCount] = batchSigns[i];
+            staleCount++;
+        }
+        // Snapshots hold the block data of whole chunks
+        Arrays.fill(snapshots, 0, snapshotCount, null);
+
+        if (!closed) {
+            plugin.getServer().getScheduler().runTask(plugin, this::removeStale);
+        }
+    }
+
+    private static boolean isBlock(final ChunkSnapshot snapshot, final long key, final boolean isSign) {
+        final int x = BlockKey.getX(key) & 15;
+        final int y = BlockKey.getY(key);
+        final int z = BlockKey.getZ(key) & 15;
+        if (isSign) {
+            return snapshot.getBlockData(x, y, z) instanceof WallSign;
+        } else {
+            return snapshot.getBlockType(x, y, z).equals(Material.OBSERVER);
+        }
+    }
+
+    private void removeStale() {
+        inFlight = false;
+        if (closed || (staleCount == 0)) {
+            return;
+        }
+
+        final World world = storage.getWorld(batchWorld);
+        if (world == null) {
+            return;
+        }
+
+        // The blocks may have been restored since the snapshots were taken
+        int count = 0;
+        for (int i = 0; i < staleCount; i++) {
+            if (!isRestored(world, staleObservers[i], staleSigns[i])) {
+                staleObservers[count] = staleObservers[i];
+                staleSigns[count] = staleSigns[i];
+                count++;
+            }
+        }
+
+        // Registrations changed since the snapshots are kept by the storage
+        final int removed = storage.removeAll(batchWorld, staleObservers, staleSigns, count);
+        if (removed == 0) {
+            return;
+        }
+        removedRegistrations.add(removed);
+
+        for (int i = 0; i < removed; i++) {
+            customLogger.info("OBSERVER[%s] removed: no observer or sign",
+                    new Location(world, BlockKey.getX(staleObservers[i]),
+                            BlockKey.getY(staleObservers[i]), BlockKey.getZ(staleObservers[i])));
+        }
+    }
+
+    private static boolean isRestored(final World world, final long observer, final long sign) {
+        if (!world.isChunkLoaded(BlockKey.getX(observer) >> 4, BlockKey.getZ(observer) >> 4)
+                || !world.isChunkLoaded(BlockKey.getX(sign) >> 4, BlockKey.getZ(sign) >> 4)) {
+            return false;
+        }
+        return world.getBlockAt(BlockKey.getX(observer), BlockKey.getY(observer), BlockKey.getZ(observer))
+                    .getType().equals(Material.OBSERVER)
+                && (world.getBlockAt(BlockKey.getX(sign), BlockKey.getY(sign), BlockKey.getZ(sign))
+                    .getBlockData() instanceof WallSign);
+    }
+
+    // Quicksort of the registrations by world and chunk, without boxing
+    private void sort(int low, int high) {
+        while (low < high) {
+            final int pivot = (low + high) >>> 1;
+            final int pivotWorld = sweepWorlds[pivot];
+            final long pivotChunk = BlockKey.getChunkKey(sweepObservers[pivot]);
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (compare(i, pivotWorld, pivotChunk) < 0) {
+                    i++;
+                }
+                while (compare(j, pivotWorld, pivotChunk) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            // Recurse into the smaller part to keep the stack small
+            if (j - low < high - i) {
+                sort(low, j);
+                low = i;
+            } else {
+                sort(i, high);
+                high = j;
+            }
+        }
+    }
+
+    private int compare(final int i, final int world, final long chunk) {
+        if (sweepWorlds[i] != world) {
+            return Integer.compare(sweepWorlds[i], world);
+        }
+        return Long.compare(BlockKey.getChunkKey(sweepObservers[i]), chunk);
+    }
+
+    private void swap(final int i, final int j) {
+        final int world = sweepWorlds[i];
+        sweepWorlds[i] = sweepWorlds[j];
+        sweepWorlds[j] = world;
+        final long observer = sweepObservers[i];
+        sweepObservers[i] = sweepObservers[j];
+        sweepObservers[j] = observer;
+        final long sign = sweepSigns[i];
+        sweepSigns[i] = sweepSigns[j];
+        sweepSigns[j] = sign;
+    }
+}
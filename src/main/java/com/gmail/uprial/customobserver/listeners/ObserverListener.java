@@ -1,10 +1,17 @@
 package com.gmail.uprial.customobserver.listeners;
 
 import com.gmail.uprial.customobserver.CustomObserver;
+import com.gmail.uprial.customobserver.CustomObserverConfig;
+import com.gmail.uprial.customobserver.common.BlockKey;
 import com.gmail.uprial.customobserver.common.CustomLogger;
+import com.gmail.uprial.customobserver.common.MaterialFilter;
+import com.gmail.uprial.customobserver.metrics.Histogram;
+import com.gmail.uprial.customobserver.metrics.Metrics;
 import org.bukkit.ChatColor;
+import org.bukkit.Chunk;
 import org.bukkit.Location;
 import org.bukkit.Material;
+import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 import org.bukkit.block.data.type.Observer;
@@ -15,24 +22,49 @@ import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.*;
 import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
 
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static com.gmail.uprial.customobserver.common.Formatter.format;
+import static com.gmail.uprial.customobserver.listeners.ObserverStorage.NO_SLOT;
 import static com.gmail.uprial.customobserver.common.Utils.joinStrings;
 
 public class ObserverListener implements Listener {
+    // An area line of the sign: the area size along X, Y and Z, e.g. 5x3x5
+    private static final Pattern AREA_PATTERN = Pattern.compile("^\\s*(\\d{1,3})x(\\d{1,3})x(\\d{1,3})\\s*$",
+            Pattern.CASE_INSENSITIVE);
+    private static final int MAX_AREA_SIZE = 32;
+
     private final CustomObserver plugin;
     private final CustomLogger customLogger;
 
     private final ObserverStorage storage;
+    private final PulseEngine pulses;
+
+    // Events of different regions may come from different threads
+    private final ThreadLocal<SlotList> brokenSlots = ThreadLocal.withInitial(SlotList::new);
+
+    private final boolean timing;
+    private final Histogram breakTime;
 
     public ObserverListener(final CustomObserver plugin,
-                            final CustomLogger customLogger) {
+                            final CustomLogger customLogger,
+                            final ObserverRegistry registry,
+                            final CustomObserverConfig config,
+                            final Metrics metrics) {
         this.plugin = plugin;
         this.customLogger = customLogger;
 
-        storage = new ObserverStorage(plugin, customLogger);
+        storage = registry.getStorage();
+        pulses = registry.getPulses();
+
+        timing = config.isMetricsTiming();
+        breakTime = metrics.histogram("break_handler_seconds", "Duration of block break handling.");
     }
 
     @EventHandler(priority = EventPriority.NORMAL)
@@ -62,7 +94,21 @@ public class ObserverListener implements Listener {
         }
 
         Integer distance = null;
+        int[] areaSize = null;
+        String filterLine = null;
         for (final String line : event.getLines()) {
+            if (MaterialFilter.isFilter(line)) {
+                filterLine = line;
+                continue;
+            }
+
+            final Matcher matcher = AREA_PATTERN.matcher(line);
+            if (matcher.matches()) {
+                areaSize = new int[]{Integer.valueOf(matcher.group(1)),
+                        Integer.valueOf(matcher.group(2)), Integer.valueOf(matcher.group(3))};
+                continue;
+            }
+
             final int tmpDistance;
             try {
                 tmpDistance = Integer.valueOf(line);
@@ -79,73 +125,104 @@ public class ObserverListener implements Listener {
                     joinStrings("|", Arrays.asList(event.getLines()))));
             return;
         } else if (distance < 2) {
-            customLogger.debug(String.format("No natural distance: %d", distance));
+            customLogger.debug("No natural distance: %d", distance);
             return;
         } else if (distance > plugin.getServer().getViewDistance() * 16) {
-            customLogger.debug(String.format("Too big distance: %d", distance));
+            customLogger.debug("Too big distance: %d", distance);
+            return;
+        }
+
+        if (areaSize != null) {
+            for (final int size : areaSize) {
+                if ((size < 1) || (size > MAX_AREA_SIZE)) {
+                    customLogger.debug("Wrong area size: %d", size);
+                    return;
+                }
+            }
+        }
+
+        // Compiled once, the triggers only test a bit
+        final MaterialFilter filter = (filterLine != null) ? MaterialFilter.parse(filterLine) : null;
+        if ((filterLine != null) && (filter == null)) {
+            customLogger.debug("Wrong material filter: %s", filterLine);
             return;
         }
 
         final BlockFace observerFacing = ((Observer) observer.getBlockData()).getFacing();
         if (Math.abs(observerFacing.getModX() + observerFacing.getModY() + observerFacing.getModZ()) != 1) {
-            customLogger.debug(String.format("Wrong observer facing: %s", observerFacing));
+            customLogger.debug("Wrong observer facing: %s", observerFacing);
             return;
         }
 
-        final Location otherSignLocation = storage.getSignLocationByObserver(observer.getLocation());
-        if(otherSignLocation != null) {
-            if(!otherSignLocation.equals(sign.getLocation())) {
-                event.getPlayer().sendMessage(ChatColor.RED +
-                        String.format("Another sign already exists: %s",
-                                format(sign)));
-                customLogger.info(
-                        String.format("Another sign already exists for %s: %s",
-                                format(event.getPlayer()), format(sign)));
-                event.setCancelled(true);
-                return;
-            }
+        final Block center = getBlockInDirection(observer, observerFacing, distance);
+        final Block target;
+        final Block targetMax;
+        if (areaSize != null) {
+            // The area is centered at the aimed block
+            target = center.getRelative(-(areaSize[0] - 1) / 2, -(areaSize[1] - 1) / 2, -(areaSize[2] - 1) / 2);
+            targetMax = target.getRelative(areaSize[0] - 1, areaSize[1] - 1, areaSize[2] - 1);
+        } else {
+            target = center;
+            targetMax = center;
         }
 
-        final Block target = getBlockInDirection(observer, observerFacing, distance);
-
-        event.getPlayer().sendMessage(
-                String.format("Aimed %s at %s",
-                        format(observer), format(target)));
-        customLogger.info(
-                String.format("Aimed %s at %s by %s",
-                        format(observer), format(target), format(event.getPlayer())));
-
-        storage.add(observer.getLocation(), sign.getLocation(), target.getLocation());
+        if (!registerWhenLoaded(event.getPlayer(), observer, sign, target, targetMax, filter)) {
+            event.setCancelled(true);
+        }
     }
 
-    @EventHandler(priority = EventPriority.NORMAL)
-    public void onBlockPhysics(final BlockPhysicsEvent event) {
-        if (event.isCancelled()) {
-            return;
+    /*
+        The registrations around the observer may be not loaded yet, then the registration
+        is queued. The sign can't be cancelled later, so a conflict is only reported.
+     */
+    private boolean registerWhenLoaded(final Player player, final Block observer, final Block sign,
+                                       final Block target, final Block targetMax, final MaterialFilter filter) {
+        // The sign may be in the region next to the observer
+        if (storage.deferUntilLoaded(observer.getWorld(), observer.getX() - 1, observer.getZ() - 1,
+                observer.getX() + 1, observer.getZ() + 1,
+                () -> registerWhenLoaded(player, observer, sign, target, targetMax, filter))) {
+            return true;
         }
+        return register(player, observer, sign, target, targetMax, filter);
+    }
 
-        if (!event.getSourceBlock().getLocation().equals(event.getBlock().getLocation())) {
-            return;
+    private boolean register(final Player player, final Block observer, final Block sign,
+                             final Block target, final Block targetMax, final MaterialFilter filter) {
+        storage.lockWrite();
+        try {
+            return registerLocked(player, observer, sign, target, targetMax, filter);
+        } finally {
+            storage.unlockWrite();
         }
+    }
 
-        final Location observerLocation = storage.getObserverLocationByTarget(event.getSourceBlock().getLocation());
-        if(observerLocation == null) {
-            return;
+    private boolean registerLocked(final Player player, final Block observer, final Block sign,
+                                   final Block target, final Block targetMax, final MaterialFilter filter) {
+        final int otherSlot = storage.getSlotByObserver(observer);
+        if(otherSlot != NO_SLOT) {
+            if(storage.getSignKey(otherSlot) != BlockKey.pack(sign)) {
+                player.sendMessage(ChatColor.RED +
+                        String.format("Another sign already exists: %s",
+                                format(sign)));
+                customLogger.info("Another sign already exists for %s: %s", player, sign);
+                return false;
+            }
         }
 
-        /*
-            According to https://minecraft.wiki/w/Observer,
-            When it detects something,
-            the observer emits a redstone pulse ... for 2 game ticks.
-            ...
-            the pulse is emitted with a delay of 2 game ticks.
-         */
-        schedule(() -> setPowered(observerLocation, true,
-                () -> schedule(() -> setPowered(observerLocation, false, () -> {}),
-                        2)),
-                2);
+        String targetName = isSameBlock(target, targetMax)
+                ? format(target)
+                : String.format("%s..%s", format(target.getLocation()), format(targetMax.getLocation()));
+        if (filter != null) {
+            targetName = String.format("%s [%s]", targetName, filter);
+        }
+        player.sendMessage(
+                String.format("Aimed %s at %s",
+                        format(observer), targetName));
+        customLogger.info("Aimed %s at %s by %s", observer, targetName, player);
 
-        customLogger.debug(String.format("Changed %s", format(event.getSourceBlock())));
+        storage.add(observer.getLocation(), sign.getLocation(), target.getLocation(), targetMax.getLocation(),
+                filter);
+        return true;
     }
 
     @EventHandler(priority = EventPriority.NORMAL)
@@ -185,98 +262,187 @@ public class ObserverListener implements Listener {
         }
     }
 
-    @EventHandler(priority = EventPriority.NORMAL)
-    public void onBlockRedstone(final BlockRedstoneEvent event) {
-        final Block block = event.getBlock();
-        if(block.getType().equals(Material.OBSERVER)
-            && storage.isObserverLocation(block.getLocation())
-            && !isPowered(block.getLocation())) {
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(final ChunkLoadEvent event) {
+        final Chunk chunk = event.getChunk();
+        storage.onChunkLoad(event.getWorld(), chunk.getX(), chunk.getZ());
+        // The deferred edges of the chunk run after its registrations are inserted
+        onChunkLoaded(event.getWorld(), storage.getWorldId(event.getWorld()), chunk.getX(), chunk.getZ());
+    }
 
-            event.setNewCurrent(0);
-            customLogger.debug(String.format("Cancelled %s", format(block)));
+    private void onChunkLoaded(final World world, final int worldId, final int chunkX, final int chunkZ) {
+        if (!storage.deferUntilLoaded(world, chunkX << 4, chunkZ << 4, chunkX << 4, chunkZ << 4,
+                () -> onChunkLoaded(world, worldId, chunkX, chunkZ))) {
+            pulses.onChunkLoad(worldId, chunkX, chunkZ);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(final ChunkUnloadEvent event) {
+        final Chunk chunk = event.getChunk();
+        storage.onChunkUnload(event.getWorld(), chunk.getX(), chunk.getZ());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldUnload(final WorldUnloadEvent event) {
+        if (!event.isCancelled()) {
+            storage.onWorldUnload(event.getWorld());
         }
     }
 
     private void onBreak(final List<Block> blocks) {
+        if (blocks.isEmpty()) {
+            return;
+        }
+
+        final World world = blocks.get(0).getWorld();
+        int minX = Integer.MAX_VALUE;
+        int minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxZ = Integer.MIN_VALUE;
         for (final Block block : blocks) {
-            onBreak(block, null);
+            minX = Math.min(minX, block.getX());
+            minZ = Math.min(minZ, block.getZ());
+            maxX = Math.max(maxX, block.getX());
+            maxZ = Math.max(maxZ, block.getZ());
         }
-    }
 
-    private final Set<Location> powered = new HashSet<>();
+        if (storage.isLoading()) {
+            // The event list may be changed after the event
+            final List<Block> copy = new ArrayList<>(blocks);
+            // A sign may be in the region next to its observer
+            if (storage.deferUntilLoaded(world, minX - 1, minZ - 1, maxX + 1, maxZ + 1, () -> onBreak(copy))) {
+                return;
+            }
+        }
 
-    private void onBreak(final Block block, final Player player) {
-        Location observerLocation = storage.getObserverLocationBySign(block.getLocation());
-        String verb = null;
+        final long start = timing ? System.nanoTime() : 0L;
+        breakBlocks(world, blocks, minX, minZ, maxX, maxZ);
+        if (timing) {
+            breakTime.record(System.nanoTime() - start);
+        }
+    }
 
-        if(observerLocation != null) {
-            storage.remove(observerLocation);
-            verb = "deactivated";
-        } else if (storage.isObserverLocation(block.getLocation())) {
-            observerLocation = block.getLocation();
-            block.getWorld()
-                    .getBlockAt(storage.getSignLocationByObserver(observerLocation))
-                    .breakNaturally();
+    private void onBreak(final Block block, final Player player) {
+        // A sign may be in the region next to its observer
+        if (storage.deferUntilLoaded(block.getWorld(), block.getX() - 1, block.getZ() - 1,
+                block.getX() + 1, block.getZ() + 1, () -> onBreak(block, player))) {
+            return;
+        }
 
-            storage.remove(observerLocation);
-            verb = "broken";
+        final long start = timing ? System.nanoTime() : 0L;
+        breakBlock(block, player);
+        if (timing) {
+            breakTime.record(System.nanoTime() - start);
         }
+    }
 
-        if(verb != null) {
-            powered.remove(observerLocation);
+    private void breakBlock(final Block block, final Player player) {
+        storage.lockRead();
+        try {
+            if (!storage.isChunkOccupied(block.getWorld(), block.getX() >> 4, block.getZ() >> 4)) {
+                return;
+            }
+        } finally {
+            storage.unlockRead();
+        }
 
-            if (player != null) {
-                customLogger.info(String.format("OBSERVER[%s] %s by %s",
-                        format(observerLocation), verb, format(player)));
-            } else {
-                customLogger.info(String.format("OBSERVER[%s] %s",
-                        format(observerLocation), verb));
+        storage.lockWrite();
+        try {
+            final int slot = getSlotBySignOrObserver(block.getWorld(), block.getX(), block.getY(), block.getZ());
+            if (slot != NO_SLOT) {
+                deactivate(block, slot, player);
+                storage.remove(slot);
             }
+        } finally {
+            storage.unlockWrite();
         }
     }
 
-    private void setPowered(final Location observerLocation,
-                            final boolean isPowered,
-                            final Runnable callback) {
-        final Block observer = observerLocation.getWorld().getBlockAt(observerLocation);
-        if (!observer.getType().equals(Material.OBSERVER)) {
-            customLogger.error(String.format("No observer: %s", format(observer)));
-            storage.remove(observerLocation);
-            return;
+    /*
+        Explosions and pistons break many blocks of one world at once.
+        If no chunk of their bounding box has registrations, the list is skipped.
+        Otherwise, only blocks in occupied chunks are looked up,
+        and all the removals are committed with one flush.
+     */
+    private void breakBlocks(final World world, final List<Block> blocks,
+                             final int minX, final int minZ, final int maxX, final int maxZ) {
+        storage.lockRead();
+        try {
+            if (!storage.isAnyChunkOccupied(world, minX >> 4, minZ >> 4, maxX >> 4, maxZ >> 4)) {
+                return;
+            }
+        } finally {
+            storage.unlockRead();
         }
 
-        final Observer observerData = (Observer) observer.getBlockData();
-        if(observerData.isPowered() != isPowered) {
-            /*
-                Order is important, because in onBlockRedstone
-                I cancel unregistered power attempts.
-             */
-            if(isPowered) {
-                if (powered.contains(observerLocation)) {
-                    customLogger.error(String.format("Already powered: %s", format(observer)));
-                }
-                powered.add(observerLocation);
+        storage.lockWrite();
+        try {
+            breakBlocksLocked(world, blocks);
+        } finally {
+            storage.unlockWrite();
+        }
+    }
+
+    private void breakBlocksLocked(final World world, final List<Block> blocks) {
+        final SlotList broken = brokenSlots.get();
+        broken.clear();
+        for (final Block block : blocks) {
+            if (!storage.isChunkOccupied(world, block.getX() >> 4, block.getZ() >> 4)) {
+                continue;
+            }
+            final int slot = getSlotBySignOrObserver(world, block.getX(), block.getY(), block.getZ());
+            // Both the observer and the sign can be in the list
+            if ((slot == NO_SLOT) || broken.contains(slot)) {
+                continue;
             }
 
-            observerData.setPowered(isPowered);
-            observer.setBlockData(observerData);
+            deactivate(block, slot, null);
+            broken.add(slot);
+        }
 
-            if(!isPowered) {
-                if(!powered.contains(observerLocation)) {
-                    customLogger.error(String.format("Already not powered: %s", format(observer)));
-                }
-                powered.remove(observerLocation);
-            }
+        if (broken.size() > 0) {
+            storage.removeAll(broken.array(), broken.size());
+        }
+    }
 
-            customLogger.debug(String.format("%s power set to %b",
-                    format(observer), isPowered));
+    private int getSlotBySignOrObserver(final World world, final int x, final int y, final int z) {
+        final int slot = storage.getSlotBySign(world, x, y, z);
+        if (slot != NO_SLOT) {
+            return slot;
+        } else {
+            return storage.getSlotByObserver(world, x, y, z);
+        }
+    }
 
-            callback.run();
+    // The caller removes the registration
+    private void deactivate(final Block block, final int slot, final Player player) {
+        final Location observerLocation;
+        final String verb;
+
+        if(storage.getSignKey(slot) == BlockKey.pack(block)) {
+            observerLocation = storage.getObserverLocation(slot);
+            verb = "deactivated";
+        } else {
+            observerLocation = block.getLocation();
+            block.getWorld()
+                    .getBlockAt(storage.getSignLocation(slot))
+                    .breakNaturally();
+
+            verb = "broken";
+        }
+
+        if (player != null) {
+            customLogger.info("OBSERVER[%s] %s by %s", observerLocation, verb, player);
+        } else {
+            customLogger.info("OBSERVER[%s] %s", observerLocation, verb);
         }
     }
 
-    private boolean isPowered(final Location observerLocation) {
-        return powered.contains(observerLocation);
+    static boolean isSameBlock(final Block block1, final Block block2) {
+        return (block1.getX() == block2.getX())
+                && (block1.getY() == block2.getY())
+                && (block1.getZ() == block2.getZ());
     }
 
     private Block getBlockInDirection(final Block block,
@@ -287,8 +453,4 @@ public class ObserverListener implements Listener {
                 block.getY() + direction.getModY() * distance,
                 block.getZ() + direction.getModZ() * distance);
     }
-
-    private void schedule(final Runnable runnable, long delay) {
-        plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, runnable, delay);
-    }
-}
\ No newline at end of file
+}
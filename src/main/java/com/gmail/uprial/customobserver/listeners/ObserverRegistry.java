@@ -0,0 +1,80 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import com.gmail.uprial.customobserver.CustomObserver;
+import com.gmail.uprial.customobserver.CustomObserverConfig;
+import com.gmail.uprial.customobserver.common.CustomLogger;
+import com.gmail.uprial.customobserver.metrics.Metrics;
+
+/*
+    The registrations, their pulse engine and the integrity sweep.
+
+    They outlive reloads of the config: a reload creates a new listener
+    over the same registry and applies only the changed options,
+    so the registrations aren't read from disk again,
+    and pulses in flight are finished by the same engine.
+ */
+public class ObserverRegistry {
+    private final CustomObserver plugin;
+    private final CustomLogger customLogger;
+    private final Metrics metrics;
+
+    private final ObserverStorage storage;
+    private final PulseEngine pulses;
+    // null if the sweep is disabled
+    private IntegritySweep sweep;
+
+    private CustomObserverConfig config;
+
+    public ObserverRegistry(final CustomObserver plugin,
+                            final CustomLogger customLogger,
+                            final CustomObserverConfig config,
+                            final Metrics metrics) {
+        this.plugin = plugin;
+        this.customLogger = customLogger;
+        this.metrics = metrics;
+        this.config = config;
+
+        storage = new ObserverStorage(plugin, customLogger, config, metrics);
+        pulses = new PulseEngine(plugin, customLogger, storage, config, metrics);
+        sweep = createSweep(config);
+    }
+
+    public void applyConfig(final CustomObserverConfig config) {
+        storage.applyConfig(config);
+        pulses.applyConfig(config);
+
+        if ((config.isSweep() != this.config.isSweep())
+                || (config.getSweepInterval() != this.config.getSweepInterval())
+                || (config.getSweepChunksPerTick() != this.config.getSweepChunksPerTick())) {
+            if (sweep != null) {
+                sweep.close();
+            }
+            sweep = createSweep(config);
+        }
+
+        this.config = config;
+    }
+
+    public void close() {
+        if (sweep != null) {
+            sweep.close();
+        }
+        pulses.close();
+        storage.close();
+    }
+
+    ObserverStorage getStorage() {
+        return storage;
+    }
+
+    PulseEngine getPulses() {
+        return pulses;
+    }
+
+    private IntegritySweep createSweep(final CustomObserverConfig config) {
+        return config.isSweep()
+                ? new IntegritySweep(plugin, customLogger, storage,
+                    config.getSweepInterval(), config.getSweepChunksPerTick(), metrics)
+                : null;
+    }
+}
@@ -1,152 +1,1163 @@
 package com.gmail.uprial.customobserver.listeners;
 
 import com.gmail.uprial.customobserver.CustomObserver;
+import com.gmail.uprial.customobserver.CustomObserverConfig;
+import com.gmail.uprial.customobserver.common.BlockKey;
 import com.gmail.uprial.customobserver.common.CustomLogger;
-import com.gmail.uprial.customobserver.storage.CustomStorage;
-import com.gmail.uprial.customobserver.storage.StorageData;
-import org.apache.commons.lang.StringUtils;
+import com.gmail.uprial.customobserver.common.LongIntMap;
+import com.gmail.uprial.customobserver.common.MaterialFilter;
+import com.gmail.uprial.customobserver.metrics.Counter;
+import com.gmail.uprial.customobserver.metrics.Gauge;
+import com.gmail.uprial.customobserver.metrics.Histogram;
+import com.gmail.uprial.customobserver.metrics.Metrics;
+import com.gmail.uprial.customobserver.storage.CustomJournal;
+import com.gmail.uprial.customobserver.storage.RegistryData;
+import com.gmail.uprial.customobserver.storage.RegistryStorage;
+import org.bukkit.Chunk;
 import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.scheduler.BukkitTask;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/*
+    Registrations live in slots of parallel primitive arrays,
+    and each world has primitive indexes from packed block keys to slots.
+
+    Event handlers look up blocks by world and coordinates,
+    without allocations and boxing. Locations are used only at the API edge.
+
+    A target is a single block or a cuboid area. Areas are kept
+    in a separate per-chunk index, see AreaIndex.
+    Many observers can watch the same target block: the target index
+    points to the first slot of a list of the slots with that target.
+
+    Each world also counts indexed blocks per chunk, so events in chunks
+    without registrations are rejected by one small-map lookup.
+
+    Like vanilla observers, registrations trigger only on changes of the state
+    of the target block, so each slot keeps the last seen state of its target.
+    States of single target blocks are also linked into per-chunk lists,
+    so a chunk load reads again only the targets of that chunk.
+    A registration may also have a material filter of the target, see MaterialFilter.
+
+    Registrations are loaded per region of 32x32 chunks, when the first
+    chunk of the region is loaded, and evicted when the last one is unloaded,
+    so the memory and the startup time depend on the loaded area only.
+    A region is read in the background, so a chunk load never waits for the disk,
+    and inserted on the main thread. Until then, actions on its blocks are queued,
+    see deferUntilLoaded().
+    Slots of each region are linked into a list for the eviction.
+
+    At startup, the regions of the loaded chunks are read in the background,
+    and only the final insert into the indexes happens on the main thread.
+    Until then, the indexes are empty and actions which need them are queued.
+
+    In the write-behind mode, changes are only queued on the main thread
+    and flushed by a background task on an interval and on close.
+    Otherwise, a change is flushed when the write lock is released,
+    so lookups of other threads never wait for the disk.
+    In the journal mode, a flush appends only the changes to a log.
+
+    Events may come from other threads than the main one,
+    so the indexes are guarded by a single read-write lock: lookups of many threads
+    run at once, and changes are exclusive. Slots are valid only under the lock,
+    so methods which take or return slots need the caller to hold it,
+    and methods which take keys, worlds or locations take it by themselves.
+    Pulse states are atomic, so a pulse can be started under the read lock.
+
+    The lock is not striped: the slots and the indexes are shared by all
+    the worlds and regions, so changes of all of them are serialized, and
+    lookups take the read lock too. This makes concurrent events safe,
+    but it doesn't let events of different regions run in parallel,
+    as a region-threaded server would need. Pulses are applied
+    by one task of the main thread too, see PulseEngine.
+ */
 class ObserverStorage {
+    static final int NO_SLOT = LongIntMap.NO_VALUE;
+
+    private static final int NO_WORLD = -1;
+    private static final int INITIAL_SLOTS = 16;
+
     private final CustomObserver plugin;
     private final CustomLogger customLogger;
 
-    private static final String KEY_DELIMITER = ":";
+    private final RegistryStorage registryStorage;
+    // null if the write-behind mode is disabled, replaced on reloads
+    private volatile BukkitTask flushTask;
+    // Applied storage options
+    private boolean writeBehind;
+    private int flushInterval;
+    private boolean journal;
+    private int compactionSize;
+    private int compactionInterval;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Set by changes under the write lock, which are flushed after it's released
+    private final AtomicBoolean flushPending = new AtomicBoolean(false);
+
+    // Copied on write, so it's read without the lock
+    private volatile WorldIndex[] worldIndexes = new WorldIndex[0];
+
+    private int[] slotWorlds = new int[INITIAL_SLOTS];
+    private long[] slotObservers = new long[INITIAL_SLOTS];
+    private long[] slotSigns = new long[INITIAL_SLOTS];
+    // Opposite corners of the target area, equal for a single target block
+    private long[] slotTargets = new long[INITIAL_SLOTS];
+    private long[] slotTargetMaxs = new long[INITIAL_SLOTS];
+    // Last seen states of single target blocks, null if unknown
+    private BlockData[] slotTargetStates = new BlockData[INITIAL_SLOTS];
+    // null if the registration has no filter
+    private MaterialFilter[] slotFilters = new MaterialFilter[INITIAL_SLOTS];
+    // Region lists of slots
+    private int[] slotPrevs = new int[INITIAL_SLOTS];
+    private int[] slotNexts = new int[INITIAL_SLOTS];
+    // Target lists of slots with single target blocks
+    private int[] slotTargetPrevs = new int[INITIAL_SLOTS];
+    private int[] slotTargetNexts = new int[INITIAL_SLOTS];
+    // Chunk lists of slots with single target blocks
+    private int[] slotChunkPrevs = new int[INITIAL_SLOTS];
+    private int[] slotChunkNexts = new int[INITIAL_SLOTS];
+    // Pulse states of observers, see PulseEngine
+    private AtomicIntegerArray slotPulses = new AtomicIntegerArray(INITIAL_SLOTS);
+    // Pulse counts of observers, owned by the thread of PulseEngine
+    private int[] slotPulseCounts = new int[INITIAL_SLOTS];
+    // All the slots above the limit are free
+    private int slotLimit = 0;
+
+    private int[] freeSlots = new int[INITIAL_SLOTS];
+    private int freeSlotsCount = 0;
+    // Changed under the write lock, read from other threads
+    private volatile int size = 0;
+    // Changed under the write lock, so lookups skip the filters if there are none
+    private volatile int filteredSize = 0;
+    // Called under the write lock when the storage becomes empty or not empty
+    private volatile Runnable occupancyHandler = null;
 
-    private final Map<Location, Location> signs = new HashMap<>();
-    private final Map<Location, Location> signsBack = new HashMap<>();
+    private final Metrics metrics;
+    private final Counter flushes;
+    private final Counter flushBytes;
+    private final Histogram flushTime;
+    private final Gauge registrations;
+    private final Gauge memory;
 
-    private final Map<Location, Location> targets = new HashMap<>();
-    private final Map<Location, Location> targetsBack = new HashMap<>();
+    // Regions read at startup, by world index ids and region keys
+    private final CompletableFuture<RegistryData[]> preload = new CompletableFuture<>();
+    private int[] preloadWorlds;
+    private long[] preloadRegions;
+
+    private volatile boolean ready = false;
+    // Owned by the write lock
+    private final List<Runnable> pendingActions = new ArrayList<>();
+    // Reads of regions in flight, changed under the write lock
+    private volatile int pendingReads = 0;
+    // Actions waiting for reads of regions, owned by the write lock
+    private final List<Runnable> readActions = new ArrayList<>();
 
     ObserverStorage(final CustomObserver plugin,
-                    final CustomLogger customLogger) {
+                    final CustomLogger customLogger,
+                    final CustomObserverConfig config,
+                    final Metrics metrics) {
         this.plugin = plugin;
         this.customLogger = customLogger;
 
-        load();
+        flushes = metrics.counter("storage_flushes", "Storage flushes which wrote data.");
+        flushBytes = metrics.counter("storage_flush_bytes", "Bytes written by storage flushes.");
+        flushTime = metrics.histogram("storage_flush_seconds", "Duration of storage flushes.");
+        this.metrics = metrics;
+        registrations = metrics.gauge("registrations", "Registrations of loaded regions.", () -> size);
+        memory = metrics.gauge("memory_bytes", "Estimated memory of the registration indexes.",
+                this::getMemoryEstimate);
+
+        registryStorage = new RegistryStorage(plugin.getDataFolder(), customLogger, createJournal(config));
+        setJournalOptions(config);
+
+        startPreload();
+
+        flushTask = createFlushTask(config);
+        setFlushOptions(config);
+    }
+
+    // Applies changed storage options of a reloaded config, the registrations are kept
+    void applyConfig(final CustomObserverConfig config) {
+        if ((config.isJournal() != journal)
+                || (config.getCompactionSize() != compactionSize)
+                || (config.getCompactionInterval() != compactionInterval)) {
+            // The current journal may be not replayed yet
+            whenReady(() -> {
+                if (registryStorage.setJournal(createJournal(config))) {
+                    setJournalOptions(config);
+                } else {
+                    customLogger.error("Can't save registrations, the journal options are kept");
+                }
+            });
+        }
+
+        if ((config.isWriteBehind() != writeBehind) || (config.getFlushInterval() != flushInterval)) {
+            if (flushTask != null) {
+                flushTask.cancel();
+            }
+            flushTask = createFlushTask(config);
+            setFlushOptions(config);
+            // Changes queued for the old task
+            flush();
+        }
+    }
+
+    private void setJournalOptions(final CustomObserverConfig config) {
+        journal = config.isJournal();
+        compactionSize = config.getCompactionSize();
+        compactionInterval = config.getCompactionInterval();
+    }
+
+    private void setFlushOptions(final CustomObserverConfig config) {
+        writeBehind = config.isWriteBehind();
+        flushInterval = config.getFlushInterval();
+    }
+
+    // null if the journal is disabled
+    private CustomJournal createJournal(final CustomObserverConfig config) {
+        return config.isJournal()
+                ? new CustomJournal(plugin.getDataFolder(), RegistryStorage.JOURNAL_FILE_NAME, customLogger,
+                    config.getCompactionSize() * 1024L,
+                    config.getCompactionInterval() * 1000L)
+                : null;
+    }
+
+    // null if the write-behind mode is disabled
+    private BukkitTask createFlushTask(final CustomObserverConfig config) {
+        return config.isWriteBehind()
+                ? plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin,
+                    this::flush, config.getFlushInterval(), config.getFlushInterval())
+                : null;
+    }
+
+    void close() {
+        metrics.remove(registrations);
+        metrics.remove(memory);
+        if (flushTask != null) {
+            flushTask.cancel();
+        }
+        // Queued registrations must be saved
+        publish();
+        flush();
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    // No registrations of loaded regions
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void setOccupancyHandler(final Runnable handler) {
+        occupancyHandler = handler;
+    }
+
+    // Runs the action now or when the registrations are published
+    void whenReady(final Runnable action) {
+        if (!ready) {
+            lock.writeLock().lock();
+            try {
+                if (!ready) {
+                    pendingActions.add(action);
+                    return;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        action.run();
+    }
+
+    // The registrations aren't published yet, or some regions are being read
+    boolean isLoading() {
+        return !ready || (pendingReads > 0);
+    }
+
+    /*
+        Queues the action if the registrations of the blocks between the corners
+        may be not in the indexes yet: before they're published,
+        or while one of their regions is being read. Returns false if the action
+        should run now. A queued action runs on the main thread, and it should
+        call this method again, because other regions may be still being read.
+     */
+    boolean deferUntilLoaded(final World world, final int minX, final int minZ, final int maxX, final int maxZ,
+                             final Runnable action) {
+        if (!isLoading()) {
+            return false;
+        }
+
+        final WorldIndex index = getWorldIndex(world);
+        lock.writeLock().lock();
+        try {
+            if (!ready) {
+                pendingActions.add(action);
+                return true;
+            }
+            if (index.pendingRegions.isEmpty()) {
+                return false;
+            }
+            for (int regionX = minX >> 9; regionX <= maxX >> 9; regionX++) {
+                for (int regionZ = minZ >> 9; regionZ <= maxZ >> 9; regionZ++) {
+                    if (index.pendingRegions.containsKey(BlockKey.packChunk(regionX, regionZ))) {
+                        readActions.add(action);
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void lockRead() {
+        lock.readLock().lock();
+    }
+
+    void unlockRead() {
+        lock.readLock().unlock();
+    }
+
+    void lockWrite() {
+        lock.writeLock().lock();
+    }
+
+    void unlockWrite() {
+        lock.writeLock().unlock();
+        if (!lock.isWriteLockedByCurrentThread() && flushPending.compareAndSet(true, false)) {
+            flush();
+        }
+    }
+
+    void onChunkLoad(final World world, final int chunkX, final int chunkZ) {
+        final WorldIndex index = getWorldIndex(world);
+        final long regionKey = BlockKey.packChunk(chunkX >> 5, chunkZ >> 5);
+        final boolean isFirst;
+        lock.writeLock().lock();
+        try {
+            isFirst = countChunk(index, chunkX, chunkZ);
+            if (isFirst) {
+                final int reads = index.pendingRegions.get(regionKey);
+                index.pendingRegions.put(regionKey, (reads == LongIntMap.NO_VALUE) ? 1 : reads + 1);
+                pendingReads++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (isFirst) {
+            whenReady(() -> readRegion(index, regionKey));
+        }
+        readTargetStates(index, chunkX, chunkZ);
+    }
+
+    void onChunkUnload(final World world, final int chunkX, final int chunkZ) {
+        final WorldIndex index = getWorldIndex(world);
+        final long regionKey = BlockKey.packChunk(chunkX >> 5, chunkZ >> 5);
+
+        lock.writeLock().lock();
+        try {
+            final int count = index.loadedChunks.get(regionKey);
+            if (count > 1) {
+                index.loadedChunks.put(regionKey, count - 1);
+            } else if (count == 1) {
+                index.loadedChunks.remove(regionKey);
+                evict(index, regionKey);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void onWorldUnload(final World world) {
+        final WorldIndex index = getWorldIndex(world);
+
+        lock.writeLock().lock();
+        try {
+            index.loadedChunks.clear();
+            // Eviction changes the map, so collect the regions first
+            final long[] regionKeys = new long[index.regions.size()];
+            final int[] count = {0};
+            index.regions.forEach((regionKey, slot) -> regionKeys[count[0]++] = regionKey);
+            for (final long regionKey : regionKeys) {
+                evict(index, regionKey);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    byte getPulseState(final int slot) {
+        return (byte) slotPulses.get(slot);
+    }
+
+    void setPulseState(final int slot, final byte state) {
+        slotPulses.set(slot, state);
+    }
+
+    // Returns false if a pulse is in flight already
+    boolean startPulse(final int slot) {
+        return slotPulses.compareAndSet(slot, PulseEngine.IDLE, PulseEngine.PENDING);
+    }
+
+    // The observer may have been unregistered
+    void setPulseState(final int worldId, final long observerKey, final byte state) {
+        lock.readLock().lock();
+        try {
+            final int slot = worldIndexes[worldId].observers.get(observerKey);
+            if (slot != NO_SLOT) {
+                slotPulses.set(slot, state);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // 0 if the observer has been unregistered
+    int getPulseCount(final int worldId, final long observerKey) {
+        lock.readLock().lock();
+        try {
+            final int slot = worldIndexes[worldId].observers.get(observerKey);
+            return (slot != NO_SLOT) ? slotPulseCounts[slot] : 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The observer may have been unregistered
+    void setPulseCount(final int worldId, final long observerKey, final int count) {
+        lock.readLock().lock();
+        try {
+            final int slot = worldIndexes[worldId].observers.get(observerKey);
+            if (slot != NO_SLOT) {
+                slotPulseCounts[slot] = count;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean isAnyChunkOccupied(final World world,
+                               final int minChunkX, final int minChunkZ,
+                               final int maxChunkX, final int maxChunkZ) {
+        return getWorldIndex(world).isAnyChunkOccupied(minChunkX, minChunkZ, maxChunkX, maxChunkZ);
+    }
+
+    boolean isChunkOccupied(final World world, final int chunkX, final int chunkZ) {
+        return getWorldIndex(world).isChunkOccupied(chunkX, chunkZ);
+    }
+
+    int getSlotByObserver(final World world, final int x, final int y, final int z) {
+        return getWorldIndex(world).observers.get(BlockKey.pack(x, y, z));
+    }
+
+    int getSlotBySign(final World world, final int x, final int y, final int z) {
+        return getWorldIndex(world).signs.get(BlockKey.pack(x, y, z));
+    }
+
+    // Adds the slots of registrations which target the block to the list
+    void findSlotsByTarget(final World world, final int x, final int y, final int z, final SlotList found) {
+        final WorldIndex index = getWorldIndex(world);
+        final long key = BlockKey.pack(x, y, z);
+
+        for (int slot = index.targets.get(key); slot != NO_SLOT; slot = slotTargetNexts[slot]) {
+            found.add(slot);
+        }
+
+        if (!index.areas.isEmpty()) {
+            final int first = found.size();
+            index.areas.find(x, y, z, found);
+            // An observer in its own area would trigger itself forever
+            for (int i = found.size() - 1; i >= first; i--) {
+                if (slotObservers[found.get(i)] == key) {
+                    found.removeAt(i);
+                }
+            }
+        }
+    }
+
+    /*
+        Removes the slots of single target blocks whose state is the last seen one
+        and remembers the new state. An area has no single state, so its slots are kept.
+
+        States are compared by equals(), which compares the interned states
+        of the server, so different states never look equal.
+        Bukkit gives a state only as a copy, so the caller takes one copy per event
+        and only when the event has found targets.
+
+        A block changes on the thread of its region only, so the states are
+        written under the read lock.
+     */
+    void retainChangedTargets(final SlotList found, final BlockData state) {
+        if (state == null) {
+            return;
+        }
+
+        for (int i = found.size() - 1; i >= 0; i--) {
+            final int slot = found.get(i);
+            if (slotTargets[slot] == slotTargetMaxs[slot]) {
+                final BlockData lastState = slotTargetStates[slot];
+                if ((lastState == state) || state.equals(lastState)) {
+                    found.removeAt(i);
+                } else {
+                    slotTargetStates[slot] = state;
+                }
+            }
+        }
+    }
+
+    boolean hasFilters() {
+        return filteredSize > 0;
+    }
+
+    // Removes the slots whose filters don't match the material of the target
+    void retainMatchingTargets(final SlotList found, final Material type) {
+        for (int i = found.size() - 1; i >= 0; i--) {
+            final MaterialFilter filter = slotFilters[found.get(i)];
+            if ((filter != null) && !filter.matches(type)) {
+                found.removeAt(i);
+            }
+        }
+    }
+
+    int getSlotByObserver(final Block observer) {
+        return getSlotByObserver(observer.getWorld(), observer.getX(), observer.getY(), observer.getZ());
+    }
+
+    int getSlotBySign(final Block sign) {
+        return getSlotBySign(sign.getWorld(), sign.getX(), sign.getY(), sign.getZ());
+    }
+
+    // A world id is never reused, so it's valid without the lock
+    int getWorldId(final World world) {
+        return getWorldIndexId(getWorldIndex(world).getName());
     }
 
-    Location getSignLocationByObserver(final Location observerLocation) {
-        return signs.get(observerLocation);
+    // null if the world isn't loaded
+    World getWorld(final int worldId) {
+        return worldIndexes[worldId].getWorld();
     }
 
-    Location getObserverLocationBySign(final Location signLocation) {
-        return signsBack.get(signLocation);
+    int getSlotWorld(final int slot) {
+        return slotWorlds[slot];
     }
 
-    Location getObserverLocationByTarget(final Location targetLocation) {
-        return targetsBack.get(targetLocation);
+    long getObserverKey(final int slot) {
+        return slotObservers[slot];
     }
 
-    boolean isObserverLocation(final Location observerLocation) {
-        return targets.containsKey(observerLocation);
+    long getSignKey(final int slot) {
+        return slotSigns[slot];
+    }
+
+    Location getObserverLocation(final int slot) {
+        return key2location(slot, slotObservers[slot]);
+    }
+
+    Location getSignLocation(final int slot) {
+        return key2location(slot, slotSigns[slot]);
+    }
+
+    void add(final Location observerLocation,
+             final Location signLocation,
+             final Location targetLocation,
+             final Location targetMaxLocation) {
+        add(observerLocation, signLocation, targetLocation, targetMaxLocation, null);
     }
 
     void add(final Location observerLocation,
              final Location signLocation,
-             final Location targetLocation) {
+             final Location targetLocation,
+             final Location targetMaxLocation,
+             final MaterialFilter filter) {
+
+        final String worldName = observerLocation.getWorld().getName();
+        final long observer = BlockKey.pack(observerLocation);
+        final long sign = BlockKey.pack(signLocation);
+        final long target = BlockKey.pack(targetLocation);
+        final long targetMax = BlockKey.pack(targetMaxLocation);
+
+        final int worldId = getWorldIndexId(worldName);
+        lock.writeLock().lock();
+        try {
+            insert(worldId, observer, sign, target, targetMax, filter);
+            registryStorage.put(worldName, observer, sign, target, targetMax,
+                    (filter != null) ? filter.getText() : null);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        afterChange();
+    }
+
+    // The observer may have been unregistered
+    void remove(final int worldId, final long observerKey) {
+        lock.writeLock().lock();
+        try {
+            final int slot = worldIndexes[worldId].observers.get(observerKey);
+            if (slot == NO_SLOT) {
+                return;
+            }
+            registryStorage.remove(worldIndexes[worldId].getName(), observerKey);
+            release(slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        afterChange();
+    }
+
+    // The caller holds the write lock, and the change is flushed when it's released
+    void remove(final int slot) {
+        registryStorage.remove(worldIndexes[slotWorlds[slot]].getName(), slotObservers[slot]);
+        release(slot);
+
+        afterChange();
+    }
+
+    /*
+        Removes distinct slots as one change of the storage.
+        The caller holds the write lock, and the change is flushed when it's released.
+     */
+    void removeAll(final int[] slots, final int count) {
+        for (int i = 0; i < count; i++) {
+            registryStorage.remove(worldIndexes[slotWorlds[slots[i]]].getName(), slotObservers[slots[i]]);
+            release(slots[i]);
+        }
+
+        afterChange();
+    }
+
+    /*
+        Removes the registrations of one world unless their signs have been changed,
+        and moves the keys of the removed ones to the start of the arrays.
+        Returns the number of the removed registrations.
+     */
+    int removeAll(final int worldId, final long[] observerKeys, final long[] signKeys, final int count) {
+        int removed = 0;
+        lock.writeLock().lock();
+        try {
+            final WorldIndex index = worldIndexes[worldId];
+            for (int i = 0; i < count; i++) {
+                final int slot = index.observers.get(observerKeys[i]);
+                if ((slot == NO_SLOT) || (slotSigns[slot] != signKeys[i])) {
+                    continue;
+                }
+                registryStorage.remove(index.getName(), observerKeys[i]);
+                release(slot);
+
+                observerKeys[removed] = observerKeys[i];
+                signKeys[removed] = signKeys[i];
+                removed++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (removed > 0) {
+            afterChange();
+        }
+        return removed;
+    }
+
+    // Passes the keys of all the registrations of loaded regions, grouped by world
+    void forEach(final RegistrationConsumer consumer) {
+        lock.readLock().lock();
+        try {
+            final WorldIndex[] indexes = worldIndexes;
+            for (int worldId = 0; worldId < indexes.length; worldId++) {
+                final int id = worldId;
+                indexes[worldId].regions.forEach((regionKey, first) -> {
+                    for (int slot = first; slot != NO_SLOT; slot = slotNexts[slot]) {
+                        consumer.accept(id, slotObservers[slot], slotSigns[slot]);
+                    }
+                });
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    interface RegistrationConsumer {
+        void accept(int worldId, long observer, long sign);
+    }
+
+    private void afterChange() {
+        if (flushTask == null) {
+            if (lock.isWriteLockedByCurrentThread()) {
+                flushPending.set(true);
+            } else {
+                flush();
+            }
+        }
+    }
+
+    private void flush() {
+        final long start = System.nanoTime();
+        final long bytes = registryStorage.flush();
+        if (bytes > 0) {
+            flushes.inc();
+            flushBytes.add(bytes);
+            flushTime.record(System.nanoTime() - start);
+        }
+    }
+
+    // Read by the exporter thread, so the indexes are read under the lock
+    private long getMemoryEstimate() {
+        lock.readLock().lock();
+        try {
+            // Slot arrays: world, observer, sign, target, target max, target state, filter,
+            // region, target and chunk links, pulse state and count; states and filters are shared,
+            // so only references count
+            long bytes = (long) slotWorlds.length * (Integer.BYTES * 12 + Long.BYTES * 4)
+                    + (long) freeSlots.length * Integer.BYTES;
+            for (final WorldIndex index : worldIndexes) {
+                bytes += index.getMemoryEstimate();
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void insert(final int worldId,
+                        final long observer,
+                        final long sign,
+                        final long target,
+                        final long targetMax,
+                        final MaterialFilter filter) {
+        final WorldIndex index = worldIndexes[worldId];
+
+        final int existingSlot = index.observers.get(observer);
+        if (existingSlot != NO_SLOT) {
+            release(existingSlot);
+        }
+
+        final int slot = allocateSlot();
+        if (size++ == 0) {
+            onOccupancyChange();
+        }
+        slotWorlds[slot] = worldId;
+        slotObservers[slot] = observer;
+        slotSigns[slot] = sign;
+        slotTargets[slot] = target;
+        slotTargetMaxs[slot] = targetMax;
+        slotFilters[slot] = filter;
+        if (filter != null) {
+            filteredSize++;
+        }
+
+        index.observers.put(observer, slot);
+        index.signs.put(sign, slot);
+        if (target == targetMax) {
+            final int targetHead = index.targets.get(target);
+            slotTargetPrevs[slot] = NO_SLOT;
+            slotTargetNexts[slot] = targetHead;
+            if (targetHead != NO_SLOT) {
+                slotTargetPrevs[targetHead] = slot;
+            }
+            index.targets.put(target, slot);
+
+            final long chunkKey = BlockKey.getChunkKey(target);
+            final int chunkHead = index.targetChunks.get(chunkKey);
+            slotChunkPrevs[slot] = NO_SLOT;
+            slotChunkNexts[slot] = chunkHead;
+            if (chunkHead != NO_SLOT) {
+                slotChunkPrevs[chunkHead] = slot;
+            }
+            index.targetChunks.put(chunkKey, slot);
+            slotTargetStates[slot] = readTargetState(index, target);
+        } else {
+            index.areas.add(slot, target, targetMax);
+        }
 
-        signs.put(observerLocation, signLocation);
-        signsBack.put(signLocation, observerLocation);
+        index.occupy(observer);
+        index.occupy(sign);
+        index.occupy(target, targetMax);
 
-        targets.put(observerLocation, targetLocation);
-        targetsBack.put(targetLocation, observerLocation);
+        final long regionKey = BlockKey.getRegionKey(observer);
+        final int head = index.regions.get(regionKey);
+        slotPrevs[slot] = NO_SLOT;
+        slotNexts[slot] = head;
+        if (head != NO_SLOT) {
+            slotPrevs[head] = slot;
+        }
+        index.regions.put(regionKey, slot);
+    }
 
-        save();
+    private void evict(final WorldIndex index, final long regionKey) {
+        int slot = index.regions.get(regionKey);
+        while (slot != NO_SLOT) {
+            final int next = slotNexts[slot];
+            release(slot);
+            slot = next;
+        }
     }
 
-    void remove(final Location observerLocation) {
-        targetsBack.remove(targets.get(observerLocation));
-        targets.remove(observerLocation);
+    private void release(final int slot) {
+        final WorldIndex index = worldIndexes[slotWorlds[slot]];
+
+        removeIfSlot(index.observers, slotObservers[slot], slot);
+        removeIfSlot(index.signs, slotSigns[slot], slot);
+        if (slotTargets[slot] == slotTargetMaxs[slot]) {
+            final int targetPrev = slotTargetPrevs[slot];
+            final int targetNext = slotTargetNexts[slot];
+            if (targetPrev != NO_SLOT) {
+                slotTargetNexts[targetPrev] = targetNext;
+            } else if (targetNext != NO_SLOT) {
+                index.targets.put(slotTargets[slot], targetNext);
+            } else {
+                index.targets.remove(slotTargets[slot]);
+            }
+            if (targetNext != NO_SLOT) {
+                slotTargetPrevs[targetNext] = targetPrev;
+            }
+
+            final int chunkPrev = slotChunkPrevs[slot];
+            final int chunkNext = slotChunkNexts[slot];
+            if (chunkPrev != NO_SLOT) {
+                slotChunkNexts[chunkPrev] = chunkNext;
+            } else if (chunkNext != NO_SLOT) {
+                index.targetChunks.put(BlockKey.getChunkKey(slotTargets[slot]), chunkNext);
+            } else {
+                index.targetChunks.remove(BlockKey.getChunkKey(slotTargets[slot]));
+            }
+            if (chunkNext != NO_SLOT) {
+                slotChunkPrevs[chunkNext] = chunkPrev;
+            }
+            slotTargetStates[slot] = null;
+        } else {
+            index.areas.remove(slot, slotTargets[slot], slotTargetMaxs[slot]);
+        }
+
+        index.vacate(slotObservers[slot]);
+        index.vacate(slotSigns[slot]);
+        index.vacate(slotTargets[slot], slotTargetMaxs[slot]);
+
+        final int prev = slotPrevs[slot];
+        final int next = slotNexts[slot];
+        if (prev != NO_SLOT) {
+            slotNexts[prev] = next;
+        } else if (next != NO_SLOT) {
+            index.regions.put(BlockKey.getRegionKey(slotObservers[slot]), next);
+        } else {
+            index.regions.remove(BlockKey.getRegionKey(slotObservers[slot]));
+        }
+        if (next != NO_SLOT) {
+            slotPrevs[next] = prev;
+        }
+
+        slotWorlds[slot] = NO_WORLD;
+        slotPulses.set(slot, PulseEngine.IDLE);
+        slotPulseCounts[slot] = 0;
+        if (slotFilters[slot] != null) {
+            slotFilters[slot] = null;
+            filteredSize--;
+        }
+        if (--size == 0) {
+            onOccupancyChange();
+        }
 
-        signsBack.remove(signs.get(observerLocation));
-        signs.remove(observerLocation);
+        if (freeSlotsCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length << 1);
+        }
+        freeSlots[freeSlotsCount++] = slot;
+    }
 
-        save();
+    private void onOccupancyChange() {
+        final Runnable handler = occupancyHandler;
+        if (handler != null) {
+            handler.run();
+        }
     }
 
-    private void save() {
-        save(targets, "targets.txt");
-        save(signs, "signs.txt");
+    private static void removeIfSlot(final LongIntMap map, final long key, final int slot) {
+        if (map.get(key) == slot) {
+            map.remove(key);
+        }
     }
 
-    private void save(final Map<Location, Location> map, final String filename) {
-        final StorageData data = new StorageData();
+    private int allocateSlot() {
+        if (freeSlotsCount > 0) {
+            return freeSlots[--freeSlotsCount];
+        }
 
-        for (final Map.Entry<Location, Location> entry : map.entrySet()) {
-            data.put(location2string(entry.getKey()), location2string(entry.getValue()));
+        if (slotLimit == slotWorlds.length) {
+            final int capacity = slotWorlds.length << 1;
+            slotWorlds = Arrays.copyOf(slotWorlds, capacity);
+            slotObservers = Arrays.copyOf(slotObservers, capacity);
+            slotSigns = Arrays.copyOf(slotSigns, capacity);
+            slotTargets = Arrays.copyOf(slotTargets, capacity);
+            slotTargetMaxs = Arrays.copyOf(slotTargetMaxs, capacity);
+            slotTargetStates = Arrays.copyOf(slotTargetStates, capacity);
+            slotFilters = Arrays.copyOf(slotFilters, capacity);
+            slotPrevs = Arrays.copyOf(slotPrevs, capacity);
+            slotNexts = Arrays.copyOf(slotNexts, capacity);
+            slotTargetPrevs = Arrays.copyOf(slotTargetPrevs, capacity);
+            slotTargetNexts = Arrays.copyOf(slotTargetNexts, capacity);
+            slotChunkPrevs = Arrays.copyOf(slotChunkPrevs, capacity);
+            slotChunkNexts = Arrays.copyOf(slotChunkNexts, capacity);
+            slotPulseCounts = Arrays.copyOf(slotPulseCounts, capacity);
+            final AtomicIntegerArray pulses = new AtomicIntegerArray(capacity);
+            for (int i = 0; i < slotLimit; i++) {
+                pulses.set(i, slotPulses.get(i));
+            }
+            slotPulses = pulses;
         }
 
-        new CustomStorage(plugin.getDataFolder(), filename, customLogger).save(data);
+        return slotLimit++;
+    }
+
+    private WorldIndex getWorldIndex(final World world) {
+        for (final WorldIndex index : worldIndexes) {
+            if (index.getWorld() == world) {
+                return index;
+            }
+        }
+        for (final WorldIndex index : worldIndexes) {
+            if (index.bind(world)) {
+                return index;
+            }
+        }
+        // Remember the world, so the next lookup is a plain reference check
+        final int worldId = addWorldIndex(world.getName(), world);
+        return worldIndexes[worldId];
+    }
+
+    private int getWorldIndexId(final String worldName) {
+        for (int i = 0; i < worldIndexes.length; i++) {
+            if (worldIndexes[i].getName().equals(worldName)) {
+                return i;
+            }
+        }
+        return addWorldIndex(worldName, plugin.getServer().getWorld(worldName));
     }
 
-    private String location2string(final Location location) {
-        final String[] keyParts = new String[4];
+    private synchronized int addWorldIndex(final String worldName, final World world) {
+        // Another thread may have added it
+        for (int i = 0; i < worldIndexes.length; i++) {
+            if (worldIndexes[i].getName().equals(worldName)) {
+                return i;
+            }
+        }
 
-        keyParts[0] = location.getWorld().getName();
-        keyParts[1] = String.valueOf(location.getBlockX());
-        keyParts[2] = String.valueOf(location.getBlockY());
-        keyParts[3] = String.valueOf(location.getBlockZ());
+        final WorldIndex[] indexes = Arrays.copyOf(worldIndexes, worldIndexes.length + 1);
+        indexes[indexes.length - 1] = new WorldIndex(worldName, world);
+        worldIndexes = indexes;
+        return indexes.length - 1;
+    }
 
-        return StringUtils.join(keyParts, KEY_DELIMITER);
+    private Location key2location(final int slot, final long key) {
+        return new Location(worldIndexes[slotWorlds[slot]].getWorld(),
+                BlockKey.getX(key), BlockKey.getY(key), BlockKey.getZ(key));
     }
 
-    private void load() {
-        load(targets, "targets.txt");
-        load(signs, "signs.txt");
+    // Returns true if it's the first loaded chunk of the region
+    private static boolean countChunk(final WorldIndex index, final int chunkX, final int chunkZ) {
+        final long regionKey = BlockKey.packChunk(chunkX >> 5, chunkZ >> 5);
 
-        checkDiff("targets", targets.keySet(), "signs", signs.keySet());
-        checkDiff("signs", signs.keySet(), "targets", targets.keySet());
+        final int count = index.loadedChunks.get(regionKey);
+        if (count == LongIntMap.NO_VALUE) {
+            index.loadedChunks.put(regionKey, 1);
+            return true;
+        } else {
+            index.loadedChunks.put(regionKey, count + 1);
+            return false;
+        }
+    }
 
-        loadBack(targetsBack, targets);
-        loadBack(signsBack, signs);
+    // A target block may have changed while its chunk was unloaded
+    private void readTargetStates(final WorldIndex index, final int chunkX, final int chunkZ) {
+        lock.readLock().lock();
+        try {
+            for (int slot = index.targetChunks.get(BlockKey.packChunk(chunkX, chunkZ)); slot != NO_SLOT;
+                 slot = slotChunkNexts[slot]) {
+                slotTargetStates[slot] = readTargetState(index, slotTargets[slot]);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
-    private void checkDiff(final String title1, final Set<Location> set1,
-                           final String title2, final Set<Location> set2) {
-        final Set<Location> diff = new HashSet<>(set1);
-        diff.removeAll(set2);
+    // null if the chunk of the target isn't loaded, so a chunk load isn't caused
+    private static BlockData readTargetState(final WorldIndex index, final long target) {
+        final World world = index.getWorld();
+        final int x = BlockKey.getX(target);
+        final int z = BlockKey.getZ(target);
+        if ((world == null) || !world.isChunkLoaded(x >> 4, z >> 4)) {
+            return null;
+        }
+        return world.getBlockAt(x, BlockKey.getY(target), z).getBlockData();
+    }
 
-        if(!diff.isEmpty()) {
-            throw new RuntimeException(
-                    String.format("Not empty %s without %s: %s",
-                            title1, title2, diff));
+    // Materials of a stored filter may be unknown to another server version
+    private MaterialFilter compileFilter(final String text) {
+        if (text == null) {
+            return null;
         }
+
+        final MaterialFilter filter = MaterialFilter.parse(text);
+        if (filter == null) {
+            customLogger.warning(String.format("Ignoring a filter with unknown materials: %s", text));
+        }
+        return filter;
+    }
+
+    private void readRegion(final WorldIndex index, final long regionKey) {
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+            final RegistryData region = new RegistryData();
+            final int regionWorldId = region.getWorldId(index.getName());
+            try {
+                registryStorage.loadRegion(index.getName(), (int) (regionKey >> Integer.SIZE), (int) regionKey,
+                        (worldName, observer, sign, target, targetMax, filter) ->
+                                region.put(regionWorldId, observer, sign, target, targetMax, filter));
+            } catch (RuntimeException e) {
+                customLogger.error(String.format("Can't load registrations of region %d:%d of %s: %s",
+                        (int) (regionKey >> Integer.SIZE), (int) regionKey, index.getName(), e));
+                // The queued actions don't wait for it anymore
+                if (plugin.isEnabled()) {
+                    plugin.getServer().getScheduler().runTask(plugin, () -> insertRegion(index, regionKey, null));
+                }
+                return;
+            }
+            if (plugin.isEnabled()) {
+                plugin.getServer().getScheduler().runTask(plugin, () -> insertRegion(index, regionKey, region));
+            }
+        });
     }
 
-    private void loadBack(final Map<Location, Location> mapBack, final Map<Location, Location> map) {
-        mapBack.clear();
-        for(Map.Entry<Location, Location> entry : map.entrySet()) {
-            mapBack.put(entry.getValue(), entry.getKey());
+    // The region is null if it couldn't be read
+    private void insertRegion(final WorldIndex index, final long regionKey, final RegistryData region) {
+        final int worldId = getWorldIndexId(index.getName());
+
+        final List<Runnable> actions;
+        lock.writeLock().lock();
+        try {
+            // The region may have been unloaded while it was read
+            if ((region != null) && index.loadedChunks.containsKey(regionKey)) {
+                region.forEach((worldName, observer, sign, target, targetMax, filter) ->
+                        insert(worldId, observer, sign, target, targetMax, compileFilter(filter)));
+            }
+
+            final int reads = index.pendingRegions.get(regionKey);
+            if (reads > 1) {
+                index.pendingRegions.put(regionKey, reads - 1);
+            } else {
+                index.pendingRegions.remove(regionKey);
+            }
+            pendingReads--;
+
+            // The actions of other regions are queued again
+            actions = new ArrayList<>(readActions);
+            readActions.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        for (final Runnable action : actions) {
+            action.run();
         }
     }
 
-    private void load(final Map<Location, Location> map, final String filename) {
-        final StorageData data = new CustomStorage(plugin.getDataFolder(), filename, customLogger).load();
+    private void startPreload() {
+        // Chunk load events of these chunks have fired before the plugin was enabled
+        final List<Integer> worldIds = new ArrayList<>();
+        final List<Long> regionKeys = new ArrayList<>();
+        for (final World world : plugin.getServer().getWorlds()) {
+            final WorldIndex index = getWorldIndex(world);
+            // World lookups are resolved once, not per record
+            final int worldId = getWorldIndexId(index.getName());
+            for (final Chunk chunk : world.getLoadedChunks()) {
+                if (countChunk(index, chunk.getX(), chunk.getZ())) {
+                    worldIds.add(worldId);
+                    regionKeys.add(BlockKey.packChunk(chunk.getX() >> 5, chunk.getZ() >> 5));
+                }
+            }
+        }
 
-        map.clear();
-        for (final Map.Entry<String,String> entry : data.entrySet()) {
-            map.put(string2location(entry.getKey()), string2location(entry.getValue()));
+        preloadWorlds = new int[worldIds.size()];
+        preloadRegions = new long[regionKeys.size()];
+        final String[] worldNames = new String[worldIds.size()];
+        for (int i = 0; i < preloadRegions.length; i++) {
+            preloadWorlds[i] = worldIds.get(i);
+            preloadRegions[i] = regionKeys.get(i);
+            worldNames[i] = worldIndexes[preloadWorlds[i]].getName();
         }
+
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+            final long start = System.nanoTime();
+            try {
+                registryStorage.open();
+                final RegistryData[] regions = registryStorage.loadRegions(worldNames, preloadRegions);
+
+                int count = 0;
+                for (final RegistryData region : regions) {
+                    count += region.size();
+                }
+                customLogger.info(String.format("Read %d registrations of %d regions in %d ms",
+                        count, regions.length, (System.nanoTime() - start) / 1_000_000L));
+
+                preload.complete(regions);
+            } catch (RuntimeException e) {
+                preload.completeExceptionally(e);
+            }
+            // A disabled plugin has published the registrations on close
+            if (plugin.isEnabled()) {
+                plugin.getServer().getScheduler().runTask(plugin, this::publish);
+            }
+        });
     }
 
-    private Location string2location(final String string) {
-        final String[] keyParts = StringUtils.split(string, KEY_DELIMITER);
+    private void publish() {
+        if (ready) {
+            return;
+        }
+
+        RegistryData[] regions = new RegistryData[0];
+        try {
+            regions = preload.join();
+        } catch (CompletionException e) {
+            customLogger.error(String.format("Can't load registrations: %s", e.getCause()));
+        }
+
+        final List<Runnable> actions;
+        lock.writeLock().lock();
         try {
-            return new Location(
-                    plugin.getServer().getWorld(keyParts[0]),
-                    Integer.valueOf(keyParts[1]),
-                    Integer.valueOf(keyParts[2]),
-                    Integer.valueOf(keyParts[3]));
-        } catch (NumberFormatException e) {
-            customLogger.error(String.format("Can't recognize location: %s", string));
-            throw e;
+            if (ready) {
+                return;
+            }
+            for (int i = 0; i < regions.length; i++) {
+                // The region may have been unloaded while it was read
+                if (worldIndexes[preloadWorlds[i]].loadedChunks.containsKey(preloadRegions[i])) {
+                    final int worldId = preloadWorlds[i];
+                    regions[i].forEach((worldName, observer, sign, target, targetMax, filter) ->
+                            insert(worldId, observer, sign, target, targetMax, compileFilter(filter)));
+                }
+            }
+            ready = true;
+
+            actions = new ArrayList<>(pendingActions);
+            pendingActions.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        for (final Runnable action : actions) {
+            action.run();
         }
     }
 }
@@ -0,0 +1,566 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import com.gmail.uprial.customobserver.CustomObserver;
+import com.gmail.uprial.customobserver.CustomObserverConfig;
+import com.gmail.uprial.customobserver.common.BlockKey;
+import com.gmail.uprial.customobserver.common.CustomLogger;
+import com.gmail.uprial.customobserver.common.LongIntMap;
+import com.gmail.uprial.customobserver.metrics.Counter;
+import com.gmail.uprial.customobserver.metrics.Metrics;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.type.Observer;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.Arrays;
+
+import static com.gmail.uprial.customobserver.common.Formatter.format;
+
+/*
+    Emits observer pulses from one repeating task.
+
+    Pending power edges live in a hashed timing wheel of primitive arrays:
+    each bucket is a list of edges due in the same tick modulo the wheel size,
+    and an edge waits for the number of full rounds of the wheel.
+    So a trigger costs no scheduler entries and no lambdas.
+    All the observers of one target are triggered in one batch,
+    and their power-on edges are linked into the same bucket.
+
+    The edges due in a tick are applied in one pass ordered by world and chunk.
+
+    An edge never loads a chunk. A pulse due in an unloaded chunk is dropped,
+    and a power-off edge is deferred into a list of its chunk, which is moved
+    back to the wheel when the chunk is loaded, so no observer stays powered
+    and no registration is taken for a missing observer.
+
+    Each registered observer is idle, pending (the power-on edge is scheduled)
+    or high (powered by this plugin, the power-off edge is scheduled).
+    Like the vanilla observer, it ignores triggers while a pulse is in flight,
+    so a trigger storm costs O(1) per trigger and no extra block updates.
+
+    Triggers may come from many threads, so the wheel is guarded
+    by the lock of the engine. Triggers take it under the lock of the storage,
+    so the storage is never locked while the lock of the engine is held.
+    The edges of all the worlds are applied by the single task,
+    which runs on the main thread, so it doesn't fit a region-threaded server.
+
+    Pulses are limited, so observers of blocks which change every tick
+    can't be used as lag machines:
+    - each observer has a max number of pulses per second, over it pulses are dropped,
+    the count is kept in the slot of the observer and reset by a new second;
+    - all the observers have a max number of pulses per tick,
+    over it pulses are postponed to the next tick;
+    - when the pulses of a tick take too much time, the limit per tick
+    is halved, and pulses over it are dropped (shed), then the limit
+    is restored step by step, like in the congestion control of TCP.
+    Power-off edges are never limited, so no observer stays powered.
+ */
+class PulseEngine {
+    static final byte IDLE = 0;
+    static final byte PENDING = 1;
+    static final byte HIGH = 2;
+
+    /*
+        According to https://minecraft.wiki/w/Observer,
+        When it detects something,
+        the observer emits a redstone pulse ... for 2 game ticks.
+        ...
+        the pulse is emitted with a delay of 2 game ticks.
+     */
+    private static final int PULSE_DELAY = 2;
+    private static final int PULSE_LENGTH = 2;
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private static final int NO_EDGE = LongIntMap.NO_VALUE;
+    private static final int INITIAL_EDGES = 64;
+
+    private static final int TICKS_PER_SECOND = 20;
+    // A pulse count of an observer is stamped with its second, see getPulseCount()
+    private static final int COUNT_BITS = 5;
+    private static final int COUNT_MASK = (1 << COUNT_BITS) - 1;
+    // Limited pulses are reported once a minute
+    private static final int REPORT_INTERVAL = 60 * TICKS_PER_SECOND;
+    // The limit per tick is restored in this number of ticks
+    private static final int RESTORE_BITS = 4;
+
+    private final CustomLogger customLogger;
+    private final ObserverStorage storage;
+
+    private final BukkitTask task;
+
+    private final Counter triggers;
+    private final Counter mergedTriggers;
+    private final Counter emittedPulses;
+    private final Counter droppedPulses;
+    private final Counter deferredEdges;
+    private final Counter limitedPulses;
+    private final Counter postponedPulses;
+    private final Counter shedPulses;
+    // Counts of the last report
+    private long reportedLimited;
+    private long reportedPostponed;
+    private long reportedShed;
+
+    // Limits, owned by the thread of the task
+    private int pulsesPerSecond;
+    private int pulsesPerTick;
+    private long maxTickTime;
+    // Lowered while the pulses take too much time
+    private int tickLimit;
+    private int lastTickPulses = 0;
+    private long lastTickTime = 0L;
+    private int ticks = 0;
+    // The current second, wrapped to fit a stamp
+    private int second = 0;
+
+    private final int[] buckets = new int[WHEEL_SIZE];
+    private int cursor = 0;
+
+    private int[] edgeWorlds = new int[INITIAL_EDGES];
+    private long[] edgeObservers = new long[INITIAL_EDGES];
+    private boolean[] edgePowered = new boolean[INITIAL_EDGES];
+    private int[] edgeRounds = new int[INITIAL_EDGES];
+    // Bucket lists and the list of free edges
+    private int[] edgeNexts = new int[INITIAL_EDGES];
+    private int freeEdge = NO_EDGE;
+    // All the edges above the limit are free
+    private int edgeLimit = 0;
+    // Edges in the wheel
+    private int size = 0;
+
+    // Chunk keys to lists of deferred power-off edges, per world id
+    private LongIntMap[] deferred = new LongIntMap[0];
+
+    // Edges due in the current tick
+    private int[] dueEdges = new int[INITIAL_EDGES];
+    // Their copies, owned by the thread of the task
+    private int[] dueWorlds = new int[INITIAL_EDGES];
+    private long[] dueObservers = new long[INITIAL_EDGES];
+    private boolean[] duePowered = new boolean[INITIAL_EDGES];
+
+    PulseEngine(final CustomObserver plugin,
+                final CustomLogger customLogger,
+                final ObserverStorage storage,
+                final CustomObserverConfig config,
+                final Metrics metrics) {
+        this.customLogger = customLogger;
+        this.storage = storage;
+
+        triggers = metrics.counter("triggers", "Target changes which triggered observers.");
+        mergedTriggers = metrics.counter("triggers_merged", "Triggers merged into a pulse in flight.");
+        emittedPulses = metrics.counter("pulses_emitted", "Pulses emitted by observers.");
+        droppedPulses = metrics.counter("pulses_dropped", "Pulses which could not be emitted.");
+        deferredEdges = metrics.counter("pulses_deferred", "Power-off edges deferred until the chunk is loaded.");
+        limitedPulses = metrics.counter("pulses_limited", "Pulses dropped by the limit per observer.");
+        postponedPulses = metrics.counter("pulses_postponed", "Pulses postponed by the limit per tick.");
+        shedPulses = metrics.counter("pulses_shed", "Pulses dropped while the tick time was over the limit.");
+        reportedLimited = limitedPulses.get();
+        reportedPostponed = postponedPulses.get();
+        reportedShed = shedPulses.get();
+
+        applyConfig(config);
+
+        Arrays.fill(buckets, NO_EDGE);
+
+        task = plugin.getServer().getScheduler().runTaskTimer(plugin, this::tick, 1, 1);
+    }
+
+    // Called on the main thread, like the task
+    void applyConfig(final CustomObserverConfig config) {
+        pulsesPerSecond = config.getPulsesPerSecond();
+        pulsesPerTick = config.getPulsesPerTick();
+        maxTickTime = config.getMaxTickTime() * 1_000_000L;
+        tickLimit = pulsesPerTick;
+    }
+
+    void close() {
+        task.cancel();
+
+        /*
+            Don't leave observers powered forever.
+            Observers of unloaded chunks stay powered, it isn't worth a chunk load.
+         */
+        int count = 0;
+        synchronized (this) {
+            for (int bucket = 0; bucket < WHEEL_SIZE; bucket++) {
+                for (int edge = buckets[bucket]; edge != NO_EDGE; edge = edgeNexts[edge]) {
+                    if (!edgePowered[edge]) {
+                        addDue(count++, edge);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (isChunkLoaded(dueWorlds[i], dueObservers[i])) {
+                setPowered(dueWorlds[i], dueObservers[i], false);
+            }
+        }
+    }
+
+    synchronized void onChunkLoad(final int worldId, final int chunkX, final int chunkZ) {
+        if ((worldId >= deferred.length) || deferred[worldId].isEmpty()) {
+            return;
+        }
+
+        int edge = deferred[worldId].remove(BlockKey.packChunk(chunkX, chunkZ));
+        // Blocks aren't changed while the chunk is being loaded, so the edges run on the next tick
+        final int bucket = (cursor + 1) & WHEEL_MASK;
+        while (edge != NO_EDGE) {
+            final int next = edgeNexts[edge];
+            edgeRounds[edge] = 0;
+            edgeNexts[edge] = buckets[bucket];
+            buckets[bucket] = edge;
+            size++;
+            edge = next;
+        }
+    }
+
+    // The caller holds the read lock of the storage, so the slots are valid
+    void trigger(final int[] slots, final int count) {
+        triggers.add(count);
+
+        int merged = 0;
+        synchronized (this) {
+            final int bucket = (cursor + PULSE_DELAY) & WHEEL_MASK;
+            final int rounds = (PULSE_DELAY - 1) >> WHEEL_BITS;
+            for (int i = 0; i < count; i++) {
+                final int slot = slots[i];
+                if (!storage.startPulse(slot)) {
+                    // Merged into the current pulse
+                    merged++;
+                    continue;
+                }
+
+                final int edge = allocateEdge();
+                edgeWorlds[edge] = storage.getSlotWorld(slot);
+                edgeObservers[edge] = storage.getObserverKey(slot);
+                edgePowered[edge] = true;
+                edgeRounds[edge] = rounds;
+                edgeNexts[edge] = buckets[bucket];
+                buckets[bucket] = edge;
+                size++;
+            }
+        }
+
+        if (merged > 0) {
+            mergedTriggers.add(merged);
+        }
+    }
+
+    private synchronized void schedule(final int worldId, final long observer, final boolean isPowered, final int delay) {
+        final int edge = allocateEdge();
+        edgeWorlds[edge] = worldId;
+        edgeObservers[edge] = observer;
+        edgePowered[edge] = isPowered;
+        edgeRounds[edge] = (delay - 1) >> WHEEL_BITS;
+
+        final int bucket = (cursor + delay) & WHEEL_MASK;
+        edgeNexts[edge] = buckets[bucket];
+        buckets[bucket] = edge;
+        size++;
+    }
+
+    /*
+        The edges are taken from the wheel under the lock of the engine,
+        and applied without it: block changes fire events,
+        which take the lock of the storage and then of the engine.
+     */
+    private void tick() {
+        final long start = System.nanoTime();
+        adaptTickLimit();
+        if (++ticks % TICKS_PER_SECOND == 0) {
+            // The counts of the last second become stale, so nothing is reset
+            second = (second + 1) & (-1 >>> COUNT_BITS);
+        }
+        if (ticks % REPORT_INTERVAL == 0) {
+            report();
+        }
+
+        final int dueCount = takeDueEdges();
+        // The edges over the limit are chosen from a different position each tick
+        final int offset = (dueCount > 0) ? ticks % dueCount : 0;
+        int pulses = 0;
+        for (int n = 0; n < dueCount; n++) {
+            final int i = (offset + n < dueCount) ? offset + n : offset + n - dueCount;
+            final int worldId = dueWorlds[i];
+            final long observer = dueObservers[i];
+            final boolean isPowered = duePowered[i];
+
+            if (!isChunkLoaded(worldId, observer)) {
+                if (isPowered) {
+                    storage.setPulseState(worldId, observer, IDLE);
+                    droppedPulses.inc();
+                } else {
+                    defer(worldId, observer);
+                }
+                continue;
+            }
+
+            if (isPowered && !isAllowed(worldId, observer, pulses)) {
+                continue;
+            }
+
+            if (setPowered(worldId, observer, isPowered)) {
+                if (isPowered) {
+                    pulses++;
+                    countPulse(worldId, observer);
+                    emittedPulses.inc();
+                    schedule(worldId, observer, false, PULSE_LENGTH);
+                }
+            } else if (isPowered) {
+                droppedPulses.inc();
+            }
+        }
+
+        lastTickPulses = pulses;
+        lastTickTime = System.nanoTime() - start;
+    }
+
+    // Returns false if the pulse has been dropped or postponed
+    private boolean isAllowed(final int worldId, final long observer, final int pulses) {
+        if (getPulseCount(worldId, observer) >= pulsesPerSecond) {
+            storage.setPulseState(worldId, observer, IDLE);
+            limitedPulses.inc();
+            return false;
+        }
+
+        if (pulses >= tickLimit) {
+            if (tickLimit < pulsesPerTick) {
+                storage.setPulseState(worldId, observer, IDLE);
+                shedPulses.inc();
+            } else {
+                // The observer stays pending
+                schedule(worldId, observer, true, 1);
+                postponedPulses.inc();
+            }
+            return false;
+        }
+
+        return true;
+    }
+
+    // Pulses of the observer in the current second, a count of another second is stale
+    private int getPulseCount(final int worldId, final long observer) {
+        final int count = storage.getPulseCount(worldId, observer);
+        return ((count >>> COUNT_BITS) == second) ? count & COUNT_MASK : 0;
+    }
+
+    private void countPulse(final int worldId, final long observer) {
+        final int count = Math.min(getPulseCount(worldId, observer) + 1, COUNT_MASK);
+        storage.setPulseCount(worldId, observer, (second << COUNT_BITS) | count);
+    }
+
+    private void adaptTickLimit() {
+        if (lastTickTime > maxTickTime) {
+            // The limit can be far above the real load
+            tickLimit = Math.max(1, Math.min(tickLimit, lastTickPulses) >> 1);
+        } else if (tickLimit < pulsesPerTick) {
+            tickLimit = Math.min(pulsesPerTick, tickLimit + Math.max(1, pulsesPerTick >> RESTORE_BITS));
+        }
+    }
+
+    private void report() {
+        final long limited = limitedPulses.get();
+        final long postponed = postponedPulses.get();
+        final long shed = shedPulses.get();
+        if ((limited > reportedLimited) || (postponed > reportedPostponed) || (shed > reportedShed)) {
+            customLogger.warning(String.format("Pulses in the last minute: %d over the limit per observer, "
+                            + "%d postponed by the limit per tick, %d shed by the tick time limit",
+                    limited - reportedLimited, postponed - reportedPostponed, shed - reportedShed));
+        }
+        reportedLimited = limited;
+        reportedPostponed = postponed;
+        reportedShed = shed;
+    }
+
+    // Returns the number of due edges, copied in order of world and chunk
+    private synchronized int takeDueEdges() {
+        cursor = (cursor + 1) & WHEEL_MASK;
+        if (size == 0) {
+            return 0;
+        }
+
+        int dueCount = 0;
+        int prev = NO_EDGE;
+        int edge = buckets[cursor];
+        while (edge != NO_EDGE) {
+            final int next = edgeNexts[edge];
+            if (edgeRounds[edge] > 0) {
+                edgeRounds[edge]--;
+                prev = edge;
+            } else {
+                if (prev == NO_EDGE) {
+                    buckets[cursor] = next;
+                } else {
+                    edgeNexts[prev] = next;
+                }
+                if (dueCount == dueEdges.length) {
+                    dueEdges = Arrays.copyOf(dueEdges, dueCount << 1);
+                }
+                dueEdges[dueCount++] = edge;
+            }
+            edge = next;
+        }
+
+        sort(0, dueCount - 1);
+
+        for (int i = 0; i < dueCount; i++) {
+            addDue(i, dueEdges[i]);
+            releaseEdge(dueEdges[i]);
+        }
+        return dueCount;
+    }
+
+    private void addDue(final int i, final int edge) {
+        if (i == dueWorlds.length) {
+            final int capacity = dueWorlds.length << 1;
+            dueWorlds = Arrays.copyOf(dueWorlds, capacity);
+            dueObservers = Arrays.copyOf(dueObservers, capacity);
+            duePowered = Arrays.copyOf(duePowered, capacity);
+        }
+        dueWorlds[i] = edgeWorlds[edge];
+        dueObservers[i] = edgeObservers[edge];
+        duePowered[i] = edgePowered[edge];
+    }
+
+    // An unloaded world is handled by setPowered()
+    private boolean isChunkLoaded(final int worldId, final long observerKey) {
+        final World world = storage.getWorld(worldId);
+        return (world == null)
+                || world.isChunkLoaded(BlockKey.getX(observerKey) >> 4, BlockKey.getZ(observerKey) >> 4);
+    }
+
+    private synchronized void defer(final int worldId, final long observer) {
+        if (worldId >= deferred.length) {
+            final int length = deferred.length;
+            deferred = Arrays.copyOf(deferred, worldId + 1);
+            for (int i = length; i < deferred.length; i++) {
+                deferred[i] = new LongIntMap();
+            }
+        }
+
+        final int edge = allocateEdge();
+        edgeWorlds[edge] = worldId;
+        edgeObservers[edge] = observer;
+        edgePowered[edge] = false;
+
+        final long chunkKey = BlockKey.getChunkKey(observer);
+        edgeNexts[edge] = deferred[worldId].get(chunkKey);
+        deferred[worldId].put(chunkKey, edge);
+
+        deferredEdges.inc();
+    }
+
+    // Returns true if the power has been changed
+    private boolean setPowered(final int worldId, final long observerKey, final boolean isPowered) {
+        final World world = storage.getWorld(worldId);
+        if (world == null) {
+            // The world has been unloaded
+            storage.setPulseState(worldId, observerKey, IDLE);
+            return false;
+        }
+
+        final Block observer = world.getBlockAt(BlockKey.getX(observerKey),
+                BlockKey.getY(observerKey), BlockKey.getZ(observerKey));
+        if (!observer.getType().equals(Material.OBSERVER)) {
+            customLogger.error(String.format("No observer: %s", format(observer)));
+            // The observer may have been unregistered since the pulse was scheduled
+            storage.remove(worldId, observerKey);
+            return false;
+        }
+
+        final Observer observerData = (Observer) observer.getBlockData();
+        if(observerData.isPowered() != isPowered) {
+            /*
+                Order is important, because in onBlockRedstone
+                I cancel unregistered power attempts.
+             */
+            if(isPowered) {
+                storage.setPulseState(worldId, observerKey, HIGH);
+            }
+
+            observerData.setPowered(isPowered);
+            observer.setBlockData(observerData);
+
+            if(!isPowered) {
+                storage.setPulseState(worldId, observerKey, IDLE);
+            }
+
+            customLogger.debug("%s power set to %b", observer, isPowered);
+
+            return true;
+        } else {
+            // No power-off edge follows, so the pulse is over
+            storage.setPulseState(worldId, observerKey, IDLE);
+            return false;
+        }
+    }
+
+    private int allocateEdge() {
+        if (freeEdge != NO_EDGE) {
+            final int edge = freeEdge;
+            freeEdge = edgeNexts[edge];
+            return edge;
+        }
+
+        if (edgeLimit == edgeWorlds.length) {
+            final int capacity = edgeWorlds.length << 1;
+            edgeWorlds = Arrays.copyOf(edgeWorlds, capacity);
+            edgeObservers = Arrays.copyOf(edgeObservers, capacity);
+            edgePowered = Arrays.copyOf(edgePowered, capacity);
+            edgeRounds = Arrays.copyOf(edgeRounds, capacity);
+            edgeNexts = Arrays.copyOf(edgeNexts, capacity);
+        }
+
+        return edgeLimit++;
+    }
+
+    // The caller holds the lock of the engine
+    private void releaseEdge(final int edge) {
+        edgeNexts[edge] = freeEdge;
+        freeEdge = edge;
+        size--;
+    }
+
+    // Quicksort of the due edges by world and chunk, without boxing
+    private void sort(int low, int high) {
+        while (low < high) {
+            final int pivot = dueEdges[(low + high) >>> 1];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (compare(dueEdges[i], pivot) < 0) {
+                    i++;
+                }
+                while (compare(dueEdges[j], pivot) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    final int edge = dueEdges[i];
+                    dueEdges[i++] = dueEdges[j];
+                    dueEdges[j--] = edge;
+                }
+            }
+            // Recurse into the smaller part to keep the stack small
+            if (j - low < high - i) {
+                sort(low, j);
+                low = i;
+            } else {
+                sort(i, high);
+                high = j;
+            }
+        }
+    }
+
+    private int compare(final int edge1, final int edge2) {
+        if (edgeWorlds[edge1] != edgeWorlds[edge2]) {
+            return Integer.compare(edgeWorlds[edge1], edgeWorlds[edge2]);
+        }
+        return Long.compare(BlockKey.getChunkKey(edgeObservers[edge1]),
+                BlockKey.getChunkKey(edgeObservers[edge2]));
+    }
+}
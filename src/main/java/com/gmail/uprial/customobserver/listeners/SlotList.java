@@ -0,0 +1,52 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import java.util.Arrays;
+
+/*
+    A reusable list of registration slots, owned by one thread at a time,
+    so lookups of many slots don't allocate.
+ */
+class SlotList {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] slots = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    int size() {
+        return size;
+    }
+
+    int get(final int i) {
+        return slots[i];
+    }
+
+    // The backing array, valid until the list is changed
+    int[] array() {
+        return slots;
+    }
+
+    void add(final int slot) {
+        if (size == slots.length) {
+            slots = Arrays.copyOf(slots, size << 1);
+        }
+        slots[size++] = slot;
+    }
+
+    boolean contains(final int slot) {
+        for (int i = 0; i < size; i++) {
+            if (slots[i] == slot) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Moves the last slot into the gap, so the order isn't kept
+    void removeAt(final int i) {
+        slots[i] = slots[--size];
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,126 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import com.gmail.uprial.customobserver.common.BlockKey;
+import com.gmail.uprial.customobserver.common.LongIntMap;
+import org.bukkit.World;
+
+/*
+    Block indexes of one world: packed block keys to registration slots.
+ */
+class WorldIndex {
+    private static final int MAX_AREA_CHUNKS = 64;
+
+    private final String name;
+    // The world may be not loaded yet
+    private World world;
+
+    final LongIntMap observers = new LongIntMap();
+    final LongIntMap signs = new LongIntMap();
+    final LongIntMap targets = new LongIntMap();
+    final AreaIndex areas = new AreaIndex();
+    // Chunk keys to the first slot of the chunk list of single target blocks
+    final LongIntMap targetChunks = new LongIntMap();
+
+    // Region keys to the first slot of the region list
+    final LongIntMap regions = new LongIntMap();
+    // Region keys to numbers of loaded chunks in the region
+    final LongIntMap loadedChunks = new LongIntMap();
+    // Region keys to numbers of their reads in flight
+    final LongIntMap pendingRegions = new LongIntMap();
+
+    // Chunk keys to numbers of indexed blocks in the chunk
+    private final LongIntMap chunks = new LongIntMap();
+
+    WorldIndex(final String name, final World world) {
+        this.name = name;
+        this.world = world;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    World getWorld() {
+        return world;
+    }
+
+    boolean isChunkOccupied(final int chunkX, final int chunkZ) {
+        return !chunks.isEmpty() && chunks.containsKey(BlockKey.packChunk(chunkX, chunkZ));
+    }
+
+    boolean isAnyChunkOccupied(final int minChunkX, final int minChunkZ,
+                               final int maxChunkX, final int maxChunkZ) {
+        if (chunks.isEmpty()) {
+            return false;
+        }
+        // A big area is cheaper to check block by block
+        if ((long) (maxChunkX - minChunkX + 1) * (maxChunkZ - minChunkZ + 1) > MAX_AREA_CHUNKS) {
+            return true;
+        }
+
+        for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+            for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                if (chunks.containsKey(BlockKey.packChunk(chunkX, chunkZ))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    void occupy(final long key) {
+        occupyChunk(BlockKey.getChunkKey(key));
+    }
+
+    void vacate(final long key) {
+        vacateChunk(BlockKey.getChunkKey(key));
+    }
+
+    // Occupies all the chunks of the area
+    void occupy(final long min, final long max) {
+        for (int chunkX = BlockKey.getX(min) >> 4; chunkX <= BlockKey.getX(max) >> 4; chunkX++) {
+            for (int chunkZ = BlockKey.getZ(min) >> 4; chunkZ <= BlockKey.getZ(max) >> 4; chunkZ++) {
+                occupyChunk(BlockKey.packChunk(chunkX, chunkZ));
+            }
+        }
+    }
+
+    void vacate(final long min, final long max) {
+        for (int chunkX = BlockKey.getX(min) >> 4; chunkX <= BlockKey.getX(max) >> 4; chunkX++) {
+            for (int chunkZ = BlockKey.getZ(min) >> 4; chunkZ <= BlockKey.getZ(max) >> 4; chunkZ++) {
+                vacateChunk(BlockKey.packChunk(chunkX, chunkZ));
+            }
+        }
+    }
+
+    private void occupyChunk(final long chunkKey) {
+        final int count = chunks.get(chunkKey);
+        chunks.put(chunkKey, (count == LongIntMap.NO_VALUE) ? 1 : count + 1);
+    }
+
+    private void vacateChunk(final long chunkKey) {
+        final int count = chunks.get(chunkKey);
+        if (count > 1) {
+            chunks.put(chunkKey, count - 1);
+        } else {
+            chunks.remove(chunkKey);
+        }
+    }
+
+    long getMemoryEstimate() {
+        final long entries = (long) observers.capacity() + signs.capacity() + targets.capacity()
+                + targetChunks.capacity() + regions.capacity() + loadedChunks.capacity()
+                + pendingRegions.capacity() + chunks.capacity();
+        return entries * (Long.BYTES + Integer.BYTES) + areas.getMemoryEstimate();
+    }
+
+    boolean bind(final World world) {
+        if (name.equals(world.getName())) {
+            // The world has been (re)loaded after the registrations
+            this.world = world;
+            return true;
+        } else {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.gmail.uprial.customobserver.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    A counter striped across threads, so concurrent increments don't contend.
+ */
+public class Counter extends Metric {
+    private final LongAdder value = new LongAdder();
+
+    Counter(final String name, final String help) {
+        super(name, help);
+    }
+
+    public void inc() {
+        value.increment();
+    }
+
+    public void add(final long delta) {
+        value.add(delta);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    @Override
+    String getType() {
+        return "counter";
+    }
+
+    @Override
+    void writeSamples(final StringBuilder sb, final String fullName) {
+        sb.append(fullName).append("_total ").append(get()).append('\n');
+    }
+
+    @Override
+    String getSummary() {
+        return String.format("%s: %d", getName(), get());
+    }
+}
@@ -0,0 +1,35 @@
+package com.gmail.uprial.customobserver.metrics;
+
+import java.util.function.LongSupplier;
+
+/*
+    A value read on demand, possibly from another thread,
+    so it can be slightly stale.
+ */
+public class Gauge extends Metric {
+    private final LongSupplier supplier;
+
+    Gauge(final String name, final String help, final LongSupplier supplier) {
+        super(name, help);
+        this.supplier = supplier;
+    }
+
+    public long get() {
+        return supplier.getAsLong();
+    }
+
+    @Override
+    String getType() {
+        return "gauge";
+    }
+
+    @Override
+    void writeSamples(final StringBuilder sb, final String fullName) {
+        sb.append(fullName).append(' ').append(get()).append('\n');
+    }
+
+    @Override
+    String getSummary() {
+        return String.format("%s: %d", getName(), get());
+    }
+}
@@ -0,0 +1,96 @@
+package com.gmail.uprial.customobserver.metrics;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    A latency histogram with fixed buckets from 1 us to 1 s:
+    recording is a few comparisons and a striped increment, without allocations.
+ */
+public class Histogram extends Metric {
+    // Upper bounds of the buckets, in nanoseconds
+    private static final long[] BOUNDS = {
+            1_000L, 2_500L, 5_000L,
+            10_000L, 25_000L, 50_000L,
+            100_000L, 250_000L, 500_000L,
+            1_000_000L, 2_500_000L, 5_000_000L,
+            10_000_000L, 25_000_000L, 50_000_000L,
+            100_000_000L, 250_000_000L, 1_000_000_000L};
+
+    // The last bucket is +Inf
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder sum = new LongAdder();
+
+    Histogram(final String name, final String help) {
+        super(name, help);
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(final long nanos) {
+        int i = 0;
+        while ((i < BOUNDS.length) && (nanos > BOUNDS[i])) {
+            i++;
+        }
+        buckets[i].increment();
+        sum.add(nanos);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (final LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    // The upper bound of the bucket with the quantile, in nanoseconds, or -1 for +Inf
+    public long getQuantileBound(final double quantile) {
+        final long count = getCount();
+        long cumulative = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            cumulative += buckets[i].sum();
+            if (cumulative >= quantile * count) {
+                return BOUNDS[i];
+            }
+        }
+        return -1L;
+    }
+
+    @Override
+    String getType() {
+        return "histogram";
+    }
+
+    @Override
+    void writeSamples(final StringBuilder sb, final String fullName) {
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i].sum();
+            sb.append(fullName).append("_bucket{le=\"")
+                    .append((i < BOUNDS.length) ? toSeconds(BOUNDS[i]) : "+Inf")
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        sb.append(fullName).append("_count ").append(cumulative).append('\n');
+        sb.append(fullName).append("_sum ").append(toSeconds(getSum())).append('\n');
+    }
+
+    @Override
+    String getSummary() {
+        final long count = getCount();
+        final long p99 = getQuantileBound(0.99);
+        return String.format("%s: count %d, avg %.1f us, p99 %s",
+                getName(), count,
+                (count > 0) ? getSum() / 1_000.0 / count : 0.0,
+                (p99 > 0) ? String.format("<= %d us", p99 / 1_000L) : "> 1 s");
+    }
+
+    private static String toSeconds(final long nanos) {
+        return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+    }
+}
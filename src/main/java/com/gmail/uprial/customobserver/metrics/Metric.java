@@ -0,0 +1,28 @@
+package com.gmail.uprial.customobserver.metrics;
+
+public abstract class Metric {
+    private final String name;
+    private final String help;
+
+    Metric(final String name, final String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // The OpenMetrics text of the metric family, with the prefix of the registry
+    void write(final StringBuilder sb, final String prefix) {
+        sb.append("# TYPE ").append(prefix).append(name).append(' ').append(getType()).append('\n');
+        sb.append("# HELP ").append(prefix).append(name).append(' ').append(help).append('\n');
+        writeSamples(sb, prefix + name);
+    }
+
+    abstract String getType();
+
+    abstract void writeSamples(StringBuilder sb, String fullName);
+
+    abstract String getSummary();
+}
@@ -0,0 +1,59 @@
+package com.gmail.uprial.customobserver.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/*
+    A registry of named metrics.
+
+    It outlives reloads of the config: a metric registered again by name
+    keeps its values, and a gauge registered again reads the new supplier.
+    A gauge is removed by its owner on close, so the owner isn't kept alive.
+ */
+public class Metrics {
+    private final String prefix;
+    private final Map<String, Metric> metrics = new LinkedHashMap<>();
+
+    public Metrics(final String prefix) {
+        this.prefix = prefix;
+    }
+
+    public synchronized Counter counter(final String name, final String help) {
+        return (Counter) metrics.computeIfAbsent(name, (key) -> new Counter(name, help));
+    }
+
+    public synchronized Histogram histogram(final String name, final String help) {
+        return (Histogram) metrics.computeIfAbsent(name, (key) -> new Histogram(name, help));
+    }
+
+    public synchronized Gauge gauge(final String name, final String help, final LongSupplier supplier) {
+        final Gauge gauge = new Gauge(name, help, supplier);
+        metrics.put(name, gauge);
+        return gauge;
+    }
+
+    // Keeps a gauge of the same name registered by another owner
+    public synchronized void remove(final Gauge gauge) {
+        metrics.remove(gauge.getName(), gauge);
+    }
+
+    public synchronized List<String> getSummary() {
+        final List<String> lines = new ArrayList<>(metrics.size());
+        for (final Metric metric : metrics.values()) {
+            lines.add(metric.getSummary());
+        }
+        return lines;
+    }
+
+    public synchronized String toOpenMetrics() {
+        final StringBuilder sb = new StringBuilder();
+        for (final Metric metric : metrics.values()) {
+            metric.write(sb, prefix);
+        }
+        sb.append("# EOF\n");
+        return sb.toString();
+    }
+}
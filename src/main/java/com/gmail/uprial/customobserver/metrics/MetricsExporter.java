@@ -0,0 +1,57 @@
+package com.gmail.uprial.customobserver.metrics;
+
+import com.gmail.uprial.customobserver.common.CustomLogger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/*
+    Writes the metrics as OpenMetrics text for a local scraper,
+    replacing the file atomically, so a reader never sees a partial file.
+ */
+public class MetricsExporter {
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File dataFolder;
+    private final String fileName;
+    private final Metrics metrics;
+    private final CustomLogger customLogger;
+
+    public MetricsExporter(File dataFolder, String fileName, Metrics metrics, CustomLogger customLogger) {
+        this.dataFolder = dataFolder;
+        this.fileName = fileName;
+        this.metrics = metrics;
+        this.customLogger = customLogger;
+    }
+
+    public boolean export() {
+        if (!dataFolder.exists()) {
+            if (!dataFolder.mkdirs()) {
+                customLogger.error(String.format("Can't create directory %s", dataFolder.getPath()));
+            }
+        }
+
+        final File file = new File(dataFolder, fileName);
+        final File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        try {
+            try (FileOutputStream fileOutputStream = new FileOutputStream(tmpFile)) {
+                fileOutputStream.write(metrics.toOpenMetrics().getBytes(StandardCharsets.UTF_8));
+            }
+            try {
+                Files.move(tmpFile.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ignored) {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            customLogger.error(e.toString());
+            return false;
+        }
+    }
+}
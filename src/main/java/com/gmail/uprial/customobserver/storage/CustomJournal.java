@@ -0,0 +1,149 @@
+package com.gmail.uprial.customobserver.storage;
+
+import com.gmail.uprial.customobserver.common.CustomLogger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/*
+    An append-only log of opaque records.
+
+    Each record is framed as [length][CRC32][payload], so replay stops
+    at the first partially written or damaged record, and the damaged tail
+    is cut off before the next append.
+ */
+public class CustomJournal {
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+
+    private final File dataFolder;
+    private final String fileName;
+    private final CustomLogger customLogger;
+
+    private final long compactionSize;
+    private final long compactionInterval;
+
+    private long size = 0;
+    private long lastCompactionTime = System.currentTimeMillis();
+
+    public CustomJournal(File dataFolder, String fileName, CustomLogger customLogger,
+                         long compactionSize, long compactionInterval) {
+        this.dataFolder = dataFolder;
+        this.fileName = fileName;
+        this.customLogger = customLogger;
+        this.compactionSize = compactionSize;
+        this.compactionInterval = compactionInterval;
+    }
+
+    public void replay(Consumer<byte[]> consumer) {
+        final File file = getFile();
+        size = 0;
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+
+            int validSize = 0;
+            while (buffer.remaining() >= HEADER_SIZE) {
+                final int length = buffer.getInt();
+                final int crc = buffer.getInt();
+                if ((length < 0) || (length > buffer.remaining())) {
+                    break;
+                }
+
+                final byte[] payload = new byte[length];
+                buffer.get(payload);
+                if (crc(payload) != crc) {
+                    break;
+                }
+
+                consumer.accept(payload);
+                validSize = buffer.position();
+            }
+
+            if (validSize < buffer.capacity()) {
+                customLogger.warning(String.format("Dropping %d bytes of a partially written record in %s",
+                        buffer.capacity() - validSize, file.getPath()));
+                try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                    randomAccessFile.setLength(validSize);
+                }
+            }
+            size = validSize;
+        } catch (IOException e) {
+            customLogger.error(e.toString());
+        }
+    }
+
+    public boolean append(List<byte[]> records) {
+        if (records.isEmpty()) {
+            return true;
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream dataOutputStream = new DataOutputStream(bytes)) {
+            for (final byte[] payload : records) {
+                dataOutputStream.writeInt(payload.length);
+                dataOutputStream.writeInt(crc(payload));
+                dataOutputStream.write(payload);
+            }
+        } catch (IOException e) {
+            customLogger.error(e.toString());
+            return false;
+        }
+
+        try {
+            if (!dataFolder.exists()) {
+                if (!dataFolder.mkdir()) {
+                    customLogger.error(String.format("Can't create directory %s", dataFolder.getPath()));
+                }
+            }
+
+            try (FileOutputStream fileOutputStream = new FileOutputStream(getFile(), true)) {
+                bytes.writeTo(fileOutputStream);
+                fileOutputStream.getFD().sync();
+            }
+            size += bytes.size();
+
+            return true;
+        } catch (IOException e) {
+            customLogger.error(e.toString());
+            return false;
+        }
+    }
+
+    public boolean needsCompaction() {
+        return (size >= compactionSize)
+                || ((size > 0) && (System.currentTimeMillis() - lastCompactionTime >= compactionInterval));
+    }
+
+    public void clear() {
+        final File file = getFile();
+        if (file.exists()) {
+            if (!file.delete()) {
+                customLogger.error(String.format("Can't delete file %s", file.getPath()));
+                return;
+            }
+        }
+        size = 0;
+        lastCompactionTime = System.currentTimeMillis();
+    }
+
+    public long size() {
+        return size;
+    }
+
+    private static int crc(final byte[] payload) {
+        final CRC32 crc32 = new CRC32();
+        crc32.update(payload, 0, payload.length);
+        return (int) crc32.getValue();
+    }
+
+    private File getFile() {
+        return new File(dataFolder, fileName);
+    }
+}
@@ -0,0 +1,165 @@
+package com.gmail.uprial.customobserver.storage;
+
+import com.gmail.uprial.customobserver.common.BlockKey;
+import com.gmail.uprial.customobserver.common.CustomLogger;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/*
+    The text storage of registrations before the binary registry:
+    targets.txt and signs.txt map observers to targets and signs
+    as "world:x:y:z=world:x:y:z" lines, with optional change journals.
+ */
+class LegacyStorage {
+    private static final String TARGETS_FILE_NAME = "targets.txt";
+    private static final String SIGNS_FILE_NAME = "signs.txt";
+
+    private static final String JOURNAL_SUFFIX = ".log";
+    private static final String MIGRATED_SUFFIX = ".migrated";
+
+    private static final String KEY_DELIMITER = ":";
+    private static final char VALUE_DELIMITER = '=';
+
+    // Types of journal records: "+key=value" and "-key"
+    private static final char PUT = '+';
+
+    private final File dataFolder;
+    private final CustomLogger customLogger;
+
+    LegacyStorage(File dataFolder, CustomLogger customLogger) {
+        this.dataFolder = dataFolder;
+        this.customLogger = customLogger;
+    }
+
+    boolean exists() {
+        for (final String fileName : getFileNames()) {
+            if (new File(dataFolder, fileName).exists()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    RegistryData load() {
+        final StorageData targets = load(TARGETS_FILE_NAME);
+        final StorageData signs = load(SIGNS_FILE_NAME);
+
+        checkDiff("targets", targets.keySet(), "signs", signs.keySet());
+        checkDiff("signs", signs.keySet(), "targets", targets.keySet());
+
+        final RegistryData data = new RegistryData(targets.size());
+        for (final Map.Entry<String,String> entry : targets.entrySet()) {
+            final String[] observerParts = string2parts(entry.getKey());
+            final int worldId = data.getWorldId(observerParts[0]);
+
+            data.put(worldId,
+                    parts2key(observerParts, entry.getKey()),
+                    string2key(observerParts[0], signs.get(entry.getKey())),
+                    string2key(observerParts[0], entry.getValue()));
+        }
+
+        return data;
+    }
+
+    void archive() {
+        for (final String fileName : getFileNames()) {
+            final File file = new File(dataFolder, fileName);
+            if (file.exists()) {
+                if (!file.renameTo(new File(dataFolder, fileName + MIGRATED_SUFFIX))) {
+                    customLogger.error(String.format("Can't rename file %s", file.getPath()));
+                }
+            }
+        }
+    }
+
+    // Reads the file and replays its journal over it
+    private StorageData load(final String fileName) {
+        final StorageData data = new StorageData();
+
+        final File file = new File(dataFolder, fileName);
+        if (file.exists()) {
+            try (BufferedReader bufferedReader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = bufferedReader.readLine()) != null) {
+                    final String[] row = StringUtils.split(line, VALUE_DELIMITER);
+                    data.put(row[0], row[1]);
+                }
+            } catch (IOException e) {
+                // Registrations are never migrated partially
+                customLogger.error(e.toString());
+                throw new RuntimeException(e);
+            }
+        }
+
+        // The thresholds don't matter: the journal is only replayed
+        final CustomJournal journal = new CustomJournal(dataFolder, fileName + JOURNAL_SUFFIX, customLogger,
+                Long.MAX_VALUE, Long.MAX_VALUE);
+        journal.replay((record) -> {
+            final String change = new String(record, StandardCharsets.UTF_8);
+            if (change.charAt(0) == PUT) {
+                final int delimiter = change.indexOf(VALUE_DELIMITER);
+                data.put(change.substring(1, delimiter), change.substring(delimiter + 1));
+            } else {
+                data.remove(change.substring(1));
+            }
+        });
+
+        return data;
+    }
+
+    private static String[] getFileNames() {
+        return new String[]{
+                TARGETS_FILE_NAME, TARGETS_FILE_NAME + JOURNAL_SUFFIX,
+                SIGNS_FILE_NAME, SIGNS_FILE_NAME + JOURNAL_SUFFIX};
+    }
+
+    private void checkDiff(final String title1, final Set<String> set1,
+                           final String title2, final Set<String> set2) {
+        final Set<String> diff = new HashSet<>(set1);
+        diff.removeAll(set2);
+
+        if(!diff.isEmpty()) {
+            throw new RuntimeException(
+                    String.format("Not empty %s without %s: %s",
+                            title1, title2, diff));
+        }
+    }
+
+    private String[] string2parts(final String string) {
+        final String[] keyParts = StringUtils.split(string, KEY_DELIMITER);
+        if (keyParts.length != 4) {
+            customLogger.error(String.format("Can't recognize location: %s", string));
+            throw new RuntimeException(String.format("Invalid location: %s", string));
+        }
+        return keyParts;
+    }
+
+    private long string2key(final String worldName, final String string) {
+        final String[] keyParts = string2parts(string);
+        if (!keyParts[0].equals(worldName)) {
+            throw new RuntimeException(
+                    String.format("Location %s is not in world %s", string, worldName));
+        }
+        return parts2key(keyParts, string);
+    }
+
+    private long parts2key(final String[] keyParts, final String string) {
+        try {
+            return BlockKey.pack(
+                    Integer.valueOf(keyParts[1]),
+                    Integer.valueOf(keyParts[2]),
+                    Integer.valueOf(keyParts[3]));
+        } catch (NumberFormatException e) {
+            customLogger.error(String.format("Can't recognize location: %s", string));
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.gmail.uprial.customobserver.storage;
+
+import com.gmail.uprial.customobserver.common.LongIntMap;
+
+import java.util.Arrays;
+
+/*
+    Registration records: (observer, sign, target, target max) packed block keys
+    of one world, kept dense in primitive arrays.
+
+    The target and the target max are the opposite corners of a cuboid area,
+    and they are equal for a single target block.
+    A record may have the text of a material filter, see MaterialFilter.
+ */
+public class RegistryData {
+    public interface Consumer {
+        void accept(String worldName, long observer, long sign, long target, long targetMax, String filter);
+    }
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private String[] worlds = new String[0];
+    // Observer keys to record indexes, per world
+    private LongIntMap[] indexes = new LongIntMap[0];
+
+    private int[] recordWorlds;
+    private long[] recordObservers;
+    private long[] recordSigns;
+    private long[] recordTargets;
+    private long[] recordTargetMaxs;
+    // null if the record has no filter
+    private String[] recordFilters;
+    private int size = 0;
+
+    public RegistryData() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public RegistryData(final int expectedSize) {
+        final int capacity = Math.max(INITIAL_CAPACITY, expectedSize);
+        recordWorlds = new int[capacity];
+        recordObservers = new long[capacity];
+        recordSigns = new long[capacity];
+        recordTargets = new long[capacity];
+        recordTargetMaxs = new long[capacity];
+        recordFilters = new String[capacity];
+    }
+
+    public int getWorldId(final String worldName) {
+        for (int i = 0; i < worlds.length; i++) {
+            if (worlds[i].equals(worldName)) {
+                return i;
+            }
+        }
+
+        worlds = Arrays.copyOf(worlds, worlds.length + 1);
+        worlds[worlds.length - 1] = worldName;
+        indexes = Arrays.copyOf(indexes, indexes.length + 1);
+        indexes[indexes.length - 1] = new LongIntMap();
+
+        return worlds.length - 1;
+    }
+
+    public int getWorldCount() {
+        return worlds.length;
+    }
+
+    public String getWorldName(final int worldId) {
+        return worlds[worldId];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(final int worldId, final long observer) {
+        return indexes[worldId].containsKey(observer);
+    }
+
+    public void put(final int worldId, final long observer, final long sign, final long target) {
+        put(worldId, observer, sign, target, target);
+    }
+
+    public void put(final int worldId, final long observer, final long sign,
+                    final long target, final long targetMax) {
+        put(worldId, observer, sign, target, targetMax, null);
+    }
+
+    public void put(final int worldId, final long observer, final long sign,
+                    final long target, final long targetMax, final String filter) {
+        int i = indexes[worldId].get(observer);
+        if (i == LongIntMap.NO_VALUE) {
+            if (size == recordWorlds.length) {
+                grow();
+            }
+            i = size++;
+            indexes[worldId].put(observer, i);
+        }
+
+        recordWorlds[i] = worldId;
+        recordObservers[i] = observer;
+        recordSigns[i] = sign;
+        recordTargets[i] = target;
+        recordTargetMaxs[i] = targetMax;
+        recordFilters[i] = filter;
+    }
+
+    public void remove(final int worldId, final long observer) {
+        final int i = indexes[worldId].remove(observer);
+        if (i == LongIntMap.NO_VALUE) {
+            return;
+        }
+
+        // Move the last record into the gap to keep the records dense
+        final int last = --size;
+        if (i != last) {
+            recordWorlds[i] = recordWorlds[last];
+            recordObservers[i] = recordObservers[last];
+            recordSigns[i] = recordSigns[last];
+            recordTargets[i] = recordTargets[last];
+            recordTargetMaxs[i] = recordTargetMaxs[last];
+            recordFilters[i] = recordFilters[last];
+            indexes[recordWorlds[i]].put(recordObservers[i], i);
+        }
+        // The texts of removed records aren't kept
+        recordFilters[last] = null;
+    }
+
+    public int getRecordWorldId(final int i) {
+        return recordWorlds[i];
+    }
+
+    public long getRecordObserver(final int i) {
+        return recordObservers[i];
+    }
+
+    public long getRecordSign(final int i) {
+        return recordSigns[i];
+    }
+
+    public long getRecordTarget(final int i) {
+        return recordTargets[i];
+    }
+
+    public long getRecordTargetMax(final int i) {
+        return recordTargetMaxs[i];
+    }
+
+    public String getRecordFilter(final int i) {
+        return recordFilters[i];
+    }
+
+    public void forEach(final Consumer consumer) {
+        for (int i = 0; i < size; i++) {
+            consumer.accept(worlds[recordWorlds[i]], recordObservers[i], recordSigns[i],
+                    recordTargets[i], recordTargetMaxs[i], recordFilters[i]);
+        }
+    }
+
+    private void grow() {
+        final int capacity = recordWorlds.length << 1;
+        recordWorlds = Arrays.copyOf(recordWorlds, capacity);
+        recordObservers = Arrays.copyOf(recordObservers, capacity);
+        recordSigns = Arrays.copyOf(recordSigns, capacity);
+        recordTargets = Arrays.copyOf(recordTargets, capacity);
+        recordTargetMaxs = Arrays.copyOf(recordTargetMaxs, capacity);
+        recordFilters = Arrays.copyOf(recordFilters, capacity);
+    }
+}
@@ -0,0 +1,289 @@
+package com.gmail.uprial.customobserver.storage;
+
+import com.gmail.uprial.customobserver.common.CustomLogger;
+import com.gmail.uprial.customobserver.common.LongIntMap;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/*
+    A binary registry snapshot:
+
+        header:  magic, version, CRC32 of the body, world count, record count, filter count
+        body:    world table of UTF-8 names,
+                 then filter table of (record index, UTF-8 filter text),
+                 then fixed-width records of (world id, observer, sign, target, target max)
+
+    Few records have filters, so they aren't a field of each record.
+    Version 2 has no filter count and no filter table,
+    and version 1 records also have no target max, it's read as the target.
+
+    The file is read whole with one plain channel read: a mapping would keep
+    the file open until it's garbage collected, so on Windows the next save
+    couldn't replace it. Counts of the header are bounded by the size of the body
+    before anything is allocated. When the checksum matches,
+    the records are trusted as written; otherwise each record is checked.
+ */
+public class RegistryFile {
+    private static final int MAGIC = 0x434F4252; // "COBR"
+    private static final int VERSION = 3;
+    private static final int UNFILTERED_VERSION = 2;
+    private static final int SINGLE_TARGET_VERSION = 1;
+
+    private static final int HEADER_SIZE = Integer.BYTES * 6;
+    private static final int UNFILTERED_HEADER_SIZE = Integer.BYTES * 5;
+    private static final int RECORD_SIZE = Integer.BYTES + Long.BYTES * 4;
+    private static final int SINGLE_TARGET_RECORD_SIZE = Integer.BYTES + Long.BYTES * 3;
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File dataFolder;
+    private final String fileName;
+    private final CustomLogger customLogger;
+
+    public RegistryFile(File dataFolder, String fileName, CustomLogger customLogger) {
+        this.dataFolder = dataFolder;
+        this.fileName = fileName;
+        this.customLogger = customLogger;
+    }
+
+    public boolean exists() {
+        return getFile().exists();
+    }
+
+    public long size() {
+        return getFile().length();
+    }
+
+    public RegistryData load() {
+        final File file = getFile();
+        if (!file.exists()) {
+            return new RegistryData();
+        }
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            try (FileChannel channel = randomAccessFile.getChannel()) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException(String.format("Too big registry file: %s", file.getPath()));
+                }
+                final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new EOFException(String.format("Truncated registry file: %s", file.getPath()));
+                    }
+                }
+                buffer.flip();
+                return read(buffer, file.getPath());
+            }
+        } catch (FileNotFoundException e) {
+            // An emptied region is deleted by a save, which may run meanwhile
+            if (!file.exists()) {
+                return new RegistryData();
+            }
+            customLogger.error(String.format("Can't read %s: %s", file.getPath(), e));
+            throw new RuntimeException(e);
+        } catch (IOException | BufferUnderflowException e) {
+            // Starting with an empty registry would overwrite the file
+            customLogger.error(String.format("Can't read %s: %s", file.getPath(), e));
+            throw new RuntimeException(e);
+        }
+    }
+
+    public boolean save(final RegistryData data) {
+        final File file = getFile();
+        if (data.size() == 0) {
+            // An empty region has no file
+            if (file.exists() && !file.delete()) {
+                customLogger.error(String.format("Can't delete file %s", file.getPath()));
+                return false;
+            }
+            return true;
+        }
+
+        if (!dataFolder.exists()) {
+            if (!dataFolder.mkdirs()) {
+                customLogger.error(String.format("Can't create directory %s", dataFolder.getPath()));
+            }
+        }
+
+        final File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        try {
+            try (FileOutputStream fileOutputStream = new FileOutputStream(tmpFile)) {
+                fileOutputStream.getChannel().write(write(data));
+                fileOutputStream.getFD().sync();
+            }
+            try {
+                Files.move(tmpFile.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ignored) {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            customLogger.error(e.toString());
+            return false;
+        }
+    }
+
+    private RegistryData read(final ByteBuffer buffer, final String path) throws IOException {
+        if ((buffer.remaining() < UNFILTERED_HEADER_SIZE) || (buffer.getInt() != MAGIC)) {
+            throw new IOException(String.format("Not a registry file: %s", path));
+        }
+        final int version = buffer.getInt();
+        if ((version != VERSION) && (version != UNFILTERED_VERSION) && (version != SINGLE_TARGET_VERSION)) {
+            throw new IOException(String.format("Unsupported registry version %d: %s", version, path));
+        }
+        final int crc = buffer.getInt();
+        final int worldCount = buffer.getInt();
+        final int recordCount = buffer.getInt();
+        final int filterCount = (version == VERSION) ? buffer.getInt() : 0;
+        final boolean hasTargetMax = (version != SINGLE_TARGET_VERSION);
+        final int recordSize = hasTargetMax ? RECORD_SIZE : SINGLE_TARGET_RECORD_SIZE;
+
+        // Each world name and filter text takes at least its length, and a record its size
+        if ((worldCount < 0) || (worldCount > buffer.remaining() / Short.BYTES)
+                || (filterCount < 0) || (filterCount > buffer.remaining() / (Integer.BYTES + Short.BYTES))
+                || (recordCount < 0)) {
+            throw new IOException(String.format("Damaged registry header: %s", path));
+        }
+
+        final CRC32 crc32 = new CRC32();
+        crc32.update(buffer.duplicate());
+        final boolean verified = ((int) crc32.getValue() == crc);
+        if (!verified) {
+            customLogger.error(String.format("Checksum mismatch in %s, checking each record", path));
+        }
+
+        // A damaged header must not make us allocate gigabytes
+        final RegistryData data = new RegistryData(Math.min(recordCount, buffer.remaining() / recordSize));
+        final int[] worldIds = new int[worldCount];
+        for (int i = 0; i < worldCount; i++) {
+            final byte[] name = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(name);
+            worldIds[i] = data.getWorldId(new String(name, StandardCharsets.UTF_8));
+        }
+        // Record indexes to filter texts
+        final Map<Integer, String> filters = new HashMap<>();
+        for (int i = 0; i < filterCount; i++) {
+            final int index = buffer.getInt();
+            final byte[] text = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(text);
+            filters.put(index, new String(text, StandardCharsets.UTF_8));
+        }
+
+        if (verified) {
+            for (int i = 0; i < recordCount; i++) {
+                final int worldId = worldIds[buffer.getInt()];
+                final long observer = buffer.getLong();
+                final long sign = buffer.getLong();
+                final long target = buffer.getLong();
+                data.put(worldId, observer, sign, target, hasTargetMax ? buffer.getLong() : target, filters.get(i));
+            }
+        } else {
+            readChecked(buffer, path, data, worldIds, filters, recordCount, hasTargetMax);
+        }
+
+        return data;
+    }
+
+    private void readChecked(final ByteBuffer buffer, final String path, final RegistryData data,
+                             final int[] worldIds, final Map<Integer, String> filters,
+                             final int recordCount, final boolean hasTargetMax) {
+        final LongIntMap[] signs = new LongIntMap[worldIds.length];
+        for (int i = 0; i < signs.length; i++) {
+            signs[i] = new LongIntMap();
+        }
+
+        final int recordSize = hasTargetMax ? RECORD_SIZE : SINGLE_TARGET_RECORD_SIZE;
+        for (int i = 0; (i < recordCount) && (buffer.remaining() >= recordSize); i++) {
+            final int worldId = buffer.getInt();
+            final long observer = buffer.getLong();
+            final long sign = buffer.getLong();
+            final long target = buffer.getLong();
+            final long targetMax = hasTargetMax ? buffer.getLong() : target;
+
+            if ((worldId >= 0) && (worldId < worldIds.length)
+                    && !data.contains(worldIds[worldId], observer)
+                    && !signs[worldId].containsKey(sign)) {
+                signs[worldId].put(sign, i);
+                data.put(worldIds[worldId], observer, sign, target, targetMax, filters.get(i));
+            }
+        }
+
+        final int dropped = recordCount - data.size();
+        if (dropped > 0) {
+            customLogger.error(String.format("Dropped %d invalid records of %s", dropped, path));
+        }
+    }
+
+    private static ByteBuffer write(final RegistryData data) {
+        final byte[][] names = new byte[data.getWorldCount()][];
+        int bodySize = data.size() * RECORD_SIZE;
+        for (int i = 0; i < names.length; i++) {
+            names[i] = data.getWorldName(i).getBytes(StandardCharsets.UTF_8);
+            bodySize += Short.BYTES + names[i].length;
+        }
+        // Filter texts by record indexes, null for records without filters
+        final byte[][] filters = new byte[data.size()][];
+        int filterCount = 0;
+        for (int i = 0; i < filters.length; i++) {
+            if (data.getRecordFilter(i) != null) {
+                filters[i] = data.getRecordFilter(i).getBytes(StandardCharsets.UTF_8);
+                bodySize += Integer.BYTES + Short.BYTES + filters[i].length;
+                filterCount++;
+            }
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bodySize);
+        buffer.position(HEADER_SIZE);
+        for (final byte[] name : names) {
+            buffer.putShort((short) name.length);
+            buffer.put(name);
+        }
+        for (int i = 0; i < filters.length; i++) {
+            if (filters[i] != null) {
+                buffer.putInt(i);
+                buffer.putShort((short) filters[i].length);
+                buffer.put(filters[i]);
+            }
+        }
+        for (int i = 0; i < data.size(); i++) {
+            buffer.putInt(data.getRecordWorldId(i));
+            buffer.putLong(data.getRecordObserver(i));
+            buffer.putLong(data.getRecordSign(i));
+            buffer.putLong(data.getRecordTarget(i));
+            buffer.putLong(data.getRecordTargetMax(i));
+        }
+
+        final CRC32 crc32 = new CRC32();
+        crc32.update(buffer.array(), HEADER_SIZE, bodySize);
+
+        buffer.position(0);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt((int) crc32.getValue());
+        buffer.putInt(names.length);
+        buffer.putInt(data.size());
+        buffer.putInt(filterCount);
+
+        buffer.position(0);
+        return buffer;
+    }
+
+    private File getFile() {
+        return new File(dataFolder, fileName);
+    }
+}
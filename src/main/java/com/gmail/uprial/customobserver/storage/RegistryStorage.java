@@ -0,0 +1,412 @@
+package com.gmail.uprial.customobserver.storage;
+
+import com.gmail.uprial.customobserver.common.BlockKey;
+import com.gmail.uprial.customobserver.common.CustomLogger;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+    Persists registration records sharded by world and region of 32x32 chunks,
+    like Anvil does: regions/<world>/r.<x>.<z>.dat, with an optional journal
+    of changes for all the regions.
+
+    It queues changes from the main thread at O(1) cost and writes them
+    on flush(), which can be called from a background thread.
+    Changed regions are kept in memory until they are saved,
+    so a region can be loaded again at any moment.
+
+    On the first start, the single registry file and the text storage
+    are split into regions.
+
+    Many regions, e.g. of all the loaded chunks at startup,
+    are read by a pool of threads, one per core.
+
+    Reads don't wait for flushes: changed regions are copied under the lock,
+    and region files are read without it. A file is replaced atomically,
+    so a read gets either the old or the new version, and both are valid.
+ */
+public class RegistryStorage {
+    public static final String JOURNAL_FILE_NAME = "registry.log";
+
+    private static final String FILE_NAME = "registry.dat";
+    private static final String REGIONS_FOLDER_NAME = "regions";
+    private static final String MIGRATED_SUFFIX = ".migrated";
+
+    private static final byte PUT = 'P';
+    private static final byte PUT_AREA = 'A';
+    private static final byte PUT_FILTERED = 'F';
+    private static final byte REMOVE = 'R';
+
+    private static class Change {
+        private final boolean isPut;
+        private final String worldName;
+        private final long observer;
+        private final long sign;
+        private final long target;
+        private final long targetMax;
+        private final String filter;
+
+        private Change(boolean isPut, String worldName, long observer, long sign, long target, long targetMax,
+                       String filter) {
+            this.isPut = isPut;
+            this.worldName = worldName;
+            this.observer = observer;
+            this.sign = sign;
+            this.target = target;
+            this.targetMax = targetMax;
+            this.filter = filter;
+        }
+    }
+
+    private final File dataFolder;
+    private final CustomLogger customLogger;
+
+    // null if changes are written to region files on every flush
+    private CustomJournal journal;
+
+    private final Queue<Change> changes = new ConcurrentLinkedQueue<>();
+
+    // Owned by the lock: changed regions not saved yet and their journal records
+    private final Map<String, Map<Long, RegistryData>> dirtyRegions = new HashMap<>();
+    private final List<byte[]> records = new ArrayList<>();
+
+    public RegistryStorage(File dataFolder, CustomLogger customLogger, CustomJournal journal) {
+        this.dataFolder = dataFolder;
+        this.customLogger = customLogger;
+        this.journal = journal;
+    }
+
+    public synchronized void open() {
+        changes.clear();
+        dirtyRegions.clear();
+        records.clear();
+
+        migrate();
+
+        /*
+            A journal left by a crash is replayed whatever the current setting,
+            otherwise its changes would be lost when the journal is disabled,
+            and cleared when it's enabled again.
+         */
+        final CustomJournal lastJournal = getLastJournal();
+        lastJournal.replay((record) -> apply(decode(record)));
+        if (lastJournal.size() > 0) {
+            compact();
+            if (dirtyRegions.values().stream().allMatch(Map::isEmpty)) {
+                lastJournal.clear();
+            }
+        }
+    }
+
+    public void loadRegion(String worldName, int regionX, int regionZ, RegistryData.Consumer consumer) {
+        final long regionKey = BlockKey.packChunk(regionX, regionZ);
+        final RegistryData dirtyRegion;
+        synchronized (this) {
+            drain();
+            dirtyRegion = copyDirtyRegion(worldName, regionKey);
+        }
+
+        if (dirtyRegion != null) {
+            dirtyRegion.forEach(consumer);
+        } else {
+            getRegionFile(worldName, regionX, regionZ).load().forEach(consumer);
+        }
+    }
+
+    // Reads the regions by region keys in parallel, the regions can be of different worlds
+    public RegistryData[] loadRegions(final String[] worldNames, final long[] regionKeys) {
+        final RegistryData[] regions = new RegistryData[regionKeys.length];
+        synchronized (this) {
+            drain();
+            for (int i = 0; i < regionKeys.length; i++) {
+                regions[i] = copyDirtyRegion(worldNames[i], regionKeys[i]);
+            }
+        }
+
+        final int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), regionKeys.length));
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>(threads);
+            for (int thread = 0; thread < threads; thread++) {
+                final int first = thread;
+                futures.add(executor.submit(() -> {
+                    for (int i = first; i < regionKeys.length; i += threads) {
+                        if (regions[i] == null) {
+                            regions[i] = getRegionFile(worldNames[i], (int) (regionKeys[i] >> Integer.SIZE),
+                                    (int) regionKeys[i]).load();
+                        }
+                    }
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        return regions;
+    }
+
+    public void put(String worldName, long observer, long sign, long target) {
+        put(worldName, observer, sign, target, target);
+    }
+
+    public void put(String worldName, long observer, long sign, long target, long targetMax) {
+        put(worldName, observer, sign, target, targetMax, null);
+    }
+
+    public void put(String worldName, long observer, long sign, long target, long targetMax, String filter) {
+        changes.add(new Change(true, worldName, observer, sign, target, targetMax, filter));
+    }
+
+    public void remove(String worldName, long observer) {
+        changes.add(new Change(false, worldName, observer, 0L, 0L, 0L, null));
+    }
+
+    public boolean isDirty() {
+        return !changes.isEmpty();
+    }
+
+    // Returns the number of bytes written
+    public synchronized long flush() {
+        drain();
+
+        if (journal != null) {
+            if (records.isEmpty()) {
+                return 0L;
+            }
+            final long journalSize = journal.size();
+            final boolean appended = journal.append(records);
+            records.clear();
+            final long bytes = appended ? journal.size() - journalSize : 0L;
+            if (appended && !journal.needsCompaction()) {
+                return bytes;
+            }
+            return bytes + compact();
+        }
+
+        return compact();
+    }
+
+    /*
+        Folds all the changes into the region files and switches to another journal,
+        or to no journal. Returns false if the regions can't be saved,
+        then the current journal is kept.
+     */
+    public synchronized boolean setJournal(final CustomJournal newJournal) {
+        drain();
+        if ((journal != null) && !records.isEmpty()) {
+            journal.append(records);
+        }
+        records.clear();
+
+        compact();
+        if (!dirtyRegions.values().stream().allMatch(Map::isEmpty)) {
+            return false;
+        }
+
+        // open() has folded the journal of the last run into the regions too
+        if (newJournal != null) {
+            newJournal.clear();
+        }
+        journal = newJournal;
+        return true;
+    }
+
+    private void drain() {
+        Change change;
+        while ((change = changes.poll()) != null) {
+            apply(change);
+            if (journal != null) {
+                records.add(encode(change));
+            }
+        }
+    }
+
+    // Returns the number of bytes written
+    private long compact() {
+        long bytes = 0L;
+        boolean saved = true;
+        for (final Map.Entry<String, Map<Long, RegistryData>> worldEntry : dirtyRegions.entrySet()) {
+            final Iterator<Map.Entry<Long, RegistryData>> iterator = worldEntry.getValue().entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<Long, RegistryData> entry = iterator.next();
+                final int regionX = (int) (entry.getKey() >> Integer.SIZE);
+                final int regionZ = (int) (long) entry.getKey();
+
+                final RegistryFile regionFile = getRegionFile(worldEntry.getKey(), regionX, regionZ);
+                if (regionFile.save(entry.getValue())) {
+                    bytes += regionFile.size();
+                    iterator.remove();
+                } else {
+                    saved = false;
+                }
+            }
+        }
+
+        /*
+            Replaying the journal over newer regions gives the same data,
+            so a crash between these two steps is harmless.
+         */
+        if (saved && (journal != null)) {
+            journal.clear();
+        }
+
+        return bytes;
+    }
+
+    private void apply(final Change change) {
+        final RegistryData data = getDirtyRegion(change.worldName, change.observer);
+        final int worldId = data.getWorldId(change.worldName);
+        if (change.isPut) {
+            data.put(worldId, change.observer, change.sign, change.target, change.targetMax, change.filter);
+        } else {
+            data.remove(worldId, change.observer);
+        }
+    }
+
+    // null if the region has no unsaved changes, the caller holds the lock
+    private RegistryData copyDirtyRegion(final String worldName, final long regionKey) {
+        final Map<Long, RegistryData> worldRegions = dirtyRegions.get(worldName);
+        final RegistryData data = (worldRegions != null) ? worldRegions.get(regionKey) : null;
+        if (data == null) {
+            return null;
+        }
+
+        // The dirty region keeps changing after the lock is released
+        final RegistryData copy = new RegistryData(data.size());
+        data.forEach((name, observer, sign, target, targetMax, filter) ->
+                copy.put(copy.getWorldId(name), observer, sign, target, targetMax, filter));
+        return copy;
+    }
+
+    private RegistryData getDirtyRegion(final String worldName, final long observer) {
+        final long regionKey = BlockKey.getRegionKey(observer);
+
+        final Map<Long, RegistryData> worldRegions
+                = dirtyRegions.computeIfAbsent(worldName, (key) -> new HashMap<>());
+        RegistryData data = worldRegions.get(regionKey);
+        if (data == null) {
+            data = getRegionFile(worldName, BlockKey.getRegionX(observer), BlockKey.getRegionZ(observer)).load();
+            worldRegions.put(regionKey, data);
+        }
+        return data;
+    }
+
+    // The current journal, or the journal file of the last run if the journal is disabled
+    private CustomJournal getLastJournal() {
+        return (journal != null) ? journal : new CustomJournal(dataFolder, JOURNAL_FILE_NAME, customLogger, 0L, 0L);
+    }
+
+    private RegistryFile getRegionFile(final String worldName, final int regionX, final int regionZ) {
+        return new RegistryFile(new File(new File(dataFolder, REGIONS_FOLDER_NAME), worldName),
+                String.format("r.%d.%d.dat", regionX, regionZ), customLogger);
+    }
+
+    private void migrate() {
+        final RegistryFile registryFile = new RegistryFile(dataFolder, FILE_NAME, customLogger);
+        final LegacyStorage legacyStorage = new LegacyStorage(dataFolder, customLogger);
+
+        final RegistryData data;
+        if (registryFile.exists()) {
+            data = registryFile.load();
+        } else if (legacyStorage.exists()) {
+            data = legacyStorage.load();
+        } else {
+            return;
+        }
+
+        // The journal of the single registry file has the same records
+        final CustomJournal lastJournal = getLastJournal();
+        lastJournal.replay((record) -> {
+            final Change change = decode(record);
+            final int worldId = data.getWorldId(change.worldName);
+            if (change.isPut) {
+                data.put(worldId, change.observer, change.sign, change.target, change.targetMax, change.filter);
+            } else {
+                data.remove(worldId, change.observer);
+            }
+        });
+
+        data.forEach((worldName, observer, sign, target, targetMax, filter) ->
+                put(worldName, observer, sign, target, targetMax, filter));
+        drain();
+        records.clear();
+        compact();
+        if (!dirtyRegions.values().stream().allMatch(Map::isEmpty)) {
+            throw new RuntimeException(String.format("Can't migrate registrations to %s", REGIONS_FOLDER_NAME));
+        }
+        lastJournal.clear();
+
+        if (registryFile.exists()) {
+            final File file = new File(dataFolder, FILE_NAME);
+            if (!file.renameTo(new File(dataFolder, FILE_NAME + MIGRATED_SUFFIX))) {
+                customLogger.error(String.format("Can't rename file %s", file.getPath()));
+            }
+        } else {
+            legacyStorage.archive();
+        }
+
+        customLogger.info(String.format("Migrated %d registrations to %s", data.size(), REGIONS_FOLDER_NAME));
+    }
+
+    private static byte[] encode(final Change change) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream dataOutputStream = new DataOutputStream(bytes)) {
+            // Records without areas and filters are written as before them
+            final byte type;
+            if (!change.isPut) {
+                type = REMOVE;
+            } else if (change.filter != null) {
+                type = PUT_FILTERED;
+            } else {
+                type = (change.targetMax != change.target) ? PUT_AREA : PUT;
+            }
+            dataOutputStream.writeByte(type);
+            dataOutputStream.writeUTF(change.worldName);
+            dataOutputStream.writeLong(change.observer);
+            if (change.isPut) {
+                dataOutputStream.writeLong(change.sign);
+                dataOutputStream.writeLong(change.target);
+                if (type != PUT) {
+                    dataOutputStream.writeLong(change.targetMax);
+                }
+                if (type == PUT_FILTERED) {
+                    dataOutputStream.writeUTF(change.filter);
+                }
+            }
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Change decode(final byte[] record) {
+        try (DataInputStream dataInputStream = new DataInputStream(new ByteArrayInputStream(record))) {
+            final byte type = dataInputStream.readByte();
+            final String worldName = dataInputStream.readUTF();
+            final long observer = dataInputStream.readLong();
+            if ((type == PUT) || (type == PUT_AREA) || (type == PUT_FILTERED)) {
+                final long sign = dataInputStream.readLong();
+                final long target = dataInputStream.readLong();
+                final long targetMax = (type != PUT) ? dataInputStream.readLong() : target;
+                final String filter = (type == PUT_FILTERED) ? dataInputStream.readUTF() : null;
+                return new Change(true, worldName, observer, sign, target, targetMax, filter);
+            } else {
+                return new Change(false, worldName, observer, 0L, 0L, 0L, null);
+            }
+        } catch (IOException e) {
+            // The journal has already checked the record
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -47,11 +47,72 @@ public class CustomObserverConfigTest extends TestConfigBase {
     }
 
 
+    @Test
+    public void testWrongFlushInterval() throws Exception {
+        e.expect(InvalidConfigException.class);
+        e.expectMessage("A 'storage.flush-interval' value should be at least 1");
+        loadConfig("enabled: true",
+                "storage:",
+                "  flush-interval: 0");
+    }
+
     @Test
     public void testNormalConfig() throws Exception {
         assertEquals(
-                "enabled: true",
+                "enabled: true, storage.write-behind: false, storage.flush-interval: 20, " +
+                        "storage.journal: true, storage.compaction-size: 64, storage.compaction-interval: 60, " +
+                        "metrics.timing: false, metrics.export: true, metrics.export-interval: 30, " +
+                        "sweep.enabled: true, sweep.interval: 300, sweep.chunks-per-tick: 8, " +
+                        "limits.pulses-per-second: 2, limits.pulses-per-tick: 100, limits.max-tick-time: 5, " +
+                        "log.async: false",
                 loadConfig("debug: true",
-                        "enabled: true").toString());
+                        "enabled: true",
+                        "storage:",
+                        "  write-behind: false",
+                        "  flush-interval: 20",
+                        "  journal: true",
+                        "  compaction-size: 64",
+                        "  compaction-interval: 60",
+                        "metrics:",
+                        "  timing: false",
+                        "  export: true",
+                        "  export-interval: 30",
+                        "sweep:",
+                        "  enabled: true",
+                        "  interval: 300",
+                        "  chunks-per-tick: 8",
+                        "limits:",
+                        "  pulses-per-second: 2",
+                        "  pulses-per-tick: 100",
+                        "  max-tick-time: 5",
+                        "log:",
+                        "  async: false").toString());
+    }
+
+    @Test
+    public void testWrongMetricsExportInterval() throws Exception {
+        e.expect(InvalidConfigException.class);
+        e.expectMessage("A 'metrics.export-interval' value should be at most 3600");
+        loadConfig("enabled: true",
+                "metrics:",
+                "  export-interval: 3601");
+    }
+
+    @Test
+    public void testWrongSweepChunksPerTick() throws Exception {
+        e.expect(InvalidConfigException.class);
+        e.expectMessage("A 'sweep.chunks-per-tick' value should be at least 1");
+        loadConfig("enabled: true",
+                "sweep:",
+                "  chunks-per-tick: 0");
+    }
+
+    @Test
+    public void testWrongPulsesPerSecond() throws Exception {
+        e.expect(InvalidConfigException.class);
+        e.expectMessage("A 'limits.pulses-per-second' value should be at most 5");
+        loadConfig("enabled: true",
+                "limits:",
+                "  pulses-per-second: 6");
     }
 }
\ No newline at end of file
@@ -0,0 +1,55 @@
+package com.gmail.uprial.customobserver.common;
+
+import org.junit.Test;
+
+import static com.gmail.uprial.customobserver.common.BlockKey.*;
+import static org.junit.Assert.*;
+
+public class BlockKeyTest {
+    @Test
+    public void testRoundTrip() throws Exception {
+        final int[] values = {0, 1, -1, 15, -16, 319, -64, 2047, -2048};
+        for (final int x : values) {
+            for (final int y : values) {
+                for (final int z : values) {
+                    assertRoundTrip(x, y, z);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testWorldBorder() throws Exception {
+        assertRoundTrip(30_000_000, -64, -30_000_000);
+        assertRoundTrip(-30_000_000, 2047, 30_000_000);
+    }
+
+    @Test
+    public void testNotReserved() throws Exception {
+        assertNotEquals(Long.MIN_VALUE, pack(-30_000_000, 0, 0));
+        assertNotEquals(Long.MIN_VALUE, pack(0, 0, 0));
+    }
+
+    @Test
+    public void testChunkKey() throws Exception {
+        assertEquals(packChunk(0, 0), getChunkKey(pack(15, 100, 15)));
+        assertEquals(packChunk(-1, -1), getChunkKey(pack(-1, 100, -16)));
+        assertEquals(packChunk(1, -2), getChunkKey(pack(16, -64, -17)));
+        assertNotEquals(packChunk(0, -1), packChunk(-1, 0));
+    }
+
+    @Test
+    public void testRegionKey() throws Exception {
+        assertEquals(packChunk(0, 0), getRegionKey(pack(511, 100, 0)));
+        assertEquals(packChunk(-1, 1), getRegionKey(pack(-1, 100, 512)));
+        assertEquals(-1, getRegionX(pack(-512, 0, 0)));
+        assertEquals(-2, getRegionZ(pack(0, 0, -513)));
+    }
+
+    private static void assertRoundTrip(final int x, final int y, final int z) {
+        final long key = pack(x, y, z);
+        assertEquals(x, getX(key));
+        assertEquals(y, getY(key));
+        assertEquals(z, getZ(key));
+    }
+}
@@ -0,0 +1,61 @@
+package com.gmail.uprial.customobserver.common;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.junit.Test;
+
+import static com.gmail.uprial.customobserver.common.Formatter.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class FormatterTest {
+    @Test
+    public void testLocation() throws Exception {
+        assertEquals("world:1:-2:11", format(new Location(mockWorld(), 0.5, -1.5, 10.7)));
+        assertEquals("world:0:0:-11", format(new Location(mockWorld(), 0.4, -0.4, -10.5)));
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        assertEquals("OBSERVER[world:1:64:-2]", format(mockBlock()));
+    }
+
+    @Test
+    public void testMessage() throws Exception {
+        assertEquals("Aimed OBSERVER[world:1:64:-2] at 100% by null",
+                formatMessage("Aimed %s at %d%% by %s", mockBlock(), 100, null));
+        assertEquals("true", formatMessage("%b", true));
+        assertEquals("%", formatMessage("%", 1));
+    }
+
+    @Test
+    public void testFreeze() throws Exception {
+        final Block block = mockBlock();
+        final Object frozen = freeze(block);
+        when(block.getType()).thenReturn(Material.STONE);
+
+        assertEquals("OBSERVER[world:1:64:-2]", frozen.toString());
+        assertEquals("OBSERVER[world:1:64:-2]", formatMessage("%s", frozen));
+        assertEquals("world:1:2:3", formatMessage("%s", freeze(new Location(mockWorld(), 1, 2, 3))));
+        assertEquals("text", freeze("text"));
+    }
+
+    private static World mockWorld() {
+        final World world = mock(World.class);
+        when(world.getName()).thenReturn("world");
+        return world;
+    }
+
+    private static Block mockBlock() {
+        final World world = mockWorld();
+        final Block block = mock(Block.class);
+        when(block.getType()).thenReturn(Material.OBSERVER);
+        when(block.getWorld()).thenReturn(world);
+        when(block.getX()).thenReturn(1);
+        when(block.getY()).thenReturn(64);
+        when(block.getZ()).thenReturn(-2);
+        return block;
+    }
+}
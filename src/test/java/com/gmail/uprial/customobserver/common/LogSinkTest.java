@@ -0,0 +1,51 @@
+package com.gmail.uprial.customobserver.common;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class LogSinkTest {
+    private static final int MESSAGES = 10_000;
+
+    @Test
+    public void testNoLostMessages() throws Exception {
+        final Set<String> messages = Collections.synchronizedSet(new HashSet<>());
+        final Logger logger = Logger.getAnonymousLogger();
+        logger.setUseParentHandlers(false);
+        logger.addHandler(new Handler() {
+            @Override
+            public void publish(final LogRecord record) {
+                messages.add(record.getMessage());
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+
+        final LogSink sink = new LogSink(logger, "test log");
+        final CustomLogger customLogger = new CustomLogger(logger);
+        customLogger.setSink(sink);
+        for (int i = 0; i < MESSAGES; i++) {
+            // When the buffer is full, the message is written by the caller
+            customLogger.info("Message %d", i);
+        }
+        sink.close();
+
+        assertEquals(MESSAGES, messages.size());
+        assertTrue(messages.contains("Message " + (MESSAGES - 1)));
+        assertFalse(sink.offer(Level.INFO, "Closed", null, null, null));
+    }
+}
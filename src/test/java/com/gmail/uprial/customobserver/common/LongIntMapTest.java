@@ -0,0 +1,77 @@
+package com.gmail.uprial.customobserver.common;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static com.gmail.uprial.customobserver.common.LongIntMap.NO_VALUE;
+import static org.junit.Assert.*;
+
+public class LongIntMapTest {
+    @Test
+    public void testEmpty() throws Exception {
+        final LongIntMap map = new LongIntMap();
+        assertTrue(map.isEmpty());
+        assertEquals(NO_VALUE, map.get(1L));
+        assertEquals(NO_VALUE, map.remove(1L));
+    }
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        final LongIntMap map = new LongIntMap();
+        assertEquals(NO_VALUE, map.put(1L, 10));
+        assertEquals(10, map.put(1L, 11));
+        assertEquals(11, map.get(1L));
+        assertEquals(1, map.size());
+
+        assertEquals(11, map.remove(1L));
+        assertFalse(map.containsKey(1L));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReservedKey() throws Exception {
+        new LongIntMap().put(Long.MIN_VALUE, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReservedValue() throws Exception {
+        new LongIntMap().put(1L, NO_VALUE);
+    }
+
+    @Test
+    public void testRandomOperations() throws Exception {
+        final LongIntMap map = new LongIntMap();
+        final Map<Long, Integer> expected = new HashMap<>();
+        final Random random = new Random(1);
+
+        for (int i = 0; i < 100_000; i++) {
+            // A small key range makes collisions and removals frequent
+            final long key = random.nextInt(2_000) - 1_000;
+            if (random.nextBoolean()) {
+                final int value = random.nextInt(1_000_000);
+                assertEquals(getOrNoValue(expected.put(key, value)), map.put(key, value));
+            } else {
+                assertEquals(getOrNoValue(expected.remove(key)), map.remove(key));
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (final Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), map.get(entry.getKey()));
+        }
+
+        final int[] count = new int[1];
+        map.forEach((key, value) -> {
+            assertEquals((int) expected.get(key), value);
+            count[0]++;
+        });
+        assertEquals(expected.size(), count[0]);
+    }
+
+    private static int getOrNoValue(final Integer value) {
+        return (value == null) ? NO_VALUE : value;
+    }
+}
@@ -0,0 +1,48 @@
+package com.gmail.uprial.customobserver.common;
+
+import org.bukkit.Material;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MaterialFilterTest {
+    @Test
+    public void testExclude() throws Exception {
+        final MaterialFilter filter = MaterialFilter.parse("!water, Lava");
+        assertNotNull(filter);
+        assertEquals("!WATER,LAVA", filter.getText());
+        assertFalse(filter.matches(Material.WATER));
+        assertFalse(filter.matches(Material.LAVA));
+        assertTrue(filter.matches(Material.HOPPER));
+        assertTrue(filter.matches(Material.STONE));
+    }
+
+    @Test
+    public void testInclude() throws Exception {
+        final MaterialFilter filter = MaterialFilter.parse(" ONLY:hopper ");
+        assertNotNull(filter);
+        assertEquals("only:HOPPER", filter.getText());
+        assertTrue(filter.matches(Material.HOPPER));
+        assertFalse(filter.matches(Material.WATER));
+    }
+
+    @Test
+    public void testShared() throws Exception {
+        assertSame(MaterialFilter.parse("!WATER"), MaterialFilter.parse("!water"));
+    }
+
+    @Test
+    public void testNotFilter() throws Exception {
+        assertFalse(MaterialFilter.isFilter("5x3x5"));
+        assertFalse(MaterialFilter.isFilter("16"));
+        assertNull(MaterialFilter.parse("16"));
+    }
+
+    @Test
+    public void testWrongFilter() throws Exception {
+        assertTrue(MaterialFilter.isFilter("!WATR"));
+        assertNull(MaterialFilter.parse("!WATR"));
+        assertNull(MaterialFilter.parse("only:"));
+        assertNull(MaterialFilter.parse("!LEGACY_STONE"));
+    }
+}
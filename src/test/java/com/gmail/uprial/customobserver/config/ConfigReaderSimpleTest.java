@@ -56,4 +56,45 @@ public class ConfigReaderSimpleTest extends TestConfigBase {
     public void testBooleanFalseDifferentCase() throws Exception {
         assertFalse(getBoolean(getPreparedConfig("f: False"), getParanoiacCustomLogger(), "f", "'value' flag", true));
     }
+
+    // ==== getInt ====
+    @Test
+    public void testEmptyInt() throws Exception {
+        e.expect(RuntimeException.class);
+        e.expectMessage("Empty 'value' number. Use default value 5");
+        getInt(getPreparedConfig(""), getDebugFearingCustomLogger(), "n", "'value' number", 0, 10, 5);
+    }
+
+    @Test
+    public void testEmptyIntNoDefaultValue() throws Exception {
+        e.expect(InvalidConfigException.class);
+        e.expectMessage("Empty 'value' number");
+        getInt(getPreparedConfig(""), getDebugFearingCustomLogger(), "n", "'value' number", 0, 10);
+    }
+
+    @Test
+    public void testInvalidInt() throws Exception {
+        e.expect(InvalidConfigException.class);
+        e.expectMessage("Invalid 'value' number");
+        getInt(getPreparedConfig("n: x"), getParanoiacCustomLogger(), "n", "'value' number", 0, 10, 5);
+    }
+
+    @Test
+    public void testSmallInt() throws Exception {
+        e.expect(InvalidConfigException.class);
+        e.expectMessage("A 'value' number should be at least 0");
+        getInt(getPreparedConfig("n: -1"), getParanoiacCustomLogger(), "n", "'value' number", 0, 10, 5);
+    }
+
+    @Test
+    public void testBigInt() throws Exception {
+        e.expect(InvalidConfigException.class);
+        e.expectMessage("A 'value' number should be at most 10");
+        getInt(getPreparedConfig("n: 11"), getParanoiacCustomLogger(), "n", "'value' number", 0, 10, 5);
+    }
+
+    @Test
+    public void testNormalInt() throws Exception {
+        assertEquals(7, getInt(getPreparedConfig("n: 7"), getParanoiacCustomLogger(), "n", "'value' number", 0, 10, 5));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,176 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import com.gmail.uprial.customobserver.CustomObserverConfig;
+import com.gmail.uprial.customobserver.common.CustomLogger;
+import com.gmail.uprial.customobserver.helpers.TestConfigBase;
+import com.gmail.uprial.customobserver.metrics.Metrics;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.event.block.BlockPhysicsEvent;
+import org.bukkit.event.block.BlockRedstoneEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/*
+    Bytes allocated per call of the handlers which run for almost every block update.
+
+    The budgets are averages over thousands of calls after a warm-up,
+    so a one-time allocation, e.g. of a growing array, doesn't count.
+ */
+public class AllocationBudgetTest extends TestConfigBase {
+    private static final int WARMUP_EVENTS = 20_000;
+    private static final int EVENTS = 10_000;
+    // Hit events per tick of the pulse engine
+    private static final int EVENTS_PER_TICK = 100;
+    private static final int TARGETS = 64;
+
+    private static final long MISS_BUDGET = 0L;
+    private static final long HIT_BUDGET = 16L;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final long threadId = Thread.currentThread().getId();
+    // Bytes allocated by a measurement itself
+    private long measurementBytes = 0L;
+
+    private SimulatedServer server;
+    private ObserverRegistry registry;
+    private BlockUpdateListener listener;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        final long before = getAllocatedBytes();
+        measurementBytes = getAllocatedBytes() - before;
+
+        // Chunk 0:0 has registrations, chunk 1:1 has none
+        server = new SimulatedServer(folder.getRoot(), 0, 0, 1, 1);
+        final CustomObserverConfig config = loadConfig("enabled: true",
+                "sweep:",
+                "  enabled: false",
+                "limits:",
+                "  pulses-per-second: 5",
+                "  max-tick-time: 1000");
+        final CustomLogger customLogger = getIndifferentCustomLogger();
+        customLogger.setDebugMode(false);
+        final Metrics metrics = new Metrics("test_");
+        registry = new ObserverRegistry(server.getPlugin(), customLogger, config, metrics);
+        listener = new BlockUpdateListener(server.getPlugin(), customLogger, registry, config, metrics);
+        while (!registry.getStorage().isReady()) {
+            server.tick();
+        }
+
+        final World world = server.getWorld();
+        for (int i = 0; i < TARGETS; i++) {
+            final int x = i % 8;
+            final int z = i / 8;
+            server.setType(x, 10, z, Material.OBSERVER);
+            registry.getStorage().add(new Location(world, x, 10, z),
+                    new Location(world, x, 11, z),
+                    new Location(world, x, 20, z),
+                    new Location(world, x, 20, z));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (registry != null) {
+            registry.close();
+        }
+    }
+
+    @Test
+    public void testPhysicsMiss() throws Exception {
+        final BlockPhysicsEvent event = getPhysicsEvent(server.getBlock(5, 15, 5));
+        assertBudget("physics miss", MISS_BUDGET, () -> listener.onBlockPhysics(event));
+    }
+
+    @Test
+    public void testPhysicsMissInEmptyChunk() throws Exception {
+        final BlockPhysicsEvent event = getPhysicsEvent(server.getBlock(20, 15, 20));
+        assertBudget("physics miss in an empty chunk", MISS_BUDGET, () -> listener.onBlockPhysics(event));
+    }
+
+    @Test
+    public void testPhysicsHit() throws Exception {
+        // Two states of each target, so each event changes its target
+        final BlockPhysicsEvent[] events = new BlockPhysicsEvent[TARGETS * 2];
+        for (int i = 0; i < events.length; i++) {
+            server.setType(i % 8, 20, (i % TARGETS) / 8, (i < TARGETS) ? Material.AIR : Material.STONE);
+            events[i] = getPhysicsEvent(server.getBlock(i % 8, 20, (i % TARGETS) / 8));
+        }
+        final int[] next = {0};
+        assertBudget("physics hit", HIT_BUDGET, () -> {
+            listener.onBlockPhysics(events[next[0]]);
+            next[0] = (next[0] + 1) % events.length;
+        });
+    }
+
+    @Test
+    public void testPhysicsHitWithoutChange() throws Exception {
+        final BlockPhysicsEvent event = getPhysicsEvent(server.getBlock(0, 20, 0));
+        assertBudget("physics hit without a change", MISS_BUDGET, () -> listener.onBlockPhysics(event));
+    }
+
+    @Test
+    public void testRedstoneMiss() throws Exception {
+        final BlockRedstoneEvent event = new BlockRedstoneEvent(server.getBlock(5, 10, 5), 0, 15);
+        assertBudget("redstone miss", MISS_BUDGET, () -> listener.onBlockRedstone(event));
+    }
+
+    @Test
+    public void testRedstoneHit() throws Exception {
+        // An unregistered power of a registered observer, which is cancelled
+        final BlockRedstoneEvent event = new BlockRedstoneEvent(server.getBlock(0, 10, 0), 0, 15);
+        assertBudget("redstone hit", HIT_BUDGET, () -> {
+            listener.onBlockRedstone(event);
+            event.setNewCurrent(15);
+        });
+    }
+
+    private void assertBudget(final String path, final long budget, final Runnable handler) {
+        run(handler, WARMUP_EVENTS);
+        final long bytes = run(handler, EVENTS);
+
+        final long bytesPerEvent = bytes / EVENTS;
+        assertTrue(String.format("The %s path allocates %d bytes per event, the budget is %d bytes",
+                path, bytesPerEvent, budget), bytesPerEvent <= budget);
+    }
+
+    // Returns the bytes allocated by the handler
+    private long run(final Runnable handler, final int events) {
+        long bytes = 0L;
+        for (int i = 0; i < events; i += EVENTS_PER_TICK) {
+            final long before = getAllocatedBytes();
+            for (int j = 0; j < EVENTS_PER_TICK; j++) {
+                handler.run();
+            }
+            bytes += getAllocatedBytes() - before - measurementBytes;
+            // Pulses in flight are finished, so the next events trigger new ones
+            server.tick();
+        }
+        return bytes;
+    }
+
+    private long getAllocatedBytes() {
+        return threadBean.getThreadAllocatedBytes(threadId);
+    }
+
+    private static BlockPhysicsEvent getPhysicsEvent(final Block block) {
+        return new BlockPhysicsEvent(block, block.getBlockData(), block);
+    }
+}
@@ -0,0 +1,57 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import com.gmail.uprial.customobserver.common.BlockKey;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AreaIndexTest {
+    @Test
+    public void testEmpty() throws Exception {
+        final AreaIndex areas = new AreaIndex();
+        assertTrue(areas.isEmpty());
+        assertEquals(0, find(areas, 0, 64, 0).size());
+    }
+
+    @Test
+    public void testAreaAcrossChunks() throws Exception {
+        final AreaIndex areas = new AreaIndex();
+        areas.add(7, BlockKey.pack(14, 60, -2), BlockKey.pack(17, 62, 1));
+
+        assertEquals(1, find(areas, 14, 60, -2).size());
+        assertEquals(7, find(areas, 14, 60, -2).get(0));
+        assertEquals(1, find(areas, 17, 62, 1).size());
+        assertEquals(1, find(areas, 16, 61, -1).size());
+
+        assertEquals(0, find(areas, 13, 60, -2).size());
+        assertEquals(0, find(areas, 17, 63, 1).size());
+        assertEquals(0, find(areas, 17, 62, 2).size());
+
+        areas.remove(7, BlockKey.pack(14, 60, -2), BlockKey.pack(17, 62, 1));
+        assertTrue(areas.isEmpty());
+        assertEquals(0, find(areas, 16, 61, -1).size());
+    }
+
+    @Test
+    public void testOverlappingAreas() throws Exception {
+        final AreaIndex areas = new AreaIndex();
+        for (int slot = 0; slot < 100; slot++) {
+            areas.add(slot, BlockKey.pack(slot % 10, 0, 0), BlockKey.pack(10, 10, 10));
+        }
+
+        assertEquals(100, find(areas, 10, 5, 5).size());
+        assertEquals(10, find(areas, 0, 5, 5).size());
+
+        areas.remove(50, BlockKey.pack(0, 0, 0), BlockKey.pack(10, 10, 10));
+        assertEquals(99, find(areas, 10, 5, 5).size());
+        final SlotList found = find(areas, 0, 5, 5);
+        assertEquals(9, found.size());
+        assertFalse(found.contains(50));
+    }
+
+    private static SlotList find(final AreaIndex areas, final int x, final int y, final int z) {
+        final SlotList found = new SlotList();
+        areas.find(x, y, z, found);
+        return found;
+    }
+}
@@ -0,0 +1,133 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import com.gmail.uprial.customobserver.CustomObserver;
+import com.gmail.uprial.customobserver.CustomObserverConfig;
+import com.gmail.uprial.customobserver.common.BlockKey;
+import com.gmail.uprial.customobserver.helpers.TestConfigBase;
+import com.gmail.uprial.customobserver.metrics.Metrics;
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockPhysicsEvent;
+import org.bukkit.event.block.BlockRedstoneEvent;
+import org.bukkit.plugin.EventExecutor;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.RegisteredListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class BlockUpdateListenerTest extends TestConfigBase {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private World world;
+    private ObserverRegistry registry;
+    private BlockUpdateListener listener;
+
+    @Before
+    public void setUp() throws Exception {
+        world = MockPlugin.mockWorld();
+        final CustomObserver plugin = MockPlugin.mockPlugin(world, folder.getRoot(), new ArrayList<>());
+
+        // Handlers are registered in the handler lists of the events, like in the server
+        final PluginManager pluginManager = mock(PluginManager.class);
+        doAnswer((invocation) -> {
+            final Class<?> eventClass = invocation.getArgument(0);
+            final HandlerList handlers = (eventClass == BlockPhysicsEvent.class)
+                    ? BlockPhysicsEvent.getHandlerList() : BlockRedstoneEvent.getHandlerList();
+            handlers.register(new RegisteredListener(invocation.getArgument(1), invocation.getArgument(3),
+                    invocation.getArgument(2), invocation.getArgument(4), false));
+            return null;
+        }).when(pluginManager).registerEvent(any(), any(Listener.class), any(EventPriority.class),
+                any(EventExecutor.class), any(Plugin.class));
+        final Server server = plugin.getServer();
+        when(server.getPluginManager()).thenReturn(pluginManager);
+        when(server.isPrimaryThread()).thenReturn(true);
+
+        final CustomObserverConfig config = mock(CustomObserverConfig.class);
+        when(config.isWriteBehind()).thenReturn(true);
+        when(config.getFlushInterval()).thenReturn(100);
+        when(config.getPulsesPerSecond()).thenReturn(5);
+        when(config.getPulsesPerTick()).thenReturn(1000);
+        when(config.getMaxTickTime()).thenReturn(10);
+
+        final Metrics metrics = new Metrics("test_");
+        registry = new ObserverRegistry(plugin, getCustomLogger(), config, metrics);
+        registry.getStorage().onChunkLoad(world, 0, 0);
+        listener = new BlockUpdateListener(plugin, getCustomLogger(), registry, config, metrics);
+    }
+
+    @After
+    public void tearDown() {
+        listener.close();
+        registry.close();
+    }
+
+    @Test
+    public void testRegisteredWhileNotEmpty() throws Exception {
+        listener.register();
+        assertFalse(isRegistered(BlockPhysicsEvent.getHandlerList()));
+        assertFalse(isRegistered(BlockRedstoneEvent.getHandlerList()));
+
+        add(0);
+        add(1);
+        assertTrue(isRegistered(BlockPhysicsEvent.getHandlerList()));
+        assertTrue(isRegistered(BlockRedstoneEvent.getHandlerList()));
+
+        remove(0);
+        assertTrue(isRegistered(BlockPhysicsEvent.getHandlerList()));
+
+        remove(1);
+        assertFalse(isRegistered(BlockPhysicsEvent.getHandlerList()));
+        assertFalse(isRegistered(BlockRedstoneEvent.getHandlerList()));
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        add(0);
+        listener.register();
+        assertTrue(isRegistered(BlockPhysicsEvent.getHandlerList()));
+
+        listener.close();
+        assertFalse(isRegistered(BlockPhysicsEvent.getHandlerList()));
+
+        // Changes aren't followed anymore
+        remove(0);
+        add(0);
+        assertFalse(isRegistered(BlockPhysicsEvent.getHandlerList()));
+    }
+
+    private void add(final int x) {
+        registry.getStorage().add(new Location(world, x, 64, 0),
+                new Location(world, x, 64, 1),
+                new Location(world, x, 64, 8),
+                new Location(world, x, 64, 8));
+    }
+
+    private void remove(final int x) {
+        final ObserverStorage storage = registry.getStorage();
+        storage.remove(storage.getWorldId(world), BlockKey.pack(x, 64, 0));
+    }
+
+    private boolean isRegistered(final HandlerList handlers) {
+        for (final RegisteredListener registeredListener : handlers.getRegisteredListeners()) {
+            if (registeredListener.getListener() == listener) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
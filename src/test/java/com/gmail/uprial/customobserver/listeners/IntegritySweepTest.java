@@ -0,0 +1,132 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import com.gmail.uprial.customobserver.CustomObserver;
+import com.gmail.uprial.customobserver.CustomObserverConfig;
+import com.gmail.uprial.customobserver.helpers.TestConfigBase;
+import com.gmail.uprial.customobserver.metrics.Metrics;
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.type.WallSign;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.gmail.uprial.customobserver.listeners.ObserverStorage.NO_SLOT;
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class IntegritySweepTest extends TestConfigBase {
+    // Observers at this X are gone
+    private static final int STALE_X = 1;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private World world;
+    private ObserverStorage storage;
+    private IntegritySweep sweep;
+    private final List<Runnable> timers = new ArrayList<>();
+    private int snapshots = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        world = MockPlugin.mockWorld();
+        when(world.isChunkLoaded(anyInt(), anyInt())).thenReturn(true);
+
+        final ChunkSnapshot snapshot = mock(ChunkSnapshot.class);
+        when(snapshot.getBlockType(anyInt(), anyInt(), anyInt())).thenAnswer((invocation) ->
+                getType(invocation.getArgument(0)));
+        when(snapshot.getBlockData(anyInt(), anyInt(), anyInt())).thenReturn(mock(WallSign.class));
+        when(world.getChunkAt(anyInt(), anyInt())).thenAnswer((invocation) -> {
+            final Chunk chunk = mock(Chunk.class);
+            when(chunk.getChunkSnapshot(false, false, false)).thenAnswer((snapshotInvocation) -> {
+                snapshots++;
+                return snapshot;
+            });
+            return chunk;
+        });
+        when(world.getBlockAt(anyInt(), anyInt(), anyInt())).thenAnswer((invocation) -> {
+            final Block block = mock(Block.class);
+            when(block.getType()).thenReturn(getType(invocation.getArgument(0)));
+            when(block.getBlockData()).thenReturn(mock(WallSign.class));
+            return block;
+        });
+
+        final CustomObserver plugin = MockPlugin.mockPlugin(world, folder.getRoot(), timers);
+
+        final CustomObserverConfig config = mock(CustomObserverConfig.class);
+        when(config.isWriteBehind()).thenReturn(true);
+        when(config.getFlushInterval()).thenReturn(100);
+
+        final Metrics metrics = new Metrics("test_");
+        storage = new ObserverStorage(plugin, getCustomLogger(), config, metrics);
+        storage.onChunkLoad(world, 0, 0);
+        storage.onChunkLoad(world, 1, 0);
+
+        timers.clear();
+        // Once per second, by a snapshot of one chunk per tick
+        sweep = new IntegritySweep(plugin, getCustomLogger(), storage, 1, 1, metrics);
+    }
+
+    @After
+    public void tearDown() {
+        sweep.close();
+        storage.close();
+    }
+
+    @Test
+    public void testStaleRegistrations() throws Exception {
+        add(0);
+        add(STALE_X);
+        add(16);
+
+        // The first sweep starts after the interval
+        tick(20);
+        assertEquals(0, snapshots);
+        tick(1);
+        assertEquals(1, snapshots);
+
+        tick(2);
+        // One snapshot per chunk, not per registration
+        assertEquals(2, snapshots);
+        assertNotEquals(NO_SLOT, getSlot(0));
+        assertEquals(NO_SLOT, getSlot(STALE_X));
+        assertNotEquals(NO_SLOT, getSlot(16));
+    }
+
+    private void tick(final int count) {
+        for (int i = 0; i < count; i++) {
+            timers.get(0).run();
+        }
+    }
+
+    private void add(final int x) {
+        storage.add(new Location(world, x, 64, 0),
+                new Location(world, x, 64, 1),
+                new Location(world, x, 64, -2),
+                new Location(world, x, 64, -2));
+    }
+
+    private int getSlot(final int x) {
+        storage.lockRead();
+        try {
+            return storage.getSlotByObserver(world, x, 64, 0);
+        } finally {
+            storage.unlockRead();
+        }
+    }
+
+    private static Material getType(final int x) {
+        return (x == STALE_X) ? Material.STONE : Material.OBSERVER;
+    }
+}
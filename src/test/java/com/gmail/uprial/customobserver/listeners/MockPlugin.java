@@ -0,0 +1,59 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import com.gmail.uprial.customobserver.CustomObserver;
+import org.bukkit.Chunk;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/*
+    A plugin of a server with one world, whose scheduler runs
+    one-time tasks at once and collects repeating main thread tasks,
+    so a test runs the ticks by itself.
+ */
+class MockPlugin {
+    static World mockWorld() {
+        final World world = mock(World.class, withSettings().stubOnly());
+        when(world.getName()).thenReturn("world");
+        when(world.getLoadedChunks()).thenReturn(new Chunk[0]);
+        return world;
+    }
+
+    static CustomObserver mockPlugin(final World world, final File dataFolder, final List<Runnable> timers) {
+        final Answer<Object> runNow = (invocation) -> {
+            invocation.<Runnable>getArgument(1).run();
+            return null;
+        };
+        final BukkitScheduler scheduler = mock(BukkitScheduler.class, withSettings().stubOnly());
+        when(scheduler.runTaskAsynchronously(any(Plugin.class), any(Runnable.class))).thenAnswer(runNow);
+        when(scheduler.runTask(any(Plugin.class), any(Runnable.class))).thenAnswer(runNow);
+        when(scheduler.runTaskTimer(any(Plugin.class), any(Runnable.class), anyLong(), anyLong()))
+                .thenAnswer((invocation) -> {
+                    timers.add(invocation.getArgument(1));
+                    return mock(BukkitTask.class, withSettings().stubOnly());
+                });
+        when(scheduler.runTaskTimerAsynchronously(any(Plugin.class), any(Runnable.class), anyLong(), anyLong()))
+                .thenReturn(mock(BukkitTask.class, withSettings().stubOnly()));
+
+        final Server server = mock(Server.class, withSettings().stubOnly());
+        when(server.getScheduler()).thenReturn(scheduler);
+        when(server.getWorlds()).thenReturn(Collections.singletonList(world));
+        when(server.getWorld("world")).thenReturn(world);
+
+        final CustomObserver plugin = mock(CustomObserver.class, withSettings().stubOnly());
+        when(plugin.getServer()).thenReturn(server);
+        when(plugin.getDataFolder()).thenReturn(dataFolder);
+        when(plugin.isEnabled()).thenReturn(true);
+        return plugin;
+    }
+}
@@ -0,0 +1,77 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import com.gmail.uprial.customobserver.CustomObserverConfig;
+import com.gmail.uprial.customobserver.helpers.TestConfigBase;
+import com.gmail.uprial.customobserver.metrics.Metrics;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ObserverListenerTest extends TestConfigBase {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private SimulatedServer server;
+    private ObserverRegistry registry;
+    private ObserverListener listener;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new SimulatedServer(folder.getRoot(), 0, 0, 0, 0);
+        final CustomObserverConfig config = loadConfig("enabled: true",
+                "sweep:",
+                "  enabled: false");
+        final Metrics metrics = new Metrics("test_");
+        registry = new ObserverRegistry(server.getPlugin(), getCustomLogger(), config, metrics);
+        listener = new ObserverListener(server.getPlugin(), getCustomLogger(), registry, config, metrics);
+        while (!registry.getStorage().isReady()) {
+            server.tick();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        registry.close();
+    }
+
+    @Test
+    public void testBreakWhileRegionIsRead() throws Exception {
+        final World world = server.getWorld();
+        final ObserverStorage storage = registry.getStorage();
+        server.setType(1, 64, 0, Material.OBSERVER);
+        server.setType(2, 64, 0, Material.OAK_WALL_SIGN);
+        storage.add(new Location(world, 1, 64, 0),
+                new Location(world, 2, 64, 0),
+                new Location(world, 1, 100, 0),
+                new Location(world, 1, 100, 0));
+
+        storage.onChunkUnload(world, 0, 0);
+        storage.onChunkLoad(world, 0, 0);
+        assertTrue(storage.isLoading());
+
+        // The observer explodes before its region is inserted
+        final List<Block> blocks = new ArrayList<>();
+        blocks.add(server.getBlock(1, 64, 0));
+        listener.onEntityExplode(new EntityExplodeEvent(server.getEntity(),
+                blocks.get(0).getLocation(), blocks, 1.0F));
+        assertEquals(Material.OAK_WALL_SIGN, server.getBlock(2, 64, 0).getType());
+
+        server.tick();
+        server.tick();
+        assertFalse(storage.isLoading());
+        assertTrue(storage.isEmpty());
+        assertEquals(Material.AIR, server.getBlock(2, 64, 0).getType());
+    }
+}
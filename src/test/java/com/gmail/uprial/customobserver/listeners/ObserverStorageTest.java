@@ -0,0 +1,365 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import com.gmail.uprial.customobserver.CustomObserver;
+import com.gmail.uprial.customobserver.CustomObserverConfig;
+import com.gmail.uprial.customobserver.common.BlockKey;
+import com.gmail.uprial.customobserver.common.MaterialFilter;
+import com.gmail.uprial.customobserver.helpers.TestConfigBase;
+import com.gmail.uprial.customobserver.metrics.Counter;
+import com.gmail.uprial.customobserver.metrics.Metrics;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.BlockData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.gmail.uprial.customobserver.listeners.ObserverStorage.NO_SLOT;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ObserverStorageTest extends TestConfigBase {
+    private static final int THREADS = 8;
+    // Observers per thread, in a region of the thread
+    private static final int OBSERVERS = 64;
+    // Targets shared by observers of all the threads
+    private static final int TARGETS = 16;
+    private static final int ITERATIONS = 20_000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private World world;
+    private ObserverStorage storage;
+    private PulseEngine pulses;
+
+    @Before
+    public void setUp() throws Exception {
+        world = MockPlugin.mockWorld();
+        final CustomObserver plugin = MockPlugin.mockPlugin(world, folder.getRoot(), new ArrayList<>());
+
+        final CustomObserverConfig config = mock(CustomObserverConfig.class, withSettings().stubOnly());
+        when(config.isWriteBehind()).thenReturn(true);
+        when(config.getFlushInterval()).thenReturn(100);
+        when(config.isJournal()).thenReturn(true);
+        when(config.getCompactionSize()).thenReturn(1024);
+        when(config.getCompactionInterval()).thenReturn(3600);
+        when(config.getPulsesPerSecond()).thenReturn(5);
+        when(config.getPulsesPerTick()).thenReturn(1000);
+        when(config.getMaxTickTime()).thenReturn(10);
+
+        final Metrics metrics = new Metrics("test_");
+        storage = new ObserverStorage(plugin, getCustomLogger(), config, metrics);
+        pulses = new PulseEngine(plugin, getCustomLogger(), storage, config, metrics);
+
+        for (int thread = 0; thread < THREADS; thread++) {
+            storage.onChunkLoad(world, thread << 5, 0);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        pulses.close();
+        storage.close();
+    }
+
+    @Test
+    public void testManyObserversOfOneTarget() throws Exception {
+        add(0, 0);
+        add(0, TARGETS);
+        add(1, 0);
+
+        assertEquals(3, findByTarget(0).size());
+
+        remove(0, TARGETS);
+        final SlotList found = findByTarget(0);
+        assertEquals(2, found.size());
+        storage.lockRead();
+        try {
+            assertFalse(found.contains(storage.getSlotByObserver(world, getObserverX(0, TARGETS), 64, 0)));
+        } finally {
+            storage.unlockRead();
+        }
+    }
+
+    @Test
+    public void testConcurrentChanges() throws Exception {
+        final boolean[][] registered = new boolean[THREADS][OBSERVERS];
+        final AtomicBoolean running = new AtomicBoolean(true);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS + 2);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            // Each thread changes the observers of its region
+            for (int thread = 0; thread < THREADS; thread++) {
+                final int owner = thread;
+                futures.add(executor.submit(() -> {
+                    final Random random = new Random(owner);
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        final int observer = random.nextInt(OBSERVERS);
+                        if (registered[owner][observer]) {
+                            remove(owner, observer);
+                        } else {
+                            add(owner, observer);
+                        }
+                        registered[owner][observer] = !registered[owner][observer];
+                    }
+                }));
+            }
+            // Triggers of the shared targets and lookups of observers run meanwhile
+            for (int thread = 0; thread < 2; thread++) {
+                final int seed = thread;
+                futures.add(executor.submit(() -> {
+                    final Random random = new Random(seed);
+                    final SlotList found = new SlotList();
+                    while (running.get()) {
+                        storage.lockRead();
+                        try {
+                            found.clear();
+                            storage.findSlotsByTarget(world, 0, 100, random.nextInt(TARGETS), found);
+                            for (int i = 0; i < found.size(); i++) {
+                                assertEquals(found.get(i),
+                                        storage.getSlotBySign(world,
+                                                BlockKey.getX(storage.getSignKey(found.get(i))), 65, 0));
+                            }
+                            pulses.trigger(found.array(), found.size());
+                        } finally {
+                            storage.unlockRead();
+                        }
+                    }
+                }));
+            }
+
+            for (int i = 0; i < THREADS; i++) {
+                futures.get(i).get(1, TimeUnit.MINUTES);
+            }
+            running.set(false);
+            for (final Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int count = 0;
+        for (int target = 0; target < TARGETS; target++) {
+            count += findByTarget(target).size();
+        }
+
+        int expected = 0;
+        storage.lockRead();
+        try {
+            for (int thread = 0; thread < THREADS; thread++) {
+                for (int observer = 0; observer < OBSERVERS; observer++) {
+                    final int x = getObserverX(thread, observer);
+                    final int slot = storage.getSlotByObserver(world, x, 64, 0);
+                    if (registered[thread][observer]) {
+                        expected++;
+                        assertNotEquals(NO_SLOT, slot);
+                        assertEquals(slot, storage.getSlotBySign(world, x, 65, 0));
+                        assertEquals(BlockKey.pack(x, 65, 0), storage.getSignKey(slot));
+                    } else {
+                        assertEquals(NO_SLOT, slot);
+                        assertEquals(NO_SLOT, storage.getSlotBySign(world, x, 65, 0));
+                    }
+                }
+            }
+        } finally {
+            storage.unlockRead();
+        }
+        assertEquals(expected, count);
+    }
+
+    @Test
+    public void testRegionReload() throws Exception {
+        final SimulatedServer server = new SimulatedServer(folder.newFolder(), 0, 0, 0, 0);
+        final ObserverStorage regionStorage = new ObserverStorage(server.getPlugin(), getCustomLogger(),
+                loadConfig("enabled: true", "sweep:", "  enabled: false"), new Metrics("test_"));
+        try {
+            while (!regionStorage.isReady()) {
+                server.tick();
+            }
+            final World simulatedWorld = server.getWorld();
+            regionStorage.add(new Location(simulatedWorld, 1, 64, 0),
+                    new Location(simulatedWorld, 1, 65, 0),
+                    new Location(simulatedWorld, 1, 100, 0),
+                    new Location(simulatedWorld, 1, 100, 0));
+
+            regionStorage.onChunkUnload(simulatedWorld, 0, 0);
+            assertTrue(regionStorage.isEmpty());
+
+            // The region is read in the background and inserted on the next tick
+            regionStorage.onChunkLoad(simulatedWorld, 0, 0);
+            assertTrue(regionStorage.isEmpty());
+            server.tick();
+            server.tick();
+            assertFalse(regionStorage.isEmpty());
+        } finally {
+            regionStorage.close();
+        }
+    }
+
+    @Test
+    public void testTargetStates() throws Exception {
+        add(0, 0);
+        add(1, 0);
+        final BlockData data1 = mock(BlockData.class);
+        final BlockData data2 = mock(BlockData.class);
+
+        assertEquals(2, findChanged(0, data1).size());
+        assertEquals(0, findChanged(0, data1).size());
+        assertEquals(2, findChanged(0, data2).size());
+        // An unknown state doesn't filter
+        assertEquals(2, findChanged(0, null).size());
+
+        // The chunk of the target is loaded again with another state
+        final Block target = mock(Block.class);
+        when(target.getBlockData()).thenReturn(data1);
+        final int[] reads = {0};
+        when(world.getBlockAt(0, 100, 0)).thenAnswer((invocation) -> {
+            reads[0]++;
+            return target;
+        });
+        when(world.isChunkLoaded(0, 0)).thenReturn(true);
+        storage.onChunkLoad(world, 0, 0);
+        assertEquals(0, findChanged(0, data1).size());
+        assertEquals(2, findChanged(0, data2).size());
+        // Only the targets of the loaded chunk are read
+        storage.onChunkLoad(world, 5, 5);
+        assertEquals(2, reads[0]);
+
+        // A target of a loaded chunk starts with its current state
+        add(2, 0);
+        assertEquals(3, findByTarget(0).size());
+        assertEquals(2, findChanged(0, data1).size());
+    }
+
+    @Test
+    public void testFilters() throws Exception {
+        storage.add(new Location(world, 0, 64, 0),
+                new Location(world, 0, 65, 0),
+                new Location(world, 0, 100, 0),
+                new Location(world, 0, 100, 0),
+                MaterialFilter.parse("!WATER"));
+        add(1, 0);
+        assertTrue(storage.hasFilters());
+
+        assertEquals(1, findMatching(0, Material.WATER).size());
+        assertEquals(2, findMatching(0, Material.STONE).size());
+
+        remove(0, 0);
+        assertFalse(storage.hasFilters());
+    }
+
+    @Test
+    public void testFlushAfterWriteLock() throws Exception {
+        final CustomObserver plugin = MockPlugin.mockPlugin(world, folder.newFolder(), new ArrayList<>());
+        final CustomObserverConfig config = mock(CustomObserverConfig.class, withSettings().stubOnly());
+        final Metrics metrics = new Metrics("test_");
+        final Counter flushes = metrics.counter("storage_flushes", "");
+        final ObserverStorage directStorage = new ObserverStorage(plugin, getCustomLogger(), config, metrics);
+        try {
+            directStorage.onChunkLoad(world, 0, 0);
+            for (int x = 0; x < 2; x++) {
+                directStorage.add(new Location(world, x, 64, 0),
+                        new Location(world, x, 65, 0),
+                        new Location(world, x, 100, 0),
+                        new Location(world, x, 100, 0));
+            }
+            assertEquals(2L, flushes.get());
+
+            directStorage.lockWrite();
+            try {
+                directStorage.remove(directStorage.getSlotByObserver(world, 0, 64, 0));
+                // Lookups of other threads don't wait for the disk
+                assertEquals(2L, flushes.get());
+            } finally {
+                directStorage.unlockWrite();
+            }
+            assertEquals(3L, flushes.get());
+        } finally {
+            directStorage.close();
+        }
+    }
+
+    @Test
+    public void testGaugesRemovedOnClose() throws Exception {
+        final CustomObserver plugin = MockPlugin.mockPlugin(world, folder.newFolder(), new ArrayList<>());
+        final CustomObserverConfig config = mock(CustomObserverConfig.class, withSettings().stubOnly());
+        final Metrics metrics = new Metrics("test_");
+        final ObserverStorage closedStorage = new ObserverStorage(plugin, getCustomLogger(), config, metrics);
+        assertTrue(metrics.toOpenMetrics().contains("test_registrations "));
+
+        closedStorage.close();
+        assertFalse(metrics.toOpenMetrics().contains("test_registrations "));
+        assertFalse(metrics.toOpenMetrics().contains("test_memory_bytes "));
+    }
+
+    private void add(final int thread, final int observer) {
+        final int x = getObserverX(thread, observer);
+        storage.add(new Location(world, x, 64, 0),
+                new Location(world, x, 65, 0),
+                new Location(world, 0, 100, observer % TARGETS),
+                new Location(world, 0, 100, observer % TARGETS));
+    }
+
+    private void remove(final int thread, final int observer) {
+        storage.lockWrite();
+        try {
+            final int slot = storage.getSlotByObserver(world, getObserverX(thread, observer), 64, 0);
+            assertNotEquals(NO_SLOT, slot);
+            storage.remove(slot);
+        } finally {
+            storage.unlockWrite();
+        }
+    }
+
+    private SlotList findByTarget(final int target) {
+        final SlotList found = new SlotList();
+        storage.lockRead();
+        try {
+            storage.findSlotsByTarget(world, 0, 100, target, found);
+        } finally {
+            storage.unlockRead();
+        }
+        return found;
+    }
+
+    private SlotList findChanged(final int target, final BlockData data) {
+        final SlotList found = new SlotList();
+        storage.lockRead();
+        try {
+            storage.findSlotsByTarget(world, 0, 100, target, found);
+            storage.retainChangedTargets(found, data);
+        } finally {
+            storage.unlockRead();
+        }
+        return found;
+    }
+
+    private SlotList findMatching(final int target, final Material type) {
+        final SlotList found = new SlotList();
+        storage.lockRead();
+        try {
+            storage.findSlotsByTarget(world, 0, 100, target, found);
+            storage.retainMatchingTargets(found, type);
+        } finally {
+            storage.unlockRead();
+        }
+        return found;
+    }
+
+    private static int getObserverX(final int thread, final int observer) {
+        return (thread << 9) + observer;
+    }
+}
@@ -0,0 +1,190 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import com.gmail.uprial.customobserver.CustomObserver;
+import com.gmail.uprial.customobserver.CustomObserverConfig;
+import com.gmail.uprial.customobserver.helpers.TestConfigBase;
+import com.gmail.uprial.customobserver.metrics.Metrics;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.type.Observer;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class PulseEngineTest extends TestConfigBase {
+    private static final int OBSERVERS = 10;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private World world;
+    private ObserverStorage storage;
+    private PulseEngine pulses;
+    private Metrics metrics;
+    private final List<Runnable> timers = new ArrayList<>();
+    private final boolean[] powered = new boolean[OBSERVERS];
+    // The time of a block change
+    private long blockChangeTime = 0L;
+
+    @After
+    public void tearDown() {
+        pulses.close();
+        storage.close();
+    }
+
+    @Test
+    public void testPulsesPerSecond() throws Exception {
+        setUp(2, 1000, 1000);
+
+        // A target which changes every tick
+        for (int tick = 1; tick < 20; tick++) {
+            trigger(1);
+            tick();
+        }
+
+        assertEquals(2, getCount("pulses_emitted"));
+        assertTrue(getCount("pulses_limited") > 0);
+
+        // The next second has its own limit
+        for (int tick = 0; tick < 20; tick++) {
+            trigger(1);
+            tick();
+        }
+        assertEquals(4, getCount("pulses_emitted"));
+    }
+
+    @Test
+    public void testDefaultPulsesPerSecond() throws Exception {
+        final int pulsesPerSecond = loadConfig("enabled: true", "sweep:", "  enabled: false").getPulsesPerSecond();
+        setUp(pulsesPerSecond, 1000, 1000);
+
+        // The default limits a target which changes every tick
+        for (int tick = 1; tick < 20; tick++) {
+            trigger(1);
+            tick();
+        }
+
+        assertEquals(pulsesPerSecond, getCount("pulses_emitted"));
+        assertTrue(getCount("pulses_limited") > 0);
+    }
+
+    @Test
+    public void testPulsesPerTick() throws Exception {
+        setUp(5, 3, 1000);
+
+        trigger(OBSERVERS);
+        tick();
+        tick();
+        assertEquals(3, getCount("pulses_emitted"));
+        assertEquals(OBSERVERS - 3, getCount("pulses_postponed"));
+
+        for (int tick = 0; tick < 10; tick++) {
+            tick();
+        }
+        // Postponed, not dropped
+        assertEquals(OBSERVERS, getCount("pulses_emitted"));
+        assertEquals(0, getCount("pulses_shed"));
+        for (int i = 0; i < OBSERVERS; i++) {
+            assertFalse(powered[i]);
+        }
+    }
+
+    @Test
+    public void testShedding() throws Exception {
+        setUp(5, 4, 1);
+        // The pulses of a tick take more than 1 ms
+        blockChangeTime = 1;
+
+        trigger(OBSERVERS);
+        tick();
+        tick();
+        assertEquals(4, getCount("pulses_emitted"));
+        assertEquals(OBSERVERS - 4, getCount("pulses_postponed"));
+
+        // The limit per tick is halved, and the rest is dropped
+        tick();
+        assertEquals(6, getCount("pulses_emitted"));
+        assertEquals(OBSERVERS - 6, getCount("pulses_shed"));
+    }
+
+    private void setUp(final int pulsesPerSecond, final int pulsesPerTick, final int maxTickTime) {
+        world = MockPlugin.mockWorld();
+        when(world.isChunkLoaded(anyInt(), anyInt())).thenReturn(true);
+        when(world.getBlockAt(anyInt(), anyInt(), anyInt())).thenAnswer((invocation) ->
+                mockObserver(invocation.getArgument(0)));
+
+        final CustomObserver plugin = MockPlugin.mockPlugin(world, folder.getRoot(), timers);
+
+        final CustomObserverConfig config = mock(CustomObserverConfig.class);
+        when(config.isWriteBehind()).thenReturn(true);
+        when(config.getFlushInterval()).thenReturn(100);
+        when(config.getPulsesPerSecond()).thenReturn(pulsesPerSecond);
+        when(config.getPulsesPerTick()).thenReturn(pulsesPerTick);
+        when(config.getMaxTickTime()).thenReturn(maxTickTime);
+
+        metrics = new Metrics("test_");
+        storage = new ObserverStorage(plugin, getCustomLogger(), config, metrics);
+        storage.onChunkLoad(world, 0, 0);
+        timers.clear();
+        pulses = new PulseEngine(plugin, getCustomLogger(), storage, config, metrics);
+
+        for (int i = 0; i < OBSERVERS; i++) {
+            storage.add(new Location(world, i, 64, 0),
+                    new Location(world, i, 64, 1),
+                    new Location(world, i, 64, 8),
+                    new Location(world, i, 64, 8));
+        }
+    }
+
+    private Block mockObserver(final int x) {
+        final Observer data = mock(Observer.class);
+        when(data.isPowered()).thenReturn(powered[x]);
+        doAnswer((invocation) -> {
+            powered[x] = invocation.getArgument(0);
+            return null;
+        }).when(data).setPowered(anyBoolean());
+
+        final Block block = mock(Block.class);
+        when(block.getType()).thenReturn(Material.OBSERVER);
+        when(block.getWorld()).thenReturn(world);
+        when(block.getX()).thenReturn(x);
+        when(block.getY()).thenReturn(64);
+        when(block.getBlockData()).thenReturn(data);
+        doAnswer((invocation) -> {
+            Thread.sleep(blockChangeTime);
+            return null;
+        }).when(block).setBlockData(any());
+        return block;
+    }
+
+    private void trigger(final int count) {
+        final SlotList found = new SlotList();
+        storage.lockRead();
+        try {
+            for (int i = 0; i < count; i++) {
+                found.add(storage.getSlotByObserver(world, i, 64, 0));
+            }
+            pulses.trigger(found.array(), found.size());
+        } finally {
+            storage.unlockRead();
+        }
+    }
+
+    private void tick() {
+        timers.get(0).run();
+    }
+
+    private long getCount(final String name) {
+        return metrics.counter(name, "").get();
+    }
+}
@@ -0,0 +1,413 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import com.gmail.uprial.customobserver.CustomObserver;
+import com.gmail.uprial.customobserver.common.BlockKey;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.type.Observer;
+import org.bukkit.entity.Entity;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.mockito.Mockito.*;
+
+/*
+    An in-memory server with one world and a deterministic tick clock.
+
+    The world, its blocks and the scheduler are plain proxies over maps,
+    so they cost much less per call than mocks and don't distort the timings.
+    Blocks are stone unless set, and all the chunks in the given bounds are loaded.
+
+    The scheduler runs tasks only in tick(), in the order they were scheduled.
+    Asynchronous tasks run on the calling thread too, so a simulation repeats exactly.
+ */
+class SimulatedServer {
+    static final String WORLD_NAME = "world";
+
+    private final World world;
+    private final Server server;
+    private final CustomObserver plugin;
+
+    private final Map<Long, Material> types = new HashMap<>();
+    private final Map<Long, Boolean> powered = new HashMap<>();
+    private final Map<Material, BlockData> states = new EnumMap<>(Material.class);
+    // Observers whose power has changed since the last call of takePowerChanges()
+    private final List<Block> powerChanges = new ArrayList<>();
+
+    private final List<SimulatedTask> tasks = new ArrayList<>();
+    private long currentTick = 0L;
+    private int lastTaskId = 0;
+
+    SimulatedServer(final File dataFolder, final int minChunkX, final int minChunkZ,
+                    final int maxChunkX, final int maxChunkZ) {
+        final Chunk[] loadedChunks = new Chunk[(maxChunkX - minChunkX + 1) * (maxChunkZ - minChunkZ + 1)];
+        world = fake(World.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getName":
+                    return WORLD_NAME;
+                case "getBlockAt":
+                    if (args.length == 1) {
+                        final Location location = (Location) args[0];
+                        return getBlock(location.getBlockX(), location.getBlockY(), location.getBlockZ());
+                    } else {
+                        return getBlock((int) args[0], (int) args[1], (int) args[2]);
+                    }
+                case "isChunkLoaded":
+                    return isChunkLoaded((int) args[0], minChunkX, maxChunkX)
+                            && isChunkLoaded((int) args[1], minChunkZ, maxChunkZ);
+                case "getLoadedChunks":
+                    return loadedChunks;
+                default:
+                    return unsupported(method);
+            }
+        });
+        int i = 0;
+        for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+            for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                loadedChunks[i++] = getChunk(chunkX, chunkZ);
+            }
+        }
+
+        final BukkitScheduler scheduler = fake(BukkitScheduler.class, (method, args) -> {
+            switch (method.getName()) {
+                case "runTask":
+                case "runTaskAsynchronously":
+                    return schedule((Runnable) args[1], 1L, 0L);
+                case "runTaskTimer":
+                case "runTaskTimerAsynchronously":
+                    return schedule((Runnable) args[1], (long) args[2], (long) args[3]);
+                default:
+                    return unsupported(method);
+            }
+        });
+
+        server = fake(Server.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getScheduler":
+                    return scheduler;
+                case "getWorlds":
+                    return Collections.singletonList(world);
+                case "getWorld":
+                    return WORLD_NAME.equals(args[0]) ? world : null;
+                case "getViewDistance":
+                    return 10;
+                default:
+                    return unsupported(method);
+            }
+        });
+
+        // The plugin class is final, but it's only used to reach the server
+        plugin = mock(CustomObserver.class, withSettings().stubOnly());
+        when(plugin.getServer()).thenReturn(server);
+        when(plugin.getDataFolder()).thenReturn(dataFolder);
+        when(plugin.isEnabled()).thenReturn(true);
+    }
+
+    CustomObserver getPlugin() {
+        return plugin;
+    }
+
+    World getWorld() {
+        return world;
+    }
+
+    long getCurrentTick() {
+        return currentTick;
+    }
+
+    void setType(final int x, final int y, final int z, final Material type) {
+        types.put(BlockKey.pack(x, y, z), type);
+    }
+
+    Block getBlock(final int x, final int y, final int z) {
+        // Boxed once, so the calls of a block don't allocate
+        final Long key = BlockKey.pack(x, y, z);
+        final Integer boxedX = x;
+        final Integer boxedY = y;
+        final Integer boxedZ = z;
+        return fake(Block.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getX":
+                    return boxedX;
+                case "getY":
+                    return boxedY;
+                case "getZ":
+                    return boxedZ;
+                case "getWorld":
+                    return world;
+                case "getLocation":
+                    return new Location(world, x, y, z);
+                case "getType":
+                    return types.getOrDefault(key, Material.STONE);
+                case "getBlockData":
+                    return getBlockData(key);
+                case "setBlockData":
+                    setBlockData(key, (BlockData) args[0]);
+                    return null;
+                case "breakNaturally":
+                    types.put(key, Material.AIR);
+                    powered.remove(key);
+                    return true;
+                default:
+                    return unsupported(method);
+            }
+        });
+    }
+
+    Entity getEntity() {
+        return fake(Entity.class, (method, args) -> unsupported(method));
+    }
+
+    // Runs the tasks of the next tick
+    void tick() {
+        currentTick++;
+        // Tasks scheduled by these tasks run from the next tick
+        for (final SimulatedTask task : new ArrayList<>(tasks)) {
+            if (!task.cancelled && (task.nextRun <= currentTick)) {
+                if (task.period > 0L) {
+                    task.nextRun += task.period;
+                } else {
+                    task.cancelled = true;
+                }
+                task.runnable.run();
+            }
+        }
+        tasks.removeIf((task) -> task.cancelled);
+    }
+
+    List<Block> takePowerChanges() {
+        final List<Block> changes = new ArrayList<>(powerChanges);
+        powerChanges.clear();
+        return changes;
+    }
+
+    private Chunk getChunk(final int chunkX, final int chunkZ) {
+        return fake(Chunk.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getX":
+                    return chunkX;
+                case "getZ":
+                    return chunkZ;
+                case "getWorld":
+                    return world;
+                case "isLoaded":
+                    return true;
+                default:
+                    return unsupported(method);
+            }
+        });
+    }
+
+    /*
+        Like in the server, a copy which is applied by setBlockData(),
+        and copies of the same state are equal. Other blocks than observers
+        have one state per type, so it's shared instead of copied.
+     */
+    private BlockData getBlockData(final long key) {
+        final Material type = types.getOrDefault(key, Material.STONE);
+        if (type != Material.OBSERVER) {
+            return states.computeIfAbsent(type, SimulatedState::new);
+        }
+
+        final boolean[] isPowered = {powered.getOrDefault(key, false)};
+        return fakeState(Observer.class, () -> isPowered[0], (method, args) -> {
+            switch (method.getName()) {
+                case "isPowered":
+                    return isPowered[0];
+                case "setPowered":
+                    isPowered[0] = (boolean) args[0];
+                    return null;
+                case "getMaterial":
+                    return Material.OBSERVER;
+                default:
+                    return unsupported(method);
+            }
+        });
+    }
+
+    private void setBlockData(final long key, final BlockData data) {
+        if (data instanceof Observer) {
+            final boolean isPowered = ((Observer) data).isPowered();
+            if (powered.getOrDefault(key, false) != isPowered) {
+                powered.put(key, isPowered);
+                powerChanges.add(getBlock(BlockKey.getX(key), BlockKey.getY(key), BlockKey.getZ(key)));
+            }
+        }
+    }
+
+    private BukkitTask schedule(final Runnable runnable, final long delay, final long period) {
+        final SimulatedTask task = new SimulatedTask(++lastTaskId, runnable,
+                currentTick + Math.max(1L, delay), period);
+        tasks.add(task);
+        return fake(BukkitTask.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getTaskId":
+                    return task.id;
+                case "cancel":
+                    task.cancelled = true;
+                    return null;
+                case "isCancelled":
+                    return task.cancelled;
+                default:
+                    return unsupported(method);
+            }
+        });
+    }
+
+    private static boolean isChunkLoaded(final int chunk, final int min, final int max) {
+        return (chunk >= min) && (chunk <= max);
+    }
+
+    private interface FakeMethods {
+        Object invoke(Method method, Object[] args);
+    }
+
+    private static <T> T fake(final Class<T> type, final FakeMethods methods) {
+        final InvocationHandler handler = (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return type.getSimpleName();
+                }
+            }
+            return methods.invoke(method, args);
+        };
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    // The state is compared by equals(), like the interned states of the server
+    private static <T extends BlockData> T fakeState(final Class<T> type, final Supplier<Object> state,
+                                                     final FakeMethods methods) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                new StateHandler(type, state, methods)));
+    }
+
+    // Makes the gaps of the fakes visible instead of returning nulls
+    private static Object unsupported(final Method method) {
+        throw new UnsupportedOperationException(String.format("Not simulated: %s.%s()",
+                method.getDeclaringClass().getSimpleName(), method.getName()));
+    }
+
+    private static class StateHandler implements InvocationHandler {
+        private final Class<?> type;
+        private final Supplier<Object> state;
+        private final FakeMethods methods;
+
+        private StateHandler(final Class<?> type, final Supplier<Object> state, final FakeMethods methods) {
+            this.type = type;
+            this.state = state;
+            this.methods = methods;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return (args[0] != null) && Proxy.isProxyClass(args[0].getClass())
+                                && (Proxy.getInvocationHandler(args[0]) instanceof StateHandler)
+                                && state.get().equals(((StateHandler) Proxy.getInvocationHandler(args[0])).state.get());
+                    case "hashCode":
+                        return state.get().hashCode();
+                    default:
+                        return type.getSimpleName();
+                }
+            }
+            return methods.invoke(method, args);
+        }
+    }
+
+    /*
+        A plain state, which is written by hand instead of a proxy,
+        so its equals() allocates nothing, like the one of the server.
+     */
+    private static class SimulatedState implements BlockData {
+        private final Material material;
+
+        private SimulatedState(final Material material) {
+            this.material = material;
+        }
+
+        @Override
+        public Material getMaterial() {
+            return material;
+        }
+
+        @Override
+        public String getAsString() {
+            return "minecraft:" + material.name().toLowerCase(Locale.ROOT);
+        }
+
+        @Override
+        public String getAsString(final boolean hideUnspecified) {
+            return getAsString();
+        }
+
+        @Override
+        public BlockData merge(final BlockData data) {
+            throw new UnsupportedOperationException("Not simulated: BlockData.merge()");
+        }
+
+        @Override
+        public boolean matches(final BlockData data) {
+            return equals(data);
+        }
+
+        @Override
+        public BlockData clone() {
+            return this;
+        }
+
+        @Override
+        public boolean equals(final Object object) {
+            return (object instanceof SimulatedState) && (((SimulatedState) object).material == material);
+        }
+
+        @Override
+        public int hashCode() {
+            return material.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return getAsString();
+        }
+    }
+
+    private static class SimulatedTask {
+        private final int id;
+        private final Runnable runnable;
+        private final long period;
+        private long nextRun;
+        private boolean cancelled = false;
+
+        private SimulatedTask(final int id, final Runnable runnable, final long nextRun, final long period) {
+            this.id = id;
+            this.runnable = runnable;
+            this.nextRun = nextRun;
+            this.period = period;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.gmail.uprial.customobserver.common.Utils.joinStrings;
+
+/*
+    Totals of a simulation: the handler time per event of each stream,
+    and the scheduler time, the pulses and the storage I/O per tick.
+ */
+class SimulationReport {
+    private final int registrations;
+
+    final EventStats physics = new EventStats("physics");
+    final EventStats redstone = new EventStats("redstone");
+    final EventStats explosions = new EventStats("explosions");
+
+    private long ticks = 0L;
+    private long tickNanos = 0L;
+    private long maxTickNanos = 0L;
+    private long pulses = 0L;
+    private long maxPulses = 0L;
+    private long flushes = 0L;
+    private long flushBytes = 0L;
+    private long maxFlushBytes = 0L;
+
+    private List<String> metrics = new ArrayList<>();
+
+    SimulationReport(final int registrations) {
+        this.registrations = registrations;
+    }
+
+    void recordTick(final long nanos, final long tickPulses, final long tickFlushes, final long tickFlushBytes) {
+        ticks++;
+        tickNanos += nanos;
+        maxTickNanos = Math.max(maxTickNanos, nanos);
+        pulses += tickPulses;
+        maxPulses = Math.max(maxPulses, tickPulses);
+        flushes += tickFlushes;
+        flushBytes += tickFlushBytes;
+        maxFlushBytes = Math.max(maxFlushBytes, tickFlushBytes);
+    }
+
+    void setMetrics(final List<String> metrics) {
+        this.metrics = metrics;
+    }
+
+    long getTicks() {
+        return ticks;
+    }
+
+    long getPulses() {
+        return pulses;
+    }
+
+    long getFlushBytes() {
+        return flushBytes;
+    }
+
+    @Override
+    public String toString() {
+        final List<String> lines = new ArrayList<>();
+        lines.add(String.format("%d registrations, %d ticks", registrations, ticks));
+        lines.add(physics.toString());
+        lines.add(redstone.toString());
+        lines.add(explosions.toString());
+        lines.add(String.format("scheduler: %d ns per tick, max %d ns",
+                average(tickNanos, ticks), maxTickNanos));
+        lines.add(String.format("pulses: %d per tick, max %d", average(pulses, ticks), maxPulses));
+        lines.add(String.format("storage: %d flushes, %d bytes per tick, max %d bytes",
+                flushes, average(flushBytes, ticks), maxFlushBytes));
+        lines.addAll(metrics);
+        return joinStrings(System.lineSeparator(), lines);
+    }
+
+    private static long average(final long total, final long count) {
+        return (count > 0L) ? total / count : 0L;
+    }
+
+    static class EventStats {
+        private final String name;
+        private long count = 0L;
+        private long nanos = 0L;
+        private long maxNanos = 0L;
+
+        private EventStats(final String name) {
+            this.name = name;
+        }
+
+        void record(final long eventNanos) {
+            count++;
+            nanos += eventNanos;
+            maxNanos = Math.max(maxNanos, eventNanos);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d events, %d ns per event, max %d ns",
+                    name, count, average(nanos, count), maxNanos);
+        }
+    }
+}
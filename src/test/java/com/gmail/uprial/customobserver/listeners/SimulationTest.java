@@ -0,0 +1,87 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import com.gmail.uprial.customobserver.CustomObserverConfig;
+import com.gmail.uprial.customobserver.common.CustomLogger;
+import com.gmail.uprial.customobserver.helpers.TestConfigBase;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/*
+    End-to-end runs of the trigger-to-pulse pipeline on a simulated server.
+
+    The default sizes keep the test fast. To size a server, e.g.:
+    mvn test -Dtest=SimulationTest -Dsimulation.registrations=100000 -Dsimulation.ticks=1200
+ */
+public class SimulationTest extends TestConfigBase {
+    private static final int REGISTRATIONS = Integer.getInteger("simulation.registrations", 1_000);
+    private static final int TICKS = Integer.getInteger("simulation.ticks", 200);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMixedLoad() throws Exception {
+        final SimulationReport report = new Workload(REGISTRATIONS, 1L)
+                .physics(200, 0.1)
+                .redstone(20)
+                .explosions(1, 27, 0.5)
+                .run(folder.getRoot(), getConfig(), getLogger(), TICKS);
+        System.out.println(report);
+
+        assertEquals(TICKS, report.getTicks());
+        assertEquals(200L * TICKS, report.physics.getCount());
+        assertEquals(TICKS, report.explosions.getCount());
+        assertTrue(report.getPulses() > 0);
+        // Every power change of an observer fires a redstone event
+        assertTrue(report.redstone.getCount() > 20L * TICKS);
+        // The exploded registrations are removed
+        assertTrue(report.getFlushBytes() > 0);
+    }
+
+    @Test
+    public void testRepeatable() throws Exception {
+        // Pulses are shed by the tick time, which isn't simulated
+        final CustomObserverConfig config = loadConfig("enabled: true",
+                "sweep:",
+                "  enabled: false",
+                "limits:",
+                "  max-tick-time: 1000");
+        final SimulationReport report1 = new Workload(100, 2L).physics(50, 0.5)
+                .run(folder.newFolder(), config, getLogger(), 100);
+        final SimulationReport report2 = new Workload(100, 2L).physics(50, 0.5)
+                .run(folder.newFolder(), config, getLogger(), 100);
+
+        assertEquals(report1.getPulses(), report2.getPulses());
+        assertEquals(report1.redstone.getCount(), report2.redstone.getCount());
+    }
+
+    @Test
+    public void testUnchangedTargets() throws Exception {
+        final SimulationReport report = new Workload(100, 3L).neighbourUpdates(50)
+                .run(folder.getRoot(), getConfig(), getLogger(), 100);
+
+        assertEquals(50L * 100, report.physics.getCount());
+        // Like vanilla observers, updates which don't change the target don't trigger
+        assertEquals(0L, report.getPulses());
+    }
+
+    private static CustomObserverConfig getConfig() throws Exception {
+        // The sweep reads chunk snapshots, which aren't simulated,
+        // and the flushes are measured in the ticks
+        return loadConfig("enabled: true",
+                "storage:",
+                "  write-behind: true",
+                "sweep:",
+                "  enabled: false");
+    }
+
+    private static CustomLogger getLogger() {
+        // Limited pulses are reported with warnings
+        final CustomLogger customLogger = getIndifferentCustomLogger();
+        customLogger.setDebugMode(false);
+        return customLogger;
+    }
+}
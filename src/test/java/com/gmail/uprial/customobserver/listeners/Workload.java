@@ -0,0 +1,227 @@
+package com.gmail.uprial.customobserver.listeners;
+
+import com.gmail.uprial.customobserver.CustomObserverConfig;
+import com.gmail.uprial.customobserver.common.BlockKey;
+import com.gmail.uprial.customobserver.common.CustomLogger;
+import com.gmail.uprial.customobserver.metrics.Counter;
+import com.gmail.uprial.customobserver.metrics.Metrics;
+import com.gmail.uprial.customobserver.storage.RegistryStorage;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.type.Observer;
+import org.bukkit.entity.Entity;
+import org.bukkit.event.block.BlockPhysicsEvent;
+import org.bukkit.event.block.BlockRedstoneEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.gmail.uprial.customobserver.listeners.SimulatedServer.WORLD_NAME;
+
+/*
+    Registers observers in a grid and sends streams of events
+    into the listeners of a simulated server, tick by tick.
+
+    Observer i is at (2 * (i % ROW), 10, 2 * (i / ROW)), its sign is next to it along X,
+    and its target is 10 blocks above. A hit of a physics event changes a target,
+    a miss changes a block between the observers and the targets,
+    and a neighbour update reaches a target without changing it.
+    An explosion hits an observer or blows up a cube of blocks between them.
+
+    Observers powered by the pulses fire redstone events, as in a server.
+    The streams are random, but repeat for the same seed.
+ */
+class Workload {
+    private static final int ROW = 256;
+    private static final int OBSERVER_Y = 10;
+    private static final int TARGET_Y = 20;
+    private static final int MISS_Y = 15;
+    // Ticks to load the registrations in the background
+    private static final int MAX_STARTUP_TICKS = 100;
+
+    private final int registrations;
+    private final Random random;
+
+    private int physicsPerTick = 0;
+    private double physicsHitRatio = 0.0;
+    private int neighbourUpdatesPerTick = 0;
+    private int redstonePerTick = 0;
+    private int explosionsPerTick = 0;
+    private int explosionSize = 0;
+    private double explosionHitRatio = 0.0;
+
+    Workload(final int registrations, final long seed) {
+        this.registrations = registrations;
+        random = new Random(seed);
+    }
+
+    Workload physics(final int perTick, final double hitRatio) {
+        physicsPerTick = perTick;
+        physicsHitRatio = hitRatio;
+        return this;
+    }
+
+    Workload neighbourUpdates(final int perTick) {
+        neighbourUpdatesPerTick = perTick;
+        return this;
+    }
+
+    Workload redstone(final int perTick) {
+        redstonePerTick = perTick;
+        return this;
+    }
+
+    Workload explosions(final int perTick, final int size, final double hitRatio) {
+        explosionsPerTick = perTick;
+        explosionSize = size;
+        explosionHitRatio = hitRatio;
+        return this;
+    }
+
+    SimulationReport run(final File dataFolder, final CustomObserverConfig config,
+                         final CustomLogger customLogger, final int ticks) {
+        writeRegistrations(dataFolder, customLogger);
+
+        final SimulatedServer server = new SimulatedServer(dataFolder, 0, 0,
+                getX(ROW - 1) >> 4, getZ(registrations - 1) >> 4);
+        for (int i = 0; i < registrations; i++) {
+            server.setType(getX(i), OBSERVER_Y, getZ(i), Material.OBSERVER);
+            server.setType(getX(i) + 1, OBSERVER_Y, getZ(i), Material.OAK_WALL_SIGN);
+        }
+
+        final Metrics metrics = new Metrics("simulation_");
+        final ObserverRegistry registry = new ObserverRegistry(server.getPlugin(), customLogger, config, metrics);
+        try {
+            final ObserverListener listener = new ObserverListener(server.getPlugin(), customLogger,
+                    registry, config, metrics);
+            final BlockUpdateListener blockUpdates = new BlockUpdateListener(server.getPlugin(), customLogger,
+                    registry, config, metrics);
+            for (int i = 0; !registry.getStorage().isReady(); i++) {
+                if (i == MAX_STARTUP_TICKS) {
+                    throw new IllegalStateException("The registrations are not loaded");
+                }
+                server.tick();
+            }
+
+            final Counter emittedPulses = metrics.counter("pulses_emitted", "");
+            final Counter flushes = metrics.counter("storage_flushes", "");
+            final Counter flushBytes = metrics.counter("storage_flush_bytes", "");
+            final SimulationReport report = new SimulationReport(registrations);
+            for (int tick = 0; tick < ticks; tick++) {
+                sendEvents(server, listener, blockUpdates, report);
+
+                final long pulsesBefore = emittedPulses.get();
+                final long flushesBefore = flushes.get();
+                final long flushBytesBefore = flushBytes.get();
+                final long start = System.nanoTime();
+                server.tick();
+                report.recordTick(System.nanoTime() - start, emittedPulses.get() - pulsesBefore,
+                        flushes.get() - flushesBefore, flushBytes.get() - flushBytesBefore);
+
+                for (final Block observer : server.takePowerChanges()) {
+                    final boolean isPowered = ((Observer) observer.getBlockData()).isPowered();
+                    sendRedstone(blockUpdates, report, new BlockRedstoneEvent(observer,
+                            isPowered ? 0 : 15, isPowered ? 15 : 0));
+                }
+            }
+            report.setMetrics(metrics.getSummary());
+            return report;
+        } finally {
+            registry.close();
+        }
+    }
+
+    private void writeRegistrations(final File dataFolder, final CustomLogger customLogger) {
+        final RegistryStorage registryStorage = new RegistryStorage(dataFolder, customLogger, null);
+        registryStorage.open();
+        for (int i = 0; i < registrations; i++) {
+            registryStorage.put(WORLD_NAME, BlockKey.pack(getX(i), OBSERVER_Y, getZ(i)),
+                    BlockKey.pack(getX(i) + 1, OBSERVER_Y, getZ(i)),
+                    BlockKey.pack(getX(i), TARGET_Y, getZ(i)));
+        }
+        registryStorage.flush();
+    }
+
+    private void sendEvents(final SimulatedServer server, final ObserverListener listener,
+                            final BlockUpdateListener blockUpdates, final SimulationReport report) {
+        for (int i = 0; i < physicsPerTick; i++) {
+            final int registration = random.nextInt(registrations);
+            final Block block = (random.nextDouble() < physicsHitRatio)
+                    ? server.getBlock(getX(registration), TARGET_Y, getZ(registration))
+                    : server.getBlock(getX(registration) + 1, MISS_Y, getZ(registration));
+            server.setType(block.getX(), block.getY(), block.getZ(),
+                    (block.getType() == Material.STONE) ? Material.AIR : Material.STONE);
+            sendPhysics(blockUpdates, report, block);
+        }
+
+        for (int i = 0; i < neighbourUpdatesPerTick; i++) {
+            final int registration = random.nextInt(registrations);
+            sendPhysics(blockUpdates, report, server.getBlock(getX(registration), TARGET_Y, getZ(registration)));
+        }
+
+        for (int i = 0; i < redstonePerTick; i++) {
+            final int registration = random.nextInt(registrations);
+            sendRedstone(blockUpdates, report, new BlockRedstoneEvent(
+                    server.getBlock(getX(registration), OBSERVER_Y, getZ(registration)), 0, 15));
+        }
+
+        final Entity entity = server.getEntity();
+        for (int i = 0; i < explosionsPerTick; i++) {
+            final int registration = random.nextInt(registrations);
+            final int y = (random.nextDouble() < explosionHitRatio) ? OBSERVER_Y : MISS_Y;
+            final List<Block> blocks = getCube(server, getX(registration), y, getZ(registration));
+            final EntityExplodeEvent event = new EntityExplodeEvent(entity,
+                    blocks.get(0).getLocation(), blocks, 1.0F);
+
+            final long start = System.nanoTime();
+            listener.onEntityExplode(event);
+            report.explosions.record(System.nanoTime() - start);
+
+            for (final Block block : blocks) {
+                server.setType(block.getX(), block.getY(), block.getZ(), Material.AIR);
+            }
+        }
+    }
+
+    private static void sendPhysics(final BlockUpdateListener blockUpdates, final SimulationReport report,
+                                    final Block block) {
+        final BlockData data = block.getBlockData();
+
+        final long start = System.nanoTime();
+        blockUpdates.onBlockPhysics(new BlockPhysicsEvent(block, data, block));
+        report.physics.record(System.nanoTime() - start);
+    }
+
+    private static void sendRedstone(final BlockUpdateListener blockUpdates, final SimulationReport report,
+                                     final BlockRedstoneEvent event) {
+        final long start = System.nanoTime();
+        blockUpdates.onBlockRedstone(event);
+        report.redstone.record(System.nanoTime() - start);
+    }
+
+    // The first explosionSize blocks of a cube around the center
+    private List<Block> getCube(final SimulatedServer server, final int centerX, final int centerY,
+                                final int centerZ) {
+        final int side = (int) Math.ceil(Math.cbrt(explosionSize));
+        final int offset = side / 2;
+        final List<Block> blocks = new ArrayList<>(explosionSize);
+        for (int i = 0; i < explosionSize; i++) {
+            blocks.add(server.getBlock(centerX - offset + i % side,
+                    centerY - offset + (i / side) % side,
+                    centerZ - offset + i / (side * side)));
+        }
+        return blocks;
+    }
+
+    private static int getX(final int registration) {
+        return 2 * (registration % ROW);
+    }
+
+    private static int getZ(final int registration) {
+        return 2 * (registration / ROW);
+    }
+}
@@ -0,0 +1,73 @@
+package com.gmail.uprial.customobserver.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+    @Test
+    public void testCounter() throws Exception {
+        final Metrics metrics = new Metrics("test_");
+        metrics.counter("hits", "Hits.").inc();
+        metrics.counter("hits", "Hits.").add(2);
+
+        assertEquals(3, metrics.counter("hits", "Hits.").get());
+        assertEquals("hits: 3", metrics.getSummary().get(0));
+    }
+
+    @Test
+    public void testHistogram() throws Exception {
+        final Histogram histogram = new Metrics("test_").histogram("time", "Time.");
+        histogram.record(500L);
+        histogram.record(1_000L);
+        histogram.record(3_000L);
+        histogram.record(2_000_000_000L);
+
+        assertEquals(4, histogram.getCount());
+        assertEquals(1_000L, histogram.getQuantileBound(0.5));
+        assertEquals(5_000L, histogram.getQuantileBound(0.75));
+        assertEquals(-1L, histogram.getQuantileBound(1.0));
+    }
+
+    @Test
+    public void testGaugeReplaced() throws Exception {
+        final Metrics metrics = new Metrics("test_");
+        metrics.gauge("size", "Size.", () -> 1L);
+        metrics.gauge("size", "Size.", () -> 2L);
+
+        assertEquals(1, metrics.getSummary().size());
+        assertEquals("size: 2", metrics.getSummary().get(0));
+    }
+
+    @Test
+    public void testGaugeRemoved() throws Exception {
+        final Metrics metrics = new Metrics("test_");
+        final Gauge oldGauge = metrics.gauge("size", "Size.", () -> 1L);
+        metrics.gauge("size", "Size.", () -> 2L);
+
+        // The replaced gauge doesn't remove the new one
+        metrics.remove(oldGauge);
+        assertEquals("size: 2", metrics.getSummary().get(0));
+
+        final Gauge gauge = metrics.gauge("count", "Count.", () -> 3L);
+        metrics.remove(gauge);
+        assertEquals(1, metrics.getSummary().size());
+    }
+
+    @Test
+    public void testOpenMetrics() throws Exception {
+        final Metrics metrics = new Metrics("test_");
+        metrics.counter("hits", "Hits.").inc();
+        metrics.histogram("time", "Time.").record(1_500L);
+
+        final String text = metrics.toOpenMetrics();
+        assertTrue(text.contains("# TYPE test_hits counter\n"));
+        assertTrue(text.contains("test_hits_total 1\n"));
+        assertTrue(text.contains("test_time_bucket{le=\"0.000001\"} 0\n"));
+        assertTrue(text.contains("test_time_bucket{le=\"0.0000025\"} 1\n"));
+        assertTrue(text.contains("test_time_bucket{le=\"+Inf\"} 1\n"));
+        assertTrue(text.contains("test_time_count 1\n"));
+        assertTrue(text.contains("test_time_sum 0.0000015\n"));
+        assertTrue(text.endsWith("# EOF\n"));
+    }
+}
@@ -0,0 +1,79 @@
+package com.gmail.uprial.customobserver.storage;
+
+import com.gmail.uprial.customobserver.helpers.TestConfigBase;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CustomJournalTest extends TestConfigBase {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplay() throws Exception {
+        final CustomJournal journal = newJournal(1024);
+        assertTrue(journal.append(Arrays.asList(new byte[]{1}, new byte[]{2, 3})));
+        assertTrue(journal.append(Arrays.asList(new byte[]{4})));
+
+        final List<byte[]> records = replay(newJournal(1024));
+        assertEquals(3, records.size());
+        assertArrayEquals(new byte[]{2, 3}, records.get(1));
+        assertArrayEquals(new byte[]{4}, records.get(2));
+    }
+
+    @Test
+    public void testPartiallyWrittenRecord() throws Exception {
+        final CustomJournal journal = newJournal(1024);
+        journal.append(Arrays.asList(new byte[]{1}, new byte[]{2, 3, 4, 5}));
+
+        final File file = new File(folder.getRoot(), "test.log");
+        final long validSize = file.length() - 2;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(validSize);
+        }
+
+        final CustomJournal recovered = newJournal(1024);
+        final List<byte[]> records = replay(recovered);
+        assertEquals(1, records.size());
+        assertArrayEquals(new byte[]{1}, records.get(0));
+        assertEquals(9, file.length());
+
+        // New records must not be glued to the damaged tail
+        recovered.append(Arrays.asList(new byte[]{6}));
+        assertEquals(2, replay(newJournal(1024)).size());
+    }
+
+    @Test
+    public void testNeedsCompaction() throws Exception {
+        final CustomJournal journal = newJournal(16);
+        assertFalse(journal.needsCompaction());
+
+        journal.append(Arrays.asList(new byte[]{1}));
+        assertFalse(journal.needsCompaction());
+
+        journal.append(Arrays.asList(new byte[]{2}));
+        assertTrue(journal.needsCompaction());
+
+        journal.clear();
+        assertFalse(journal.needsCompaction());
+        assertEquals(0, replay(newJournal(16)).size());
+    }
+
+    private CustomJournal newJournal(final long compactionSize) {
+        return new CustomJournal(folder.getRoot(), "test.log", getIndifferentCustomLogger(), compactionSize, 3_600_000L);
+    }
+
+    private static List<byte[]> replay(final CustomJournal journal) {
+        final List<byte[]> records = new ArrayList<>();
+        journal.replay(records::add);
+        return records;
+    }
+}
@@ -0,0 +1,168 @@
+package com.gmail.uprial.customobserver.storage;
+
+import com.gmail.uprial.customobserver.helpers.TestConfigBase;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class RegistryFileTest extends TestConfigBase {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final RegistryData data = new RegistryData();
+        final int world = data.getWorldId("world");
+        final int nether = data.getWorldId("world_nether");
+        data.put(world, 1L, 2L, 3L);
+        data.put(nether, 1L, 5L, 6L);
+        data.put(world, 7L, 8L, 9L, 10L);
+
+        final RegistryFile registryFile = newRegistryFile();
+        assertTrue(registryFile.save(data));
+
+        final RegistryData loaded = newRegistryFile().load();
+        assertEquals(3, loaded.size());
+        assertEquals(2, loaded.getWorldCount());
+        assertEquals("world_nether", loaded.getWorldName(loaded.getRecordWorldId(1)));
+        assertEquals(5L, loaded.getRecordSign(1));
+        assertEquals(9L, loaded.getRecordTarget(2));
+        assertEquals(10L, loaded.getRecordTargetMax(2));
+        assertEquals(6L, loaded.getRecordTargetMax(1));
+        assertFalse(new File(folder.getRoot(), "registry.dat.tmp").exists());
+    }
+
+    @Test
+    public void testFilters() throws Exception {
+        final RegistryData data = new RegistryData();
+        final int world = data.getWorldId("world");
+        data.put(world, 1L, 2L, 3L, 3L, "only:HOPPER");
+        data.put(world, 4L, 5L, 6L);
+        data.put(world, 7L, 8L, 9L, 10L, "!WATER,LAVA");
+        data.remove(world, 1L);
+
+        assertTrue(newRegistryFile().save(data));
+
+        final RegistryData loaded = newRegistryFile().load();
+        assertEquals(2, loaded.size());
+        assertEquals(7L, loaded.getRecordObserver(0));
+        assertEquals("!WATER,LAVA", loaded.getRecordFilter(0));
+        assertNull(loaded.getRecordFilter(1));
+    }
+
+    @Test
+    public void testUnfilteredVersion() throws Exception {
+        final File file = new File(folder.getRoot(), "registry.dat");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            // A damaged checksum makes each record checked
+            randomAccessFile.writeInt(0x434F4252);
+            randomAccessFile.writeInt(2);
+            randomAccessFile.writeInt(0);
+            randomAccessFile.writeInt(1);
+            randomAccessFile.writeInt(1);
+            randomAccessFile.writeShort(5);
+            randomAccessFile.writeBytes("world");
+            randomAccessFile.writeInt(0);
+            randomAccessFile.writeLong(1L);
+            randomAccessFile.writeLong(2L);
+            randomAccessFile.writeLong(3L);
+            randomAccessFile.writeLong(4L);
+        }
+
+        final RegistryData loaded = new RegistryFile(folder.getRoot(), "registry.dat", getIndifferentCustomLogger()).load();
+        assertEquals(1, loaded.size());
+        assertEquals(4L, loaded.getRecordTargetMax(0));
+        assertNull(loaded.getRecordFilter(0));
+    }
+
+    @Test
+    public void testDamagedRecordIsDropped() throws Exception {
+        final RegistryData data = new RegistryData();
+        final int world = data.getWorldId("world");
+        data.put(world, 1L, 2L, 3L);
+        data.put(world, 4L, 5L, 6L);
+        newRegistryFile().save(data);
+
+        // Corrupt the world id of the last record
+        final File file = new File(folder.getRoot(), "registry.dat");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(file.length() - 36);
+            randomAccessFile.writeInt(100);
+        }
+
+        final RegistryData loaded = new RegistryFile(folder.getRoot(), "registry.dat", getIndifferentCustomLogger()).load();
+        assertEquals(1, loaded.size());
+        assertEquals(1L, loaded.getRecordObserver(0));
+    }
+
+    @Test
+    public void testSingleTargetVersion() throws Exception {
+        final File file = new File(folder.getRoot(), "registry.dat");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            // A damaged checksum makes each record checked
+            randomAccessFile.writeInt(0x434F4252);
+            randomAccessFile.writeInt(1);
+            randomAccessFile.writeInt(0);
+            randomAccessFile.writeInt(1);
+            randomAccessFile.writeInt(1);
+            randomAccessFile.writeShort(5);
+            randomAccessFile.writeBytes("world");
+            randomAccessFile.writeInt(0);
+            randomAccessFile.writeLong(1L);
+            randomAccessFile.writeLong(2L);
+            randomAccessFile.writeLong(3L);
+        }
+
+        final RegistryData loaded = new RegistryFile(folder.getRoot(), "registry.dat", getIndifferentCustomLogger()).load();
+        assertEquals(1, loaded.size());
+        assertEquals(3L, loaded.getRecordTarget(0));
+        assertEquals(3L, loaded.getRecordTargetMax(0));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testNotRegistryFile() throws Exception {
+        final File file = folder.newFile("registry.dat");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.writeBytes("world:1:2:3=world:4:5:6");
+        }
+
+        new RegistryFile(folder.getRoot(), "registry.dat", getIndifferentCustomLogger()).load();
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testDamagedWorldCount() throws Exception {
+        final RegistryData data = new RegistryData();
+        data.put(data.getWorldId("world"), 1L, 2L, 3L);
+        newRegistryFile().save(data);
+
+        final File file = new File(folder.getRoot(), "registry.dat");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(Integer.BYTES * 3);
+            randomAccessFile.writeInt(Integer.MAX_VALUE);
+        }
+
+        new RegistryFile(folder.getRoot(), "registry.dat", getIndifferentCustomLogger()).load();
+    }
+
+    @Test
+    public void testSaveAfterLoad() throws Exception {
+        final RegistryData data = new RegistryData();
+        data.put(data.getWorldId("world"), 1L, 2L, 3L);
+        assertTrue(newRegistryFile().save(data));
+
+        // The loaded file is closed, so it can be replaced
+        final RegistryData loaded = newRegistryFile().load();
+        loaded.put(0, 4L, 5L, 6L);
+        assertTrue(newRegistryFile().save(loaded));
+        assertEquals(2, newRegistryFile().load().size());
+    }
+
+    private RegistryFile newRegistryFile() {
+        return new RegistryFile(folder.getRoot(), "registry.dat", getCustomLogger());
+    }
+}
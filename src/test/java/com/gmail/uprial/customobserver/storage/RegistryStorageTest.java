@@ -0,0 +1,265 @@
+package com.gmail.uprial.customobserver.storage;
+
+import com.gmail.uprial.customobserver.common.BlockKey;
+import com.gmail.uprial.customobserver.helpers.TestConfigBase;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RegistryStorageTest extends TestConfigBase {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMigration() throws Exception {
+        write("targets.txt", "world:1:64:2=world:1:64:7");
+        write("signs.txt", "world:1:64:2=world:0:64:2");
+
+        final RegistryStorage storage = newRegistryStorage();
+        storage.open();
+        final List<long[]> records = loadRegion(storage, 0, 0);
+        assertEquals(1, records.size());
+        assertEquals(BlockKey.pack(1, 64, 2), records.get(0)[0]);
+        assertEquals(BlockKey.pack(0, 64, 2), records.get(0)[1]);
+        assertEquals(BlockKey.pack(1, 64, 7), records.get(0)[2]);
+
+        assertTrue(new File(folder.getRoot(), "regions/world/r.0.0.dat").exists());
+        assertFalse(new File(folder.getRoot(), "targets.txt").exists());
+        assertTrue(new File(folder.getRoot(), "targets.txt.migrated").exists());
+
+        // The second start reads the region files only
+        final RegistryStorage secondStorage = newRegistryStorage();
+        secondStorage.open();
+        assertEquals(1, loadRegion(secondStorage, 0, 0).size());
+    }
+
+    @Test
+    public void testLegacyJournalMigration() throws Exception {
+        write("targets.txt", "world:1:64:2=world:1:64:7");
+        write("signs.txt", "world:1:64:2=world:0:64:2");
+        // The journals of the text files move and add observers
+        final List<byte[]> targetRecords = new ArrayList<>();
+        targetRecords.add("-world:1:64:2".getBytes(StandardCharsets.UTF_8));
+        targetRecords.add("+world:3:64:2=world:3:64:7".getBytes(StandardCharsets.UTF_8));
+        new CustomJournal(folder.getRoot(), "targets.txt.log", getCustomLogger(), 1024, 3_600_000L)
+                .append(targetRecords);
+        final List<byte[]> signRecords = new ArrayList<>();
+        signRecords.add("-world:1:64:2".getBytes(StandardCharsets.UTF_8));
+        signRecords.add("+world:3:64:2=world:2:64:2".getBytes(StandardCharsets.UTF_8));
+        new CustomJournal(folder.getRoot(), "signs.txt.log", getCustomLogger(), 1024, 3_600_000L)
+                .append(signRecords);
+
+        final RegistryStorage storage = newRegistryStorage();
+        storage.open();
+        final List<long[]> records = loadRegion(storage, 0, 0);
+        assertEquals(1, records.size());
+        assertEquals(BlockKey.pack(3, 64, 2), records.get(0)[0]);
+        assertEquals(BlockKey.pack(2, 64, 2), records.get(0)[1]);
+        assertEquals(BlockKey.pack(3, 64, 7), records.get(0)[2]);
+        assertTrue(new File(folder.getRoot(), "targets.txt.log.migrated").exists());
+    }
+
+    @Test
+    public void testRegistryFileMigration() throws Exception {
+        final RegistryData data = new RegistryData();
+        data.put(data.getWorldId("world"), BlockKey.pack(1, 64, 2), 2L, 3L);
+        data.put(data.getWorldId("world"), BlockKey.pack(-1, 64, 600), 5L, 6L);
+        new RegistryFile(folder.getRoot(), "registry.dat", getCustomLogger()).save(data);
+
+        final RegistryStorage storage = newRegistryStorage();
+        storage.open();
+
+        assertEquals(1, loadRegion(storage, 0, 0).size());
+        assertEquals(1, loadRegion(storage, -1, 1).size());
+        assertEquals(0, loadRegion(storage, 1, 1).size());
+        assertFalse(new File(folder.getRoot(), "registry.dat").exists());
+        assertTrue(new File(folder.getRoot(), "registry.dat.migrated").exists());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testInconsistentMigration() throws Exception {
+        write("targets.txt", "world:1:64:2=world:1:64:7");
+
+        newRegistryStorage().open();
+    }
+
+    @Test
+    public void testJournalReplay() throws Exception {
+        final RegistryStorage storage = newRegistryStorage();
+        storage.open();
+
+        storage.put("world", 1L, 2L, 3L);
+        storage.put("world", 4L, 5L, 6L);
+        storage.remove("world", 1L);
+        storage.flush();
+
+        assertFalse(new File(folder.getRoot(), "regions").exists());
+
+        final RegistryStorage secondStorage = newRegistryStorage();
+        secondStorage.open();
+        final List<long[]> records = loadRegion(secondStorage, 0, 0);
+        assertEquals(1, records.size());
+        assertEquals(4L, records.get(0)[0]);
+    }
+
+    @Test
+    public void testAreaJournalReplay() throws Exception {
+        final RegistryStorage storage = newRegistryStorage();
+        storage.open();
+
+        storage.put("world", 1L, 2L, 3L, 4L);
+        storage.put("world", 5L, 6L, 7L);
+        storage.flush();
+
+        final RegistryStorage secondStorage = newRegistryStorage();
+        secondStorage.open();
+        final List<long[]> records = loadRegion(secondStorage, 0, 0);
+        assertEquals(2, records.size());
+        assertEquals(4L, records.get(0)[3]);
+        assertEquals(7L, records.get(1)[3]);
+    }
+
+    @Test
+    public void testFilterJournalReplay() throws Exception {
+        final RegistryStorage storage = newRegistryStorage();
+        storage.open();
+
+        storage.put("world", 1L, 2L, 3L, 3L, "!WATER,LAVA");
+        storage.put("world", 4L, 5L, 6L);
+        storage.flush();
+
+        final RegistryStorage secondStorage = newRegistryStorage();
+        secondStorage.open();
+        final List<String> filters = new ArrayList<>();
+        secondStorage.loadRegion("world", 0, 0,
+                (worldName, observer, sign, target, targetMax, filter) -> filters.add(filter));
+        assertEquals(2, filters.size());
+        assertEquals("!WATER,LAVA", filters.get(0));
+        assertNull(filters.get(1));
+
+        // The filter is kept in the region file too
+        assertTrue(secondStorage.setJournal(null));
+        final RegistryData data = new RegistryFile(new File(folder.getRoot(), "regions/world"),
+                "r.0.0.dat", getCustomLogger()).load();
+        assertEquals("!WATER,LAVA", data.getRecordFilter(0));
+    }
+
+    @Test
+    public void testUnsavedRegion() throws Exception {
+        final RegistryStorage storage = newRegistryStorage();
+        storage.open();
+
+        storage.put("world", BlockKey.pack(1, 64, 2), 2L, 3L);
+
+        // Queued changes are visible before a flush
+        assertEquals(1, loadRegion(storage, 0, 0).size());
+        assertEquals(0, loadRegion(storage, 0, 1).size());
+    }
+
+    @Test
+    public void testLoadRegions() throws Exception {
+        final RegistryStorage storage = newRegistryStorage();
+        storage.open();
+        for (int i = 0; i < 100; i++) {
+            storage.put((i % 2 == 0) ? "world" : "nether", BlockKey.pack(i * 512, 64, 0), i, i);
+        }
+        storage.flush();
+
+        final RegistryStorage secondStorage = newRegistryStorage();
+        secondStorage.open();
+        final String[] worldNames = new String[100];
+        final long[] regionKeys = new long[100];
+        for (int i = 0; i < 100; i++) {
+            worldNames[i] = (i % 2 == 0) ? "world" : "nether";
+            regionKeys[i] = BlockKey.packChunk(i, 0);
+        }
+        final RegistryData[] regions = secondStorage.loadRegions(worldNames, regionKeys);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1, regions[i].size());
+            assertEquals(i, regions[i].getRecordSign(0));
+        }
+    }
+
+    @Test
+    public void testJournalSwitch() throws Exception {
+        final RegistryStorage storage = newRegistryStorage();
+        storage.open();
+
+        storage.put("world", 1L, 2L, 3L);
+        storage.flush();
+        storage.put("world", 4L, 5L, 6L);
+
+        // The journal and the queued changes are folded into the regions
+        assertTrue(storage.setJournal(null));
+        assertTrue(new File(folder.getRoot(), "regions/world/r.0.0.dat").exists());
+        assertEquals(0L, new File(folder.getRoot(), "registry.log").length());
+
+        storage.remove("world", 1L);
+        assertTrue(storage.setJournal(
+                new CustomJournal(folder.getRoot(), "registry.log", getCustomLogger(), 1024, 3_600_000L)));
+        storage.put("world", 7L, 8L, 9L);
+        storage.flush();
+
+        final RegistryStorage secondStorage = newRegistryStorage();
+        secondStorage.open();
+        final List<long[]> records = loadRegion(secondStorage, 0, 0);
+        assertEquals(2, records.size());
+        assertEquals(4L, records.get(0)[0]);
+        assertEquals(7L, records.get(1)[0]);
+    }
+
+    @Test
+    public void testJournalReplayWithoutJournal() throws Exception {
+        final RegistryStorage storage = newRegistryStorage();
+        storage.open();
+
+        storage.put("world", 1L, 2L, 3L);
+        storage.put("world", 4L, 5L, 6L);
+        storage.remove("world", 1L);
+        storage.flush();
+        assertFalse(new File(folder.getRoot(), "regions").exists());
+
+        // The server crashed and starts without the journal
+        final RegistryStorage secondStorage = new RegistryStorage(folder.getRoot(), getCustomLogger(), null);
+        secondStorage.open();
+        assertFalse(new File(folder.getRoot(), "registry.log").exists());
+        assertEquals(1, loadRegion(secondStorage, 0, 0).size());
+
+        // Enabling the journal again doesn't drop the replayed changes
+        assertTrue(secondStorage.setJournal(
+                new CustomJournal(folder.getRoot(), "registry.log", getCustomLogger(), 1024, 3_600_000L)));
+
+        final RegistryStorage thirdStorage = newRegistryStorage();
+        thirdStorage.open();
+        final List<long[]> records = loadRegion(thirdStorage, 0, 0);
+        assertEquals(1, records.size());
+        assertEquals(4L, records.get(0)[0]);
+    }
+
+    private RegistryStorage newRegistryStorage() {
+        return new RegistryStorage(folder.getRoot(), getCustomLogger(),
+                new CustomJournal(folder.getRoot(), "registry.log", getCustomLogger(), 1024, 3_600_000L));
+    }
+
+    private static List<long[]> loadRegion(final RegistryStorage storage, final int regionX, final int regionZ) {
+        final List<long[]> records = new ArrayList<>();
+        storage.loadRegion("world", regionX, regionZ,
+                (worldName, observer, sign, target, targetMax, filter) ->
+                        records.add(new long[]{observer, sign, target, targetMax}));
+        return records;
+    }
+
+    private void write(final String fileName, final String line) throws Exception {
+        try (FileWriter fileWriter = new FileWriter(new File(folder.getRoot(), fileName))) {
+            fileWriter.write(line + System.lineSeparator());
+        }
+    }
+}